@@ -6,6 +6,8 @@ module d3fx.demo {
     requires javafx.controls;
     requires d3fx.selection;
     requires d3fx.force;
+    requires d3fx.quadtree;
+    requires jdk.management;
     requires d3fx.sankey;
     requires d3fx.sankeychart;
     requires commons.csv;
@@ -0,0 +1,124 @@
+package ru.vzotov.d3fx.demo;
+
+import javafx.scene.Group;
+import javafx.scene.Node;
+import ru.vzotov.d3fx.force.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the accuracy and the speed of {@link ManyBodyForce}, {@link MultipoleForce} and {@link ParticleMeshForce}
+ * on the same input.
+ * <p>
+ * Nodes are placed in gaussian clusters, every force is applied once with alpha 1 to nodes at rest, and the
+ * resulting velocities of a sample of nodes are compared with the exact sum over all pairs. The error is the
+ * root mean square of the velocity error relative to that of the exact velocity. Node counts may be passed as
+ * arguments; the default is 10000, 50000 and 200000.
+ */
+public class ManyBodyBenchmark {
+
+    private static final int SAMPLE = 500;
+    private static final int RUNS = 3;
+    private static final double STRENGTH = -30;
+
+    public static void main(String[] args) {
+        final int[] sizes = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{10_000, 50_000, 200_000};
+        System.out.printf("%8s %-20s %10s %12s%n", "nodes", "force", "ms", "error");
+        for (int n : sizes) {
+            final List<ForcedNode<Node>> nodes = createNodes(n, new Random(n));
+            final double[] exact = exact(nodes);
+
+            final ForceAnimation<ForcedNode<Node>> barnesHut = new ForceAnimation<>(nodes);
+            barnesHut.getForces().add(new ManyBodyForce<>(barnesHut.getNodes(), node -> STRENGTH, 1, Double.POSITIVE_INFINITY));
+            report(n, "barnes-hut", barnesHut, exact);
+
+            for (int order : new int[]{4, 8, 12}) {
+                final ForceAnimation<ForcedNode<Node>> multipole = new ForceAnimation<>(nodes);
+                final MultipoleForce<ForcedNode<Node>> force = new MultipoleForce<>(multipole.getNodes(), node -> STRENGTH);
+                force.setOrder(order);
+                multipole.getForces().add(force);
+                report(n, "multipole, order " + order, multipole, exact);
+            }
+
+            for (int gridSize : new int[]{128, 512}) {
+                final ForceAnimation<ForcedNode<Node>> mesh = new ForceAnimation<>(nodes);
+                final ParticleMeshForce<ForcedNode<Node>> force = new ParticleMeshForce<>(mesh.getNodes(), node -> STRENGTH);
+                force.setGridSize(gridSize);
+                mesh.getForces().add(force);
+                report(n, "mesh, grid " + gridSize, mesh, exact);
+            }
+        }
+    }
+
+    private static List<ForcedNode<Node>> createNodes(int n, Random random) {
+        final int clusters = Math.max(1, n / 1000);
+        final double[] cx = new double[clusters], cy = new double[clusters];
+        final double extent = Math.sqrt(n) * 10;
+        for (int i = 0; i < clusters; ++i) {
+            cx[i] = random.nextDouble() * extent;
+            cy[i] = random.nextDouble() * extent;
+        }
+        final List<ForcedNode<Node>> nodes = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            final ForcedNode<Node> node = new ForcedNode<>(new Group());
+            final int c = random.nextInt(clusters);
+            node.setX(cx[c] + random.nextGaussian() * extent / 20);
+            node.setY(cy[c] + random.nextGaussian() * extent / 20);
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    /**
+     * @return exact velocity changes of the sampled nodes, a pair of coordinates per sample
+     */
+    private static double[] exact(List<ForcedNode<Node>> nodes) {
+        final int n = nodes.size();
+        final double[] result = new double[SAMPLE * 2];
+        for (int s = 0; s < SAMPLE; ++s) {
+            final ForcedNode<Node> node = nodes.get(sample(s, n));
+            double vx = 0, vy = 0;
+            for (ForcedNode<Node> other : nodes) {
+                if (other == node) continue;
+                final double x = other.getX() - node.getX(), y = other.getY() - node.getY();
+                double l = x * x + y * y;
+                if (l < 1) l = Math.sqrt(l);
+                vx += x * STRENGTH / l;
+                vy += y * STRENGTH / l;
+            }
+            result[2 * s] = vx;
+            result[2 * s + 1] = vy;
+        }
+        return result;
+    }
+
+    private static int sample(int s, int n) {
+        return (int) ((long) s * n / SAMPLE);
+    }
+
+    private static void report(int n, String name, ForceAnimation<ForcedNode<Node>> animation, double[] exact) {
+        final Force<ForcedNode<Node>> force = animation.getForces().get(0);
+        final SimulationState state = animation.getState();
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; ++run) {
+            Arrays.fill(state.vx, 0);
+            Arrays.fill(state.vy, 0);
+            final long start = System.nanoTime();
+            force.force(1);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double error = 0, norm = 0;
+        for (int s = 0; s < SAMPLE; ++s) {
+            final int i = animation.getNodes().get(sample(s, n)).index;
+            final double dx = state.vx[i] - exact[2 * s], dy = state.vy[i] - exact[2 * s + 1];
+            error += dx * dx + dy * dy;
+            norm += exact[2 * s] * exact[2 * s] + exact[2 * s + 1] * exact[2 * s + 1];
+        }
+        System.out.printf("%8d %-20s %10.1f %12.3e%n", n, name, best / 1e6, Math.sqrt(error / norm));
+    }
+}
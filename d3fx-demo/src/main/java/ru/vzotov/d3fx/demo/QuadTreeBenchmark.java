@@ -0,0 +1,114 @@
+package ru.vzotov.d3fx.demo;
+
+import com.sun.management.ThreadMXBean;
+import ru.vzotov.d3fx.quadtree.QuadNode;
+import ru.vzotov.d3fx.quadtree.QuadTree;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Compares the build time of a {@link QuadTree} with boxed {@code Function<E, Double>} coordinate accessors and
+ * with primitive {@code ToDoubleFunction<E>} ones.
+ * <p>
+ * Every variant builds the same tree from uniformly distributed points, once by a bulk load and once by adding the
+ * points one by one. The time is the best of several runs after a warm-up, the allocation is the number of bytes
+ * allocated by the best run. Point counts may be passed as arguments; the default is 10000, 100000 and 1000000.
+ */
+public class QuadTreeBenchmark {
+
+    private static final int RUNS = 5;
+
+    private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final class Point {
+        final double x;
+        final double y;
+
+        Point(double x, double y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        double getX() {
+            return x;
+        }
+
+        double getY() {
+            return y;
+        }
+
+        Double getBoxedX() {
+            return x;
+        }
+
+        Double getBoxedY() {
+            return y;
+        }
+    }
+
+    private static final class Node extends QuadNode<Point, Node> {
+        Node() {
+            super();
+        }
+
+        Node(Point data) {
+            super(data);
+        }
+    }
+
+    public static void main(String[] args) {
+        final int[] sizes = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{10_000, 100_000, 1_000_000};
+        System.out.printf("%8s %-10s %-12s %10s %12s%n", "points", "accessors", "build", "ms", "MB");
+        for (int n : sizes) {
+            final List<Point> points = createPoints(n, new Random(n));
+            final Supplier<QuadTree<Point, Node>> boxed = () -> new QuadTree<>(Point::getBoxedX, Point::getBoxedY,
+                    Double.NaN, Double.NaN, Double.NaN, Double.NaN, Node::new, Node::new);
+            final Supplier<QuadTree<Point, Node>> primitive = () -> new QuadTree<>(Point::getX, Point::getY,
+                    Node::new, Node::new);
+
+            report(n, "boxed", "bulk", () -> boxed.get().addAll(points));
+            report(n, "primitive", "bulk", () -> primitive.get().addAll(points));
+            report(n, "boxed", "incremental", () -> addEach(boxed.get(), points));
+            report(n, "primitive", "incremental", () -> addEach(primitive.get(), points));
+        }
+    }
+
+    private static List<Point> createPoints(int n, Random random) {
+        final double extent = Math.sqrt(n) * 10;
+        final List<Point> points = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            points.add(new Point(random.nextDouble() * extent, random.nextDouble() * extent));
+        }
+        return points;
+    }
+
+    private static void addEach(QuadTree<Point, Node> tree, List<Point> points) {
+        for (Point point : points) {
+            tree.add(point);
+        }
+    }
+
+    private static void report(int n, String accessors, String build, Runnable task) {
+        task.run();
+        long best = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int run = 0; run < RUNS; ++run) {
+            final long bytes = THREADS.getCurrentThreadAllocatedBytes();
+            final long start = System.nanoTime();
+            task.run();
+            final long time = System.nanoTime() - start;
+            if (time < best) {
+                best = time;
+                allocated = THREADS.getCurrentThreadAllocatedBytes() - bytes;
+            }
+        }
+        System.out.printf("%8d %-10s %-12s %10.1f %12.1f%n", n, accessors, build, best / 1e6, allocated / 1e6);
+    }
+}
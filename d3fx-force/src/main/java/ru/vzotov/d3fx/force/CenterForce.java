@@ -16,23 +16,23 @@ public class CenterForce<N extends ForcedNode<?>> extends Force<N> {
 
     @Override
     public void force(double alpha) {
+        final SimulationState state = state();
+        final double[] x = state.x, y = state.y;
         int n = nodes.size();
         double sx = 0;
         double sy = 0;
 
         for (N value : nodes) {
-            sx += value.getX();
-            sy += value.getY();
+            sx += x[value.index];
+            sy += y[value.index];
         }
 
         sx = sx / n - centerX;
         sy = sy / n - centerY;
 
         for (N value : nodes) {
-            double tx = value.getX() - sx;
-            double ty = value.getY() - sy;
-            value.setX(tx);
-            value.setY(ty);
+            x[value.index] -= sx;
+            y[value.index] -= sy;
         }
     }
 }
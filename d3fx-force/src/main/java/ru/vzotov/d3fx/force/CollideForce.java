@@ -1,12 +1,15 @@
 package ru.vzotov.d3fx.force;
 
-import ru.vzotov.d3fx.quadtree.QuadNode;
-import ru.vzotov.d3fx.quadtree.QuadTree;
+import ru.vzotov.d3fx.quadtree.PackedQuadTree;
+import ru.vzotov.d3fx.quadtree.PackedVisitor;
 import javafx.collections.ObservableList;
 
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Function;
 
-import static ru.vzotov.d3fx.force.ForceAnimation.jiggle;
+import static ru.vzotov.d3fx.quadtree.PackedQuadTree.point;
 
 public class CollideForce<N extends ForcedNode<?>> extends CustomizableForce<N> {
 
@@ -17,67 +20,260 @@ public class CollideForce<N extends ForcedNode<?>> extends CustomizableForce<N>
     private double[] radii = new double[DEFAULT_CAPACITY];
     private int capacity = DEFAULT_CAPACITY;
 
+    /**
+     * Tree and the maximum radius of every internal node are kept between ticks, so that a tick does not allocate.
+     */
+    private final PackedQuadTree<N> tree = new PackedQuadTree<>(this::x, this::y);
+    private double[] maxRadii = new double[DEFAULT_CAPACITY];
+    private final PackedVisitor prepare = this::prepare;
+    private final PackedVisitor collide = this::collide;
+
+    /**
+     * Pool of the parallel mode, {@code null} to collide on the calling thread
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * Velocity changes of the parallel mode, by position in the node list
+     */
+    private double[] deltaX = new double[DEFAULT_CAPACITY];
+    private double[] deltaY = new double[DEFAULT_CAPACITY];
+
+    /**
+     * Source of the random displacements of coincident nodes
+     */
+    private SplittableRandom random = new SplittableRandom();
+
+    /**
+     * State of the node that is currently being processed
+     */
+    private N current;
+    private double ri;
+    private double ri2;
+    private double xi;
+    private double yi;
+
     @Override
     public void force(double alpha) {
-        int i, n = nodes.size();
+        final SimulationState state = state();
+        final double[] x = state.x, y = state.y, vx = state.vx, vy = state.vy;
+        int i, j, n = nodes.size();
 
         for (int k = 0; k < iterations; ++k) {
-            QuadTree<N, CollideQuadNode<N>> tree = QuadTree.quadTree(
-                    nodes, this::x, this::y, CollideQuadNode::new, CollideQuadNode::new
-            ).visitAfter(this::prepare);
+            tree.clear().addAll(nodes);
+            if (maxRadii.length <= tree.nodeCount()) {
+                maxRadii = new double[Math.max(tree.nodeCount() + 1, maxRadii.length << 1)];
+            }
+            tree.visitAfter(prepare);
+            if (pool != null && n >= PARALLEL_THRESHOLD) {
+                final int grain = Math.max(MIN_GRAIN, n / (pool.getParallelism() << 3));
+                pool.invoke(new GatherTask(0, n, grain, random.nextLong()));
+                for (i = 0; i < n; ++i) {
+                    j = nodes.get(i).index;
+                    vx[j] += deltaX[i];
+                    vy[j] += deltaY[i];
+                }
+                continue;
+            }
             for (i = 0; i < n; ++i) {
                 N node = nodes.get(i);
-                double ri = radii[node.index];
-                double ri2 = ri * ri;
-                double xi = node.getX() + node.vx;
-                double yi = node.getY() + node.vy;
-                tree.visit((CollideQuadNode<N> quad, double x0, double y0, double x1, double y1) -> {
-                    N data = quad.data;
-                    double rj = quad.r;
-                    double r = ri + rj;
-                    if (data != null) {
-                        if (data.index > node.index) {
-                            double x = xi - data.getX() - data.vx,
-                                    y = yi - data.getY() - data.vy,
-                                    l = x * x + y * y;
-                            if (l < r * r) {
-                                if (Double.compare(x, 0d) == 0) {
-                                    x = jiggle();
-                                    l += x * x;
-                                }
-                                if (Double.compare(y, 0d) == 0) {
-                                    y = jiggle();
-                                    l += y * y;
-                                }
-                                l = (r - (l = Math.sqrt(l))) / l * strength;
-                                node.vx += (x *= l) * (r = (rj *= rj) / (ri2 + rj));
-                                node.vy += (y *= l) * r;
-                                data.vx -= x * (r = 1 - r);
-                                data.vy -= y * r;
-                            }
-                        }
-                        return false;
+                j = node.index;
+                current = node;
+                ri = radii[i];
+                ri2 = ri * ri;
+                xi = x[j] + vx[j];
+                yi = y[j] + vy[j];
+                tree.visit(collide);
+            }
+        }
+        current = null;
+    }
+
+    private boolean collide(int quad, double x0, double y0, double x1, double y1) {
+        final N node = current;
+        double rj = radius(quad);
+        double r = ri + rj;
+        if (quad < 0) {
+            final int i = node.index, j = tree.data(point(quad)).index;
+            if (j > i) {
+                final SimulationState state = state();
+                final double[] vx = state.vx, vy = state.vy;
+                double x = xi - state.x[j] - vx[j],
+                        y = yi - state.y[j] - vy[j],
+                        l = x * x + y * y;
+                if (l < r * r) {
+                    if (Double.compare(x, 0d) == 0) {
+                        x = (random.nextDouble() - 0.5) * 1e-6;
+                        l += x * x;
                     }
-                    return x0 > xi + r || x1 < xi - r || y0 > yi + r || y1 < yi - r;
-                });
+                    if (Double.compare(y, 0d) == 0) {
+                        y = (random.nextDouble() - 0.5) * 1e-6;
+                        l += y * y;
+                    }
+                    l = (r - (l = Math.sqrt(l))) / l * strength;
+                    vx[i] += (x *= l) * (r = (rj *= rj) / (ri2 + rj));
+                    vy[i] += (y *= l) * r;
+                    vx[j] -= x * (r = 1 - r);
+                    vy[j] -= y * r;
+                }
             }
+            return false;
         }
+        return x0 > xi + r || x1 < xi - r || y0 > yi + r || y1 < yi - r;
     }
 
-    private boolean prepare(CollideQuadNode<N> quad, double x0, double y0, double x1, double y1) {
-        if (quad.isLeaf()) {
-            quad.r = radii[quad.data.index];
+    private boolean prepare(int quad, double x0, double y0, double x1, double y1) {
+        if (quad < 0) {
             return false;
         }
-        quad.r = 0;
+        double r = 0;
         for (var i = 0; i < 4; ++i) {
-            if (quad.get(i) != null && quad.get(i).r > quad.r) {
-                quad.r = quad.get(i).r;
+            int child = tree.child(quad, i);
+            if (child != PackedQuadTree.EMPTY && maxRadius(child) > r) {
+                r = maxRadius(child);
             }
         }
+        maxRadii[quad] = r;
         return false;
     }
 
+    /**
+     * @param quad node handle
+     * @return maximum radius of the points of a leaf or within an internal node
+     */
+    private double maxRadius(int quad) {
+        if (quad > 0) return maxRadii[quad];
+        double r = 0;
+        for (int p = point(quad); p >= 0; p = tree.next(p)) {
+            r = Math.max(r, radii[p]);
+        }
+        return r;
+    }
+
+    /**
+     * Number of nodes from which the parallel mode is used
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 10;
+
+    /**
+     * Smallest number of nodes processed by a single task
+     */
+    private static final int MIN_GRAIN = 1 << 7;
+
+    /**
+     * @return small displacement of a coincident pair of nodes, opposite for the two nodes of the pair
+     */
+    private static double jiggle(long seed, int p, int q) {
+        long z = seed + Math.min(p, q) * 0x9E3779B97F4A7C15L + Math.max(p, q) * 0xC2B2AE3D27D4EB4FL;
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        z ^= z >>> 33;
+        final double jiggle = ((z >>> 11) * 0x1.0p-53 - 0.5) * 1e-6;
+        return p < q ? jiggle : -jiggle;
+    }
+
+    /**
+     * Collects the velocity change of one node after another from all the nodes it overlaps.
+     * <p>
+     * Unlike the sequential mode, which pushes both nodes of a pair apart as soon as the pair is found, a gatherer
+     * only writes the change of its own node, into {@link #deltaX} and {@link #deltaY}. Every pair is therefore
+     * evaluated from both sides, with the velocities of the start of the iteration, and the changes are added once
+     * all nodes are done. Displacements of coincident nodes are derived from the pair and the seed, so the result
+     * does not depend on the number of threads or the order of the tasks.
+     */
+    private final class Gatherer implements PackedVisitor {
+        private long seed;
+        private int self;
+        private double ri;
+        private double ri2;
+        private double xi;
+        private double yi;
+        private double dvx;
+        private double dvy;
+
+        /**
+         * Collects the velocity changes of the nodes at positions {@code [from, to)} of the node list.
+         */
+        void gather(int from, int to, long seed) {
+            this.seed = seed;
+            for (int i = from; i < to; ++i) {
+                self = i;
+                ri = radii[i];
+                ri2 = ri * ri;
+                xi = tree.x(i);
+                yi = tree.y(i);
+                dvx = dvy = 0;
+                if (!Double.isNaN(xi) && !Double.isNaN(yi)) tree.visit(this);
+                deltaX[i] = dvx;
+                deltaY[i] = dvy;
+            }
+        }
+
+        @Override
+        public boolean visit(int quad, double x0, double y0, double x1, double y1) {
+            if (quad > 0) {
+                final double r = ri + maxRadii[quad];
+                return x0 > xi + r || x1 < xi - r || y0 > yi + r || y1 < yi - r;
+            }
+            for (int p = point(quad); p >= 0; p = tree.next(p)) {
+                if (p == self) continue;
+                double rj = radii[p], r = ri + rj;
+                double x = xi - tree.x(p),
+                        y = yi - tree.y(p),
+                        l = x * x + y * y;
+                if (l < r * r) {
+                    if (Double.compare(x, 0d) == 0) {
+                        x = jiggle(seed, self, p);
+                        l += x * x;
+                    }
+                    if (Double.compare(y, 0d) == 0) {
+                        y = jiggle(~seed, self, p);
+                        l += y * y;
+                    }
+                    l = (r - (l = Math.sqrt(l))) / l * strength;
+                    r = (rj *= rj) / (ri2 + rj);
+                    dvx += x * l * r;
+                    dvy += y * l * r;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final class GatherTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final long seed;
+
+        GatherTask(int from, int to, int grain, long seed) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.seed = seed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                new Gatherer().gather(from, to, seed);
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(new GatherTask(from, mid, grain, seed), new GatherTask(mid, to, grain, seed));
+        }
+    }
+
+    /**
+     * @param quad node handle
+     * @return radius of the first point of a leaf, or the maximum radius within an internal node
+     */
+    private double radius(int quad) {
+        return quad < 0 ? radii[point(quad)] : maxRadii[quad];
+    }
+
     public CollideForce(ObservableList<N> nodes) {
         this(nodes, (node) -> 1d);
     }
@@ -93,6 +289,8 @@ public class CollideForce<N extends ForcedNode<?>> extends CustomizableForce<N>
         if (n > capacity) {
             capacity = n;
             radii = ensureCapacity(radii, capacity);
+            deltaX = ensureCapacity(deltaX, capacity);
+            deltaY = ensureCapacity(deltaY, capacity);
         }
     }
 
@@ -102,11 +300,13 @@ public class CollideForce<N extends ForcedNode<?>> extends CustomizableForce<N>
     }
 
     private double x(N d) {
-        return d.getX() + d.vx;
+        final SimulationState state = state();
+        return state.x[d.index] + state.vx[d.index];
     }
 
     private double y(N d) {
-        return d.getY() + d.vy;
+        final SimulationState state = state();
+        return state.y[d.index] + state.vy[d.index];
     }
 
     public double getStrength() {
@@ -125,22 +325,33 @@ public class CollideForce<N extends ForcedNode<?>> extends CustomizableForce<N>
         this.iterations = iterations;
     }
 
-    public Function<N, Double> getRadius() {
-        return radius;
+    public ForkJoinPool getPool() {
+        return pool;
     }
 
-    public void setRadius(Function<N, Double> radius) {
-        this.radius = radius;
+    /**
+     * Enables the parallel mode, in which the nodes gather their velocity changes as tasks of the pool (see
+     * {@link Gatherer}). The parallel mode resolves every overlapping pair from the velocities of the start of the
+     * iteration, so its result differs slightly from the sequential mode, which applies each pair in turn.
+     *
+     * @param pool pool of the collision tasks, or {@code null} to collide on the calling thread
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
     }
 
-    private static class CollideQuadNode<N extends ForcedNode> extends QuadNode<N, CollideQuadNode<N>> {
-        private double r;
+    /**
+     * Seeds the random displacements of coincident nodes, making the simulation reproducible.
+     */
+    public void setSeed(long seed) {
+        this.random = new SplittableRandom(seed);
+    }
 
-        public CollideQuadNode() {
-        }
+    public Function<N, Double> getRadius() {
+        return radius;
+    }
 
-        public CollideQuadNode(N data) {
-            super(data);
-        }
+    public void setRadius(Function<N, Double> radius) {
+        this.radius = radius;
     }
 }
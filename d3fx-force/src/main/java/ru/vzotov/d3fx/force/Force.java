@@ -1,23 +1,148 @@
 package ru.vzotov.d3fx.force;
 
+import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public abstract class Force<N extends ForcedNode<?>> {
 
+    /**
+     * Nodes the force is applied to: a copy of the list passed to the constructor, which follows it while no tick
+     * of the simulation is running
+     */
     protected ObservableList<N> nodes;
 
+    private final ObservableList<N> source;
+
+    /**
+     * State of the simulation the force is added to
+     */
+    private SimulationState state;
+
+    /**
+     * Set while the simulation runs a tick on another thread, {@code null} for a simulation that only ticks on the
+     * thread changing the nodes
+     */
+    private AtomicBoolean ticking;
+
+    /**
+     * Set if the source list has changed during a tick
+     */
+    private boolean pending;
+
+    /**
+     * Listener of the source list, removed while the force is {@link #detach() detached} from a simulation
+     */
+    private final ListChangeListener<N> sourceChanged = c -> {
+        if (ticking != null && ticking.get()) {
+            pending = true;
+        } else {
+            sync();
+        }
+    };
+    private boolean listening;
+
     protected Force(ObservableList<N> nodes) {
         if (nodes == null) throw new IllegalArgumentException();
-        this.nodes = nodes;
+        this.source = nodes;
+        this.nodes = FXCollections.observableArrayList(nodes);
         this.nodes.addListener(this::nodesChanged);
+        this.source.addListener(sourceChanged);
+        this.listening = true;
     }
 
     protected void nodesChanged(ListChangeListener.Change<? extends N> c) {
     }
 
+    /**
+     * Binds the force to the state of a simulation.
+     */
+    void attach(SimulationState state) {
+        attach(state, null);
+    }
+
+    /**
+     * Binds the force to the state of a simulation that runs its ticks on another thread. Changes of the node list
+     * made while {@code ticking} is set are applied by {@link #applyChanges()}.
+     */
+    void attach(SimulationState state, AtomicBoolean ticking) {
+        this.state = state;
+        this.ticking = ticking;
+        if (!listening) {
+            source.addListener(sourceChanged);
+            listening = true;
+            sync();
+        }
+    }
+
+    /**
+     * Unbinds the force from its simulation and stops following the source list, so that a removed force is not
+     * kept reachable by the list. Called by the simulation between ticks.
+     */
+    void detach() {
+        if (listening) {
+            source.removeListener(sourceChanged);
+            listening = false;
+        }
+        this.state = null;
+        this.ticking = null;
+        this.pending = false;
+    }
+
+    /**
+     * Applies the changes of the node list made during a tick. Called by the simulation between ticks.
+     */
+    void applyChanges() {
+        if (pending) sync();
+    }
+
+    /**
+     * Brings {@link #nodes} in line with the source list, keeping the common prefix so that appended nodes are
+     * reported to {@link #nodesChanged} as an addition.
+     */
+    private void sync() {
+        pending = false;
+        final int n = Math.min(nodes.size(), source.size());
+        int from = 0;
+        while (from < n && nodes.get(from) == source.get(from)) {
+            from++;
+        }
+        if (from < nodes.size()) nodes.remove(from, nodes.size());
+        if (from < source.size()) nodes.addAll(source.subList(from, source.size()));
+    }
+
+    /**
+     * @return state of the simulation the force is added to. Positions and velocities of a node are found at
+     * {@link ForcedNode#index} of its arrays.
+     * @throws IllegalStateException if the force is not added to a simulation
+     */
+    protected SimulationState state() {
+        final SimulationState state = this.state;
+        if (state == null) {
+            throw new IllegalStateException("force is not added to a ForceAnimation or a ForceLayout");
+        }
+        return state;
+    }
+
     public abstract void force(double alpha);
 
+    /**
+     * @return small random value, used to separate coincident nodes
+     */
+    protected static double jiggle() {
+        return (Math.random() - 0.5) * 1e-6;
+    }
+
+    /**
+     * @return small random value drawn from the given source, used to separate coincident nodes reproducibly
+     */
+    protected static double jiggle(SplittableRandom random) {
+        return (random.nextDouble() - 0.5) * 1e-6;
+    }
+
     protected static double notZero(double v, double ifZero) {
         return Double.compare(v, 0d) == 0 ? ifZero : v;
     }
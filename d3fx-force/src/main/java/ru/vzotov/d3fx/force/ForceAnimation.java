@@ -6,31 +6,60 @@ import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 import javafx.util.Duration;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ForceAnimation<N extends ForcedNode<?>> extends Transition {
 
-    private static final double INITIAL_RADIUS = 10;
-    private static final double INITIAL_ANGLE = Math.PI * (3 - Math.sqrt(5));
-    private static final double VELOCITY_DECAY = 0.6;
+    /**
+     * Weight of the last measured tick in the estimated duration of a tick
+     */
+    private static final double TICK_SMOOTHING = 0.25;
 
-    private static final double ALPHA_MIN = 0.001d;
-    private static final double ALPHA_DECAY = 1 - Math.pow(ALPHA_MIN, 1d / 300d);
+    /**
+     * Number of iterations that stands for the ticks of a frame, see {@link #frameBudget(double)}
+     */
+    private static final int FRAME = -1;
 
-    private double alphaTarget = 0d;
+    private volatile double alphaTarget = 0d;
 
     /**
-     * Alpha
+     * Alpha, as the bits of a double. A tick only replaces the value it has read, so that an alpha set by
+     * {@link #alpha(double)} during a background tick is not overwritten by the decay.
      */
-    private double alpha = .99d;
+    private final AtomicLong alpha = new AtomicLong(Double.doubleToLongBits(.99d));
 
     /**
-     * @return small random value
+     * Criterion of an early stop, see {@link #convergence(Convergence, double)}
      */
-    static double jiggle() {
-        return (Math.random() - 0.5) * 1e-6;
+    public enum Convergence {
+        /**
+         * Mean distance moved by a free node in a tick
+         */
+        MEAN_DISPLACEMENT,
+        /**
+         * Largest distance moved by a free node in a tick
+         */
+        MAX_DISPLACEMENT
     }
 
+    private Convergence convergence;
+    private double convergenceThreshold;
+    /**
+     * Number of reheats by {@link #alpha(double)}, {@link #alphaTarget(double)} and {@link #convergence}, and the
+     * number at the start of the tick that met the convergence criterion. A reheat during a tick therefore cancels
+     * the convergence the tick may find.
+     */
+    private final AtomicInteger reheats = new AtomicInteger();
+    private volatile int convergedAt = -1;
+    private final List<TickListener> tickListeners = new CopyOnWriteArrayList<>();
+
     /**
      * Nodes
      */
@@ -49,6 +78,44 @@ public class ForceAnimation<N extends ForcedNode<?>> extends Transition {
         return forces;
     }
 
+    /**
+     * Nodes and forces the ticks run on. They follow {@link #nodes} and {@link #forces} on the thread changing
+     * those lists, or, while a tick runs on the executor, between ticks on the JavaFX Application Thread.
+     */
+    private final List<N> tickNodes = new ArrayList<>();
+    private final List<Force<N>> tickForces = new ArrayList<>();
+
+    /**
+     * Forces removed from {@link #forces}, detached once no tick runs them any more
+     */
+    private final List<Force<N>> removedForces = new ArrayList<>();
+    private boolean pending;
+
+    /**
+     * Positions and velocities of the nodes, updated by the ticks and published to the nodes after them
+     */
+    private final SimulationState state = new SimulationState();
+
+    public SimulationState getState() {
+        return state;
+    }
+
+    /**
+     * Executor of the ticks, or {@code null} to tick on the JavaFX Application Thread
+     */
+    private Executor executor;
+    private final AtomicBoolean ticking = new AtomicBoolean();
+    private final PublishBuffer buffer = new PublishBuffer();
+    private final Runnable backgroundTick = this::backgroundTick;
+
+    /**
+     * Time budget of the ticks of a frame in nanoseconds, zero to run one tick per frame. The duration of a tick is
+     * estimated by a moving average, so that a single slow tick does not halve the rate of the following frames.
+     */
+    private volatile long frameBudget;
+    private double tickNanos;
+    private volatile int frameTicks;
+
     public ForceAnimation() {
         this(FXCollections.observableArrayList());
     }
@@ -62,16 +129,17 @@ public class ForceAnimation<N extends ForcedNode<?>> extends Transition {
         setCycleCount(INDEFINITE);
         setCycleDuration(Duration.millis(5000));
 
-        this.nodes.addListener((ListChangeListener<? super N>) (c) -> {
+        this.nodes.addListener((ListChangeListener<? super N>) (c) -> changed());
+        this.forces.addListener((ListChangeListener<? super Force<N>>) (c) -> {
             while (c.next()) {
-                if (c.wasAdded()) {
-                    for (int i = c.getFrom(); i < c.getTo(); ++i) {
-                        N node = c.getList().get(i);
-                        initializeNode(node, i);
-                    }
+                for (Force<N> force : c.getAddedSubList()) {
+                    force.attach(state, ticking);
                 }
+                removedForces.addAll(c.getRemoved());
             }
+            changed();
         });
+        changed();
     }
 
     public ForceAnimation(Collection<N> nodes) {
@@ -79,17 +147,48 @@ public class ForceAnimation<N extends ForcedNode<?>> extends Transition {
         this.nodes.setAll(nodes);
     }
 
-    private void initializeNode(N node, int i) {
-        node.index = i;
-        if (node.fx != null) node.setX(node.fx);
-        if (node.fy != null) node.setY(node.fy);
-        if (Double.isNaN(node.getX()) || Double.isNaN(node.getY())) {
-            double radius = INITIAL_RADIUS * Math.sqrt(0.5 + i), angle = i * INITIAL_ANGLE;
-            node.setX(radius * Math.cos(angle));
-            node.setY(radius * Math.sin(angle));
+    /**
+     * Applies a change of the nodes or the forces at once, or after the running tick.
+     */
+    private void changed() {
+        pending = true;
+        if (!ticking.get()) {
+            synchronized (state) {
+                applyChanges();
+            }
+        }
+    }
+
+    /**
+     * Brings the nodes and the forces of the ticks in line with their lists. Called between ticks.
+     */
+    private void applyChanges() {
+        if (pending) {
+            pending = false;
+            // Nodes after the first difference have been added or moved, so their state is read at their new index.
+            final int n = Math.min(tickNodes.size(), nodes.size());
+            int from = 0;
+            while (from < n && tickNodes.get(from) == nodes.get(from)) {
+                from++;
+            }
+            if (from < tickNodes.size() || from < nodes.size()) {
+                buffer.discard();
+                tickNodes.subList(from, tickNodes.size()).clear();
+                tickNodes.addAll(nodes.subList(from, nodes.size()));
+                state.resize(tickNodes.size());
+                for (int i = from; i < tickNodes.size(); ++i) {
+                    state.initialize(i, tickNodes.get(i));
+                }
+            }
+            for (Force<N> force : removedForces) {
+                if (!forces.contains(force)) force.detach();
+            }
+            removedForces.clear();
+            tickForces.clear();
+            tickForces.addAll(forces);
         }
-        if (Double.isNaN(node.vx) || Double.isNaN(node.vy)) {
-            node.vx = node.vy = 0;
+        for (Force<N> force : tickForces) {
+            force.applyChanges();
         }
     }
 
@@ -102,39 +201,238 @@ public class ForceAnimation<N extends ForcedNode<?>> extends Transition {
         return force;
     }
 
+    public double alpha() {
+        return Double.longBitsToDouble(alpha.get());
+    }
+
     public ForceAnimation<N> alpha(double alpha) {
-        this.alpha = alpha;
+        this.alpha.set(Double.doubleToLongBits(alpha));
+        reheats.incrementAndGet();
         return this;
     }
 
     public ForceAnimation<N> alphaTarget(double alphaTarget) {
         setDelay(Duration.ZERO);
         this.alphaTarget = alphaTarget;
+        reheats.incrementAndGet();
         return this;
     }
 
+    public Convergence convergence() {
+        return convergence;
+    }
+
+    public double convergenceThreshold() {
+        return convergenceThreshold;
+    }
+
+    /**
+     * Stops the animation as soon as the layout has settled, instead of waiting for alpha to decay to its minimum:
+     * once a tick moves the free nodes by less than the threshold, by the mean or the largest displacement, no
+     * further ticks are run until alpha or its target is set again. The criterion is not checked while the alpha
+     * target keeps the simulation running, e.g. while a node is dragged.
+     *
+     * @param convergence criterion of the stop, or {@code null} to only stop on alpha
+     * @param threshold   distance per tick below which the layout is considered settled
+     * @return this animation
+     */
+    public ForceAnimation<N> convergence(Convergence convergence, double threshold) {
+        this.convergence = convergence;
+        this.convergenceThreshold = threshold;
+        reheats.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * @return {@code true} if the layout has met the convergence criterion
+     */
+    public boolean converged() {
+        return convergedAt == reheats.get();
+    }
+
+    /**
+     * Adds a listener that is called after every tick, see {@link TickListener} for the thread it is called on.
+     */
+    public void addTickListener(TickListener listener) {
+        tickListeners.add(listener);
+    }
+
+    public void removeTickListener(TickListener listener) {
+        tickListeners.remove(listener);
+    }
+
+    public double frameBudget() {
+        return frameBudget / 1e6;
+    }
+
+    /**
+     * Runs as many ticks per frame as fit into the given time, instead of a single one: small graphs converge in
+     * fewer frames, while a graph whose tick takes longer than the budget still runs one tick per frame. Ticks are
+     * run while the estimated duration of the next one fits into the rest of the budget, the estimate being a
+     * moving average of the measured durations. With an {@link #executor(Executor) executor}, the budget applies
+     * to each batch of ticks run on it.
+     *
+     * @param millis time budget of the ticks of a frame in milliseconds, zero to run one tick per frame
+     * @return this animation
+     */
+    public ForceAnimation<N> frameBudget(double millis) {
+        if (millis < 0) throw new IllegalArgumentException("frame budget must not be negative");
+        this.frameBudget = (long) (millis * 1e6);
+        return this;
+    }
+
+    /**
+     * @return number of ticks run for the last frame
+     */
+    public int frameTicks() {
+        return frameTicks;
+    }
+
+    public Executor executor() {
+        return executor;
+    }
+
+    /**
+     * Moves the ticks of the animation to an executor, e.g. a dedicated single-thread one. On every pulse the
+     * JavaFX Application Thread publishes the newest completed tick, if any, and starts the next tick unless one
+     * is still running. A tick that takes longer than a frame therefore lowers the simulation rate instead of
+     * blocking the UI. Changes of the node list, of the forces and of the node lists of the forces made during a
+     * tick are applied on the JavaFX Application Thread once the tick has finished, so neither the ticks nor the
+     * UI wait for each other. The settings of a force must not be changed while a tick runs.
+     *
+     * @param executor executor of the ticks, or {@code null} to tick on the JavaFX Application Thread
+     * @return this animation
+     */
+    public ForceAnimation<N> executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Runs the given number of iterations on the simulation state and publishes the result to the nodes once.
+     */
     public void tick(int iterations) {
-        for (var k = 0; k < iterations; ++k) {
-            alpha += (alphaTarget - alpha) * ALPHA_DECAY;
+        tickAndPublish(iterations);
+    }
 
-            for (Force<N> force : getForces()) {
+    /**
+     * Applies the pending changes of the nodes and the forces, reads the fixed and moved positions, runs the ticks
+     * on the calling thread and publishes the result.
+     *
+     * @param iterations number of iterations, or {@link #FRAME} to run the ticks of a frame
+     */
+    private void tickAndPublish(int iterations) {
+        synchronized (state) {
+            applyChanges();
+            state.readFixed(tickNodes);
+            if (iterations == FRAME) {
+                frame();
+            } else {
+                step(iterations);
+            }
+            publish();
+        }
+    }
+
+    /**
+     * Runs the given number of iterations on the simulation state, or fewer if the layout converges.
+     */
+    private void step(int iterations) {
+        for (var k = 0; k < iterations && !converged(); ++k) {
+            final int generation = reheats.get();
+            final long bits = this.alpha.get();
+            double alpha = Double.longBitsToDouble(bits);
+            alpha += (alphaTarget - alpha) * SimulationState.ALPHA_DECAY;
+            this.alpha.compareAndSet(bits, Double.doubleToLongBits(alpha));
+
+            for (Force<N> force : tickForces) {
                 force.force(alpha);
             }
 
-            for (N node : nodes) {
-                node.vx *= VELOCITY_DECAY;
-                node.vy *= VELOCITY_DECAY;
-                node.setX(node.fx != null ? node.fx : node.getX() + node.vx);
-                node.setY(node.fy != null ? node.fy : node.getY() + node.vy);
+            state.integrate();
+            for (TickListener listener : tickListeners) {
+                listener.ticked(alpha, state.kineticEnergy(), state.meanDisplacement(), state.maxDisplacement());
+            }
+            if (convergence != null && alphaTarget < SimulationState.ALPHA_MIN) {
+                final double displacement = convergence == Convergence.MEAN_DISPLACEMENT
+                        ? state.meanDisplacement() : state.maxDisplacement();
+                if (displacement < convergenceThreshold) convergedAt = generation;
+            }
+        }
+    }
+
+    /**
+     * Runs the ticks of a frame: one tick, or as many as fit into the frame budget. The state is locked for every
+     * tick rather than for the whole frame.
+     */
+    private void frame() {
+        final long budget = frameBudget;
+        if (budget == 0) {
+            synchronized (state) {
+                step(1);
+            }
+            frameTicks = 1;
+            return;
+        }
+        final long start = System.nanoTime();
+        long end = start;
+        int ticks = 0;
+        do {
+            final long tickStart = end;
+            synchronized (state) {
+                step(1);
+            }
+            end = System.nanoTime();
+            tickNanos = tickNanos == 0 ? end - tickStart : tickNanos + (end - tickStart - tickNanos) * TICK_SMOOTHING;
+            ticks++;
+        } while (end - start + tickNanos <= budget && alpha() >= SimulationState.ALPHA_MIN && !converged());
+        frameTicks = ticks;
+    }
+
+    private void backgroundTick() {
+        try {
+            frame();
+            synchronized (state) {
+                buffer.offer(state);
             }
+        } finally {
+            ticking.set(false);
         }
     }
 
+    /**
+     * Pushes the positions of the simulation state into the nodes.
+     */
+    public void publish() {
+        state.publish(tickNodes);
+    }
+
     @Override
     protected void interpolate(double frac) {
-        tick(1);
-        if (alpha < ALPHA_MIN) {
+        final Executor executor = this.executor;
+        if (executor == null) {
+            tickAndPublish(FRAME);
+            if (alpha() < SimulationState.ALPHA_MIN || converged()) {
+                stop();
+            }
+            return;
+        }
+
+        buffer.publish(tickNodes);
+        if (ticking.get()) return;
+        applyChanges();
+        if (alpha() < SimulationState.ALPHA_MIN || converged()) {
             stop();
+            return;
+        }
+        // Fixed positions are changed by event handlers, so they are read on this thread.
+        state.readFixed(tickNodes);
+        ticking.set(true);
+        try {
+            executor.execute(backgroundTick);
+        } catch (RuntimeException e) {
+            ticking.set(false);
+            throw e;
         }
     }
 
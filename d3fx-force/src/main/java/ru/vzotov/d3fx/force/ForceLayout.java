@@ -0,0 +1,194 @@
+package ru.vzotov.d3fx.force;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Static force-directed layout of a graph, computed without a scene graph.
+ * <p>
+ * Where a {@link ForceAnimation} moves the controls of its nodes frame by frame, a layout only produces the final
+ * coordinates, e.g. for a report or an image rendered on a server. Nodes and links are described by their counts and
+ * accessor functions; the layout creates nodes without controls, applies a {@link LinkForce}, a
+ * {@link ManyBodyForce} and optionally a {@link CenterForce} in a tight loop until alpha falls below the minimum of
+ * an animation, or until the kinetic energy of the nodes falls below a threshold, and returns the positions.
+ * <p>
+ * A layout does not use the JavaFX toolkit, so it can run on any thread without the toolkit being started. A
+ * layout object is not thread-safe, but independent layouts may run in parallel.
+ * <pre>{@code
+ * double[] xy = new ForceLayout(n)
+ *         .links(m, link -> source[link], link -> target[link])
+ *         .energyThreshold(1e-3)
+ *         .run();
+ * }</pre>
+ */
+public class ForceLayout {
+
+    private final int nodeCount;
+    private int linkCount;
+    private IntUnaryOperator source;
+    private IntUnaryOperator target;
+    private IntToDoubleFunction distance = (link) -> 30d;
+    private IntToDoubleFunction strength = (node) -> -30d;
+    private IntToDoubleFunction x;
+    private IntToDoubleFunction y;
+    private boolean centered;
+    private double centerX;
+    private double centerY;
+    private double energyThreshold;
+    private int ticks;
+
+    /**
+     * @param nodeCount number of nodes, the nodes being identified by their indices
+     */
+    public ForceLayout(int nodeCount) {
+        if (nodeCount < 0) throw new IllegalArgumentException("node count must not be negative");
+        this.nodeCount = nodeCount;
+    }
+
+    /**
+     * Computes the layout of a graph with the default forces.
+     *
+     * @param nodeCount number of nodes
+     * @param linkCount number of links
+     * @param source    index of the source node of a link
+     * @param target    index of the target node of a link
+     * @return coordinates of the nodes, {@code x} of node {@code i} at {@code 2 * i} and {@code y} at {@code 2 * i + 1}
+     */
+    public static double[] layout(int nodeCount, int linkCount, IntUnaryOperator source, IntUnaryOperator target) {
+        return new ForceLayout(nodeCount).links(linkCount, source, target).run();
+    }
+
+    /**
+     * @param linkCount number of links, the links being identified by their indices
+     * @param source    index of the source node of a link
+     * @param target    index of the target node of a link
+     * @return this layout
+     */
+    public ForceLayout links(int linkCount, IntUnaryOperator source, IntUnaryOperator target) {
+        this.linkCount = linkCount;
+        this.source = source;
+        this.target = target;
+        return this;
+    }
+
+    /**
+     * @param distance desired length of a link, 30 by default
+     * @return this layout
+     */
+    public ForceLayout distance(IntToDoubleFunction distance) {
+        this.distance = distance;
+        return this;
+    }
+
+    /**
+     * @param strength many-body strength of a node, -30 by default
+     * @return this layout
+     */
+    public ForceLayout strength(IntToDoubleFunction strength) {
+        this.strength = strength;
+        return this;
+    }
+
+    /**
+     * Sets the initial positions of the nodes. A node whose position is {@code NaN}, like every node by default, is
+     * placed on a spiral around the origin, as in an animation.
+     *
+     * @return this layout
+     */
+    public ForceLayout position(IntToDoubleFunction x, IntToDoubleFunction y) {
+        this.x = x;
+        this.y = y;
+        return this;
+    }
+
+    /**
+     * Keeps the center of mass of the nodes at the given point.
+     *
+     * @return this layout
+     */
+    public ForceLayout center(double x, double y) {
+        this.centered = true;
+        this.centerX = x;
+        this.centerY = y;
+        return this;
+    }
+
+    /**
+     * Stops the layout as soon as the mean kinetic energy of the nodes after a tick falls below the given threshold,
+     * before alpha has decayed to its minimum.
+     *
+     * @param energyThreshold mean kinetic energy of a node, in square units per square tick; zero to only stop on alpha
+     * @return this layout
+     */
+    public ForceLayout energyThreshold(double energyThreshold) {
+        this.energyThreshold = energyThreshold;
+        return this;
+    }
+
+    /**
+     * @return number of ticks of the last run
+     */
+    public int ticks() {
+        return ticks;
+    }
+
+    /**
+     * Runs the simulation until it converges.
+     *
+     * @return coordinates of the nodes, {@code x} of node {@code i} at {@code 2 * i} and {@code y} at {@code 2 * i + 1}
+     */
+    public double[] run() {
+        final int n = nodeCount;
+        final SimulationState state = new SimulationState();
+        state.resize(n);
+        final List<ForcedNode<Node>> list = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            final ForcedNode<Node> node = new ForcedNode<>();
+            node.setX(x == null ? Double.NaN : x.applyAsDouble(i));
+            node.setY(y == null ? Double.NaN : y.applyAsDouble(i));
+            state.initialize(i, node);
+            list.add(node);
+        }
+        final ObservableList<ForcedNode<Node>> nodes = FXCollections.observableList(list);
+
+        final List<Force<ForcedNode<Node>>> forces = new ArrayList<>();
+        if (linkCount > 0) {
+            final List<Link<Node, ForcedNode<Node>>> links = new ArrayList<>(linkCount);
+            for (int i = 0; i < linkCount; ++i) {
+                links.add(new Link<>(null, list.get(source.applyAsInt(i)), list.get(target.applyAsInt(i))));
+            }
+            forces.add(new LinkForce<>(nodes, links, link -> distance.applyAsDouble(link.getIndex())));
+        }
+        forces.add(new ManyBodyForce<>(nodes, node -> strength.applyAsDouble(node.index), 1, Double.POSITIVE_INFINITY));
+        if (centered) {
+            forces.add(new CenterForce<>(nodes, centerX, centerY));
+        }
+        for (Force<ForcedNode<Node>> force : forces) {
+            force.attach(state);
+        }
+
+        double alpha = 1;
+        ticks = 0;
+        do {
+            alpha -= alpha * SimulationState.ALPHA_DECAY;
+            for (Force<ForcedNode<Node>> force : forces) {
+                force.force(alpha);
+            }
+            state.integrate();
+            ticks++;
+        } while (alpha >= SimulationState.ALPHA_MIN && !(n > 0 && state.kineticEnergy() / n < energyThreshold));
+
+        final double[] result = new double[2 * n];
+        for (int i = 0; i < n; ++i) {
+            result[2 * i] = state.x[i];
+            result[2 * i + 1] = state.y[i];
+        }
+        return result;
+    }
+}
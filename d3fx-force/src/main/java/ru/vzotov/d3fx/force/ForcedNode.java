@@ -8,16 +8,26 @@ public class ForcedNode<D extends Node> {
 
     private final D control;
 
+    /**
+     * Index of the node in the simulation, and of its slot in the {@link SimulationState} arrays
+     */
     public int index = 0;
     double vx = 0d;
     double vy = 0d;
+    /**
+     * Position last read into or published from the simulation. A coordinate that differs from it was set from the
+     * outside, e.g. by {@link #setX(double)}, and is read into the simulation before the next tick.
+     */
+    double px = Double.NaN;
+    double py = Double.NaN;
     public Double fx = null;
     public Double fy = null;
     public double mouseX = 0d;
     public double mouseY = 0d;
 
     /**
-     * X coord
+     * X coord. The simulation works on its own copy of the positions and publishes them to this property after its
+     * ticks; a position set between ticks is picked up by the next tick instead of being overwritten.
      */
     private final DoubleProperty x = new SimpleDoubleProperty(this, "x", 0d);
 
@@ -50,6 +60,13 @@ public class ForcedNode<D extends Node> {
         this.y.set(y);
     }
 
+    /**
+     * Creates a node without a control, e.g. for a {@link ForceLayout} computed without a scene graph.
+     */
+    public ForcedNode() {
+        this.control = null;
+    }
+
     public ForcedNode(D control) {
         this.control = control;
         this.control.getProperties().put(ForcedNode.class.getName(), this);
@@ -57,6 +74,9 @@ public class ForcedNode<D extends Node> {
         this.yProperty().bindBidirectional(this.control.translateYProperty());
     }
 
+    /**
+     * @return control moved by the node, or {@code null} for a node without a control
+     */
     public D getControl() {
         return control;
     }
@@ -8,6 +8,7 @@ public abstract class ForcedNodeUtils {
 
     public static <N extends ForcedNode<?>> N makeDraggable(Supplier<ForceAnimation<N>> animation, final N fn) {
         final Node control = fn.getControl();
+        if (control == null) throw new IllegalArgumentException("node without a control cannot be dragged");
 
         control.setOnMousePressed(event -> {
             fn.mouseX = event.getSceneX();
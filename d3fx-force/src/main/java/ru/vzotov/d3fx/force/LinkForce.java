@@ -66,26 +66,28 @@ public class LinkForce<D extends Node,N extends ForcedNode<D>> extends Force<N>
 
     @Override
     public void force(double alpha) {
+        final SimulationState state = state();
+        final double[] xs = state.x, ys = state.y, vx = state.vx, vy = state.vy;
         for (int i = 0; i < links.size(); i++) {
             Link<D,N> link = links.get(i);
-            N source = link.getSource();
-            N target = link.getTarget();
+            int source = link.getSource().index;
+            int target = link.getTarget().index;
 
-            double x = target.getX() + target.vx - source.getX() - source.vx;
-            if (Double.isNaN(x)) x = ForceAnimation.jiggle();
+            double x = xs[target] + vx[target] - xs[source] - vx[source];
+            if (Double.isNaN(x)) x = jiggle();
 
-            double y = target.getY() + target.vy - source.getY() - source.vy;
-            if (Double.isNaN(y)) y = ForceAnimation.jiggle();
+            double y = ys[target] + vy[target] - ys[source] - vy[source];
+            if (Double.isNaN(y)) y = jiggle();
 
             double l = Math.sqrt(x * x + y * y);
             l = (l - distances[i]) / l * alpha * strengths[i];
             x *= l;
             y *= l;
             double b;
-            target.vx -= x * (b = bias[i]);
-            target.vy -= y * b;
-            source.vx += x * (b = 1 - b);
-            source.vy += y * b;
+            vx[target] -= x * (b = bias[i]);
+            vy[target] -= y * b;
+            vx[source] += x * (b = 1 - b);
+            vy[source] += y * b;
         }
     }
 }
@@ -1,143 +1,392 @@
 package ru.vzotov.d3fx.force;
 
-import ru.vzotov.d3fx.quadtree.QuadNode;
-import ru.vzotov.d3fx.quadtree.QuadTree;
+import ru.vzotov.d3fx.quadtree.PackedQuadTree;
+import ru.vzotov.d3fx.quadtree.PackedVisitor;
+import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Function;
 
-public class ManyBodyForce<N extends ForcedNode<?>> extends Force<N> {
+import static ru.vzotov.d3fx.quadtree.PackedQuadTree.point;
+
+public class ManyBodyForce<N extends ForcedNode<?>> extends CustomizableForce<N> {
     private Function<N, Double> strength = (node) -> -30d;
     private double theta2 = 0.81;
     private double distanceMin2 = 1;
     private double distanceMax2 = Double.POSITIVE_INFINITY;
-    private double[] strengths;
+    private double[] strengths = new double[DEFAULT_CAPACITY];
+    private int capacity = DEFAULT_CAPACITY;
+
+    /**
+     * Tree and aggregates are kept between ticks, so that a tick does not allocate.
+     * Internal node aggregates are indexed by node handle, leaf aggregates by the index of the first point.
+     */
+    private final PackedQuadTree<N> tree = new PackedQuadTree<>(n -> state().x[n.index], n -> state().y[n.index]);
+    private double[] values = new double[0];
+    private double[] centerX = new double[0];
+    private double[] centerY = new double[0];
+    private double[] pointValues = new double[0];
+    private final PackedVisitor accumulate = this::accumulate;
+
+    /**
+     * Refit mode: the tree is built for the positions of {@link #builtX} and {@link #builtY}, while the aggregates
+     * are computed from the current positions of {@link #pointX} and {@link #pointY}, both indexed by point.
+     * {@link #drift} is the largest distance along an axis that a point has moved since the build.
+     */
+    private int refitTicks;
+    private double refitDistance = 1;
+    private int refitted;
+    private boolean rebuild = true;
+    private double drift;
+    private double[] pointX = new double[0];
+    private double[] pointY = new double[0];
+    private double[] builtX = new double[0];
+    private double[] builtY = new double[0];
+
+    /**
+     * Pool of the parallel traversals, {@code null} to traverse on the calling thread
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * Source of the random displacements of coincident nodes. Every tick draws a seed from it, and every chunk of
+     * {@link #CHUNK} nodes derives its own generator from that seed, so the displacements do not depend on how the
+     * nodes are split between threads.
+     */
+    private SplittableRandom random = new SplittableRandom();
+    private final Walker walker = new Walker();
+    private double alpha;
 
     public ManyBodyForce(ObservableList<N> nodes, Function<N, Double> strength, double distanceMin, double distanceMax) {
         super(nodes);
         this.strength = strength;
         this.distanceMin2 = distanceMin;
         this.distanceMax2 = distanceMax;
+        initialize();
+    }
 
-        this.strengths = new double[nodes.size()];
-        for (int i = 0; i < nodes.size(); i++) {
-            strengths[i] = strength.apply(nodes.get(i));
+    @Override
+    protected void ensureCapacity(int n) {
+        if (n > capacity) {
+            capacity = n;
+            strengths = ensureCapacity(strengths, capacity);
         }
     }
 
+    @Override
+    protected void initNode(int i, N node) {
+        strengths[i] = strength.apply(node);
+    }
+
+    @Override
+    protected void nodesChanged(ListChangeListener.Change<? extends N> c) {
+        super.nodesChanged(c);
+        rebuild = true;
+    }
+
     @Override
     public void force(double alpha) {
-        QuadTree<N, ManyForceQuadNode<N>> tree = QuadTree.quadTree(nodes,
-                N::getX, N::getY, ManyForceQuadNode::new, ManyForceQuadNode::new);
-        tree.visitAfter(this::accumulate);
-        for (N node : nodes) {
-            tree.visit((quad, x1, y1, x2, y2) -> {
-                return apply(node, alpha, quad, x1, y1, x2, y2);
-            });
+        final int n = nodes.size();
+        if (!refit(n)) {
+            tree.clear().addAll(nodes);
+            ensureCapacity(tree.nodeCount() + 1, tree.size());
+            for (int p = 0, m = tree.size(); p < m; ++p) {
+                pointX[p] = builtX[p] = tree.x(p);
+                pointY[p] = builtY[p] = tree.y(p);
+            }
+            refitted = 0;
+            rebuild = false;
+            drift = 0;
+        }
+        tree.visitAfter(accumulate);
+        this.alpha = alpha;
+        final long seed = random.nextLong();
+        if (pool == null || n < PARALLEL_THRESHOLD) {
+            walker.apply(0, n, seed);
+        } else {
+            final int grain = Math.max(CHUNK << 1, n / (pool.getParallelism() << 3));
+            pool.invoke(new ApplyTask(0, n, grain, seed));
+        }
+    }
+
+    /**
+     * Keeps the tree of the previous tick and reads the current positions of its points, unless the tree has to be
+     * rebuilt.
+     *
+     * @return {@code true} if the tree was kept
+     */
+    private boolean refit(int n) {
+        if (rebuild || refitted >= refitTicks || tree.size() != n) return false;
+        final SimulationState state = state();
+        final double[] x = state.x, y = state.y;
+        double drift = 0;
+        for (int p = 0; p < n; ++p) {
+            final int j = tree.data(p).index;
+            pointX[p] = x[j];
+            pointY[p] = y[j];
+            drift = Math.max(drift, Math.max(Math.abs(x[j] - builtX[p]), Math.abs(y[j] - builtY[p])));
+        }
+        if (drift > refitDistance) return false;
+        this.drift = drift;
+        refitted++;
+        return true;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Enables the parallel mode: the tree is still built on the calling thread, then the nodes are split into
+     * ranges that walk the tree as tasks of the pool. Each walker has its own traversal stack and its own split of
+     * the random source, so the result does not depend on the scheduling of the tasks.
+     *
+     * @param pool pool of the traversals, or {@code null} to traverse on the calling thread
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Seeds the random displacements of coincident nodes, making the simulation reproducible.
+     */
+    public void setSeed(long seed) {
+        this.random = new SplittableRandom(seed);
+    }
+
+    public int getRefitTicks() {
+        return refitTicks;
+    }
+
+    /**
+     * Enables the refit mode, which pays off in the long low-alpha tail of a layout where nodes barely move.
+     * After a full build the tree is kept for up to the given number of ticks: the points stay in their leaves,
+     * only the charges and centroids are recomputed bottom-up from the current positions. To bound the error of
+     * the approximation, every quadrant is treated as if it were larger by the distance the points have moved
+     * since the build, and the tree is rebuilt as soon as that distance exceeds {@link #setRefitDistance}, or when
+     * the node list changes.
+     *
+     * @param refitTicks number of ticks between full builds, zero to rebuild the tree on every tick
+     */
+    public void setRefitTicks(int refitTicks) {
+        if (refitTicks < 0) throw new IllegalArgumentException("refit ticks must not be negative");
+        this.refitTicks = refitTicks;
+    }
+
+    public double getRefitDistance() {
+        return refitDistance;
+    }
+
+    /**
+     * @param refitDistance largest distance along an axis that a node may move before a refitted tree is rebuilt
+     */
+    public void setRefitDistance(double refitDistance) {
+        this.refitDistance = refitDistance;
+    }
+
+    private void ensureCapacity(int internalNodes, int points) {
+        if (values.length < internalNodes) {
+            int capacity = Math.max(internalNodes, values.length << 1);
+            values = new double[capacity];
+            centerX = new double[capacity];
+            centerY = new double[capacity];
+        }
+        if (pointValues.length < points) {
+            final int capacity = Math.max(points, pointValues.length << 1);
+            pointValues = new double[capacity];
+            pointX = new double[capacity];
+            pointY = new double[capacity];
+            builtX = new double[capacity];
+            builtY = new double[capacity];
         }
     }
 
-    private boolean apply(N node, double alpha, ManyForceQuadNode<N> quad, double x1, double y1, double x2, double y2) {
-        if (Double.isNaN(quad.value) || Double.compare(quad.value, 0) == 0) return true;
+    private double value(int quad) {
+        return quad > 0 ? values[quad] : pointValues[point(quad)];
+    }
+
+    private double x(int quad) {
+        return quad > 0 ? centerX[quad] : pointX[point(quad)];
+    }
+
+    private double y(int quad) {
+        return quad > 0 ? centerY[quad] : pointY[point(quad)];
+    }
+
+    /**
+     * Number of nodes from which the traversals run in parallel
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 10;
+
+    /**
+     * Number of nodes that share a random generator. Parallel tasks traverse whole chunks.
+     */
+    private static final int CHUNK = 1 << 7;
 
-        double x = quad.x - node.getX(),
-                y = quad.y - node.getY(),
-                w = x2 - x1,
-                l = x * x + y * y;
+    /**
+     * Walks the tree for one node after another and accumulates the forces applied to each of them. The tree and
+     * the aggregates are only read, and every node's velocity is written by exactly one walker, so walkers of
+     * disjoint ranges of nodes can run at the same time.
+     */
+    private final class Walker implements PackedVisitor {
+        private SplittableRandom random;
+        private long seed;
+        private N current;
+        private double currentX;
+        private double currentY;
+        private double currentVx;
+        private double currentVy;
 
-        // Apply the Barnes-Hut approximation if possible.
-        // Limit forces for very close nodes; randomize direction if coincident.
-        if (w * w / theta2 < l) {
-            if (l < distanceMax2) {
+        /**
+         * Applies the forces to the nodes at positions {@code [from, to)} of the node list, {@code from} being the
+         * first position of a chunk.
+         */
+        void apply(int from, int to, long seed) {
+            final SimulationState state = state();
+            final double[] x = state.x, y = state.y, vx = state.vx, vy = state.vy;
+            for (int i = from; i < to; i++) {
+                if (i % CHUNK == 0) {
+                    // The generator of a chunk is only created if a node of the chunk needs a displacement.
+                    this.random = null;
+                    this.seed = seed + (i / CHUNK) * 0x9E3779B97F4A7C15L;
+                }
+                N node = nodes.get(i);
+                final int j = node.index;
+                current = node;
+                currentX = x[j];
+                currentY = y[j];
+                currentVx = vx[j];
+                currentVy = vy[j];
+                tree.visit(this);
+                vx[j] = currentVx;
+                vy[j] = currentVy;
+            }
+            current = null;
+        }
+
+        private double jiggle() {
+            if (random == null) random = new SplittableRandom(seed);
+            return (random.nextDouble() - 0.5) * 1e-6;
+        }
+
+        @Override
+        public boolean visit(int quad, double x1, double y1, double x2, double y2) {
+            double value = value(quad);
+            if (Double.isNaN(value) || Double.compare(value, 0) == 0) return true;
+
+            double x = x(quad) - currentX,
+                    y = y(quad) - currentY,
+                    w = x2 - x1 + 2 * drift,
+                    l = x * x + y * y;
+
+            // Apply the Barnes-Hut approximation if possible.
+            // Limit forces for very close nodes; randomize direction if coincident.
+            if (w * w / theta2 < l) {
+                if (l < distanceMax2) {
+                    if (Double.compare(x, 0) == 0) {
+                        x = jiggle();
+                        l += x * x;
+                    }
+                    if (Double.compare(y, 0) == 0) {
+                        y = jiggle();
+                        l += y * y;
+                    }
+                    if (l < distanceMin2) {
+                        l = Math.sqrt(distanceMin2 * l);
+                    }
+                    currentVx += x * value * alpha / l;
+                    currentVy += y * value * alpha / l;
+                }
+                return true;
+            }
+            // Otherwise, process points directly.
+            else if (quad > 0 || l >= distanceMax2) return false;
+
+            final N node = current;
+            int p = point(quad);
+
+            // Limit forces for very close nodes; randomize direction if coincident.
+            if ((tree.data(p) != node) || (tree.next(p) >= 0)) {
                 if (Double.compare(x, 0) == 0) {
-                    x = ForceAnimation.jiggle();
+                    x = jiggle();
                     l += x * x;
                 }
                 if (Double.compare(y, 0) == 0) {
-                    y = ForceAnimation.jiggle();
+                    y = jiggle();
                     l += y * y;
                 }
                 if (l < distanceMin2) {
                     l = Math.sqrt(distanceMin2 * l);
                 }
-                node.vx += x * quad.value * alpha / l;
-                node.vy += y * quad.value * alpha / l;
-            }
-            return true;
-        }
-        // Otherwise, process points directly.
-        else if (quad.hasChildren() || l >= distanceMax2) return false;
-
-        // Limit forces for very close nodes; randomize direction if coincident.
-        if ((quad.data != node) || (quad.next != null)) {
-            if (Double.compare(x, 0) == 0) {
-                x = ForceAnimation.jiggle();
-                l += x * x;
             }
-            if (Double.compare(y, 0) == 0) {
-                y = ForceAnimation.jiggle();
-                l += y * y;
-            }
-            if (l < distanceMin2) {
-                l = Math.sqrt(distanceMin2 * l);
-            }
-        }
 
-        do if (quad.data != node) {
-            w = strengths[quad.data.index] * alpha / l;
-            node.vx += x * w;
-            node.vy += y * w;
-        } while ((quad = quad.next) != null);
+            do if (tree.data(p) != node) {
+                w = strengths[p] * alpha / l;
+                currentVx += x * w;
+                currentVy += y * w;
+            } while ((p = tree.next(p)) >= 0);
 
-        return false;
+            return false;
+        }
     }
 
-    private boolean accumulate(ManyForceQuadNode<N> quad, double x1, double y1, double x2, double y2) {
-        //System.out.println(quad);
+    private final class ApplyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
 
-        ManyForceQuadNode<N> q;
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final long seed;
+
+        ApplyTask(int from, int to, int grain, long seed) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.seed = seed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                new Walker().apply(from, to, seed);
+                return;
+            }
+            final int mid = ((from + to) >>> 1) / CHUNK * CHUNK;
+            invokeAll(new ApplyTask(from, mid, grain, seed), new ApplyTask(mid, to, grain, seed));
+        }
+    }
+
+    private boolean accumulate(int quad, double x1, double y1, double x2, double y2) {
         double strength = 0, c, weight = 0, x, y;
-        int i;
+        int q, i;
 
         // For internal nodes, accumulate forces from child quadrants.
-        if (quad.hasChildren()) {
+        if (quad > 0) {
             x = y = 0;
             for (i = 0; i < 4; ++i) {
-                if ((q = quad.get(i)) != null && Double.compare(c = Math.abs(q.value), 0) != 0) {
-                    strength += q.value;
+                if ((q = tree.child(quad, i)) != PackedQuadTree.EMPTY && Double.compare(c = Math.abs(value(q)), 0) != 0) {
+                    strength += value(q);
                     weight += c;
-                    x += c * q.x;
-                    y += c * q.y;
+                    x += c * x(q);
+                    y += c * y(q);
                 }
             }
-            quad.x = x / weight;
-            quad.y = y / weight;
+            centerX[quad] = x / weight;
+            centerY[quad] = y / weight;
+            values[quad] = strength;
         }
         // For leaf nodes, accumulate forces from coincident quadrants.
         else {
-            q = quad;
-            q.x = q.data.getX();
-            q.y = q.data.getY();
+            q = point(quad);
             do {
-                strength += strengths[q.data.index];
-            } while ((q = q.next) != null);
+                strength += strengths[q];
+            } while ((q = tree.next(q)) >= 0);
+            pointValues[point(quad)] = strength;
         }
 
-        quad.value = strength;
-
         return false;
     }
-
-    private static class ManyForceQuadNode<N extends ForcedNode> extends QuadNode<N, ManyForceQuadNode<N>> {
-        private double value = Double.NaN;
-        private double x;
-        private double y;
-
-        public ManyForceQuadNode() {
-        }
-
-        public ManyForceQuadNode(N data) {
-            super(data);
-        }
-    }
 }
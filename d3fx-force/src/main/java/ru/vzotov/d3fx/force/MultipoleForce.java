@@ -0,0 +1,531 @@
+package ru.vzotov.d3fx.force;
+
+import ru.vzotov.d3fx.quadtree.PackedQuadTree;
+import ru.vzotov.d3fx.quadtree.PackedVisitor;
+import javafx.collections.ObservableList;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.function.Function;
+
+import static ru.vzotov.d3fx.quadtree.PackedQuadTree.EMPTY;
+import static ru.vzotov.d3fx.quadtree.PackedQuadTree.point;
+
+/**
+ * Many-body force evaluated with a fast multipole method, an alternative to {@link ManyBodyForce} for graphs of
+ * hundreds of thousands of nodes.
+ * <p>
+ * Nodes act on each other exactly as in {@link ManyBodyForce}: the force is proportional to the strength and
+ * inversely proportional to the distance. It is the gradient of a logarithmic potential, so the nodes of a quadrant
+ * can be described by a complex multipole expansion about its center. Expansions are built bottom-up on the same
+ * quadtree, then pairs of quadrants are walked from the root down: a pair that is well separated exchanges its
+ * expansions as local expansions, other pairs are split, and close leaves interact directly. Finally the local
+ * expansions are pushed down to the nodes. The number of interactions grows linearly with the number of nodes.
+ * <p>
+ * The accuracy is controlled by the {@link #setOrder order} of the expansions and by {@link #setTheta theta}, the
+ * largest ratio of the radii of two quadrants to their distance for which they are considered well separated. Unlike
+ * {@link ManyBodyForce}, the force has no maximum distance.
+ */
+public class MultipoleForce<N extends ForcedNode<?>> extends CustomizableForce<N> {
+
+    private Function<N, Double> strength;
+    private double distanceMin2 = 1;
+    private double theta2 = 0.36;
+    private int order;
+    private double[] strengths = new double[DEFAULT_CAPACITY];
+    private int capacity = DEFAULT_CAPACITY;
+
+    /**
+     * Tree and expansions are kept between ticks. Expansions are stored for internal nodes only, by node handle,
+     * as {@code order + 1} complex coefficients: a leaf is a single charge at the position of its points.
+     */
+    private final PackedQuadTree<N> tree = new PackedQuadTree<>(n -> state().x[n.index], n -> state().y[n.index]);
+    private double[] multipoles = new double[0];
+    private double[] locals = new double[0];
+    private double[] centerX = new double[0];
+    private double[] centerY = new double[0];
+    private double[] radii = new double[0];
+    private double[] pointValues = new double[0];
+    private final PackedVisitor upward = this::upward;
+    private final PackedVisitor downward = this::downward;
+
+    /**
+     * Velocity change of every point before it is scaled by alpha, by position in the node list
+     */
+    private double[] fieldX = new double[0];
+    private double[] fieldY = new double[0];
+
+    /**
+     * Binomial coefficients and scratch space of the expansion operators, sized by the order
+     */
+    private double[][] binomial;
+    private double[] powRe;
+    private double[] powIm;
+    private double[] termRe;
+    private double[] termIm;
+
+    /**
+     * Source of the random displacements of coincident nodes
+     */
+    private SplittableRandom random = new SplittableRandom();
+
+    public MultipoleForce(ObservableList<N> nodes) {
+        this(nodes, (node) -> -30d);
+    }
+
+    public MultipoleForce(ObservableList<N> nodes, Function<N, Double> strength) {
+        super(nodes);
+        this.strength = strength;
+        setOrder(DEFAULT_ORDER);
+        initialize();
+    }
+
+    @Override
+    protected void ensureCapacity(int n) {
+        if (n > capacity) {
+            capacity = n;
+            strengths = ensureCapacity(strengths, capacity);
+        }
+    }
+
+    @Override
+    protected void initNode(int i, N node) {
+        strengths[i] = strength.apply(node);
+    }
+
+    @Override
+    public void force(double alpha) {
+        final SimulationState state = state();
+        final int n = nodes.size();
+        tree.clear().addAll(nodes);
+        ensureCapacity(tree.nodeCount() + 1, tree.size());
+        Arrays.fill(fieldX, 0, n, 0);
+        Arrays.fill(fieldY, 0, n, 0);
+
+        final int root = tree.root();
+        if (root != EMPTY) {
+            tree.visitAfter(upward);
+            Arrays.fill(locals, 0, (tree.nodeCount() + 1) * stride(), 0);
+            self(root);
+            tree.visit(downward);
+        }
+
+        final double[] vx = state.vx, vy = state.vy;
+        for (int p = 0; p < n; ++p) {
+            final int j = nodes.get(p).index;
+            vx[j] += fieldX[p] * alpha;
+            vy[j] += fieldY[p] * alpha;
+        }
+    }
+
+    private void ensureCapacity(int internalNodes, int points) {
+        if (centerX.length < internalNodes) {
+            final int capacity = Math.max(internalNodes, centerX.length << 1);
+            centerX = new double[capacity];
+            centerY = new double[capacity];
+            radii = new double[capacity];
+            multipoles = new double[capacity * stride()];
+            locals = new double[capacity * stride()];
+        }
+        if (pointValues.length < points) {
+            final int capacity = Math.max(points, pointValues.length << 1);
+            pointValues = new double[capacity];
+            fieldX = new double[capacity];
+            fieldY = new double[capacity];
+        }
+    }
+
+    /**
+     * @return number of doubles of the expansion of one node
+     */
+    private int stride() {
+        return (order + 1) << 1;
+    }
+
+    private double x(int quad) {
+        return quad > 0 ? centerX[quad] : tree.x(point(quad));
+    }
+
+    private double y(int quad) {
+        return quad > 0 ? centerY[quad] : tree.y(point(quad));
+    }
+
+    private double radius(int quad) {
+        return quad > 0 ? radii[quad] : 0;
+    }
+
+    /**
+     * Computes the charge of every leaf and the center, the radius and the multipole expansion of every internal
+     * node from those of its children.
+     */
+    private boolean upward(int quad, double x0, double y0, double x1, double y1) {
+        if (quad < 0) {
+            double value = 0;
+            int p = point(quad);
+            do {
+                value += strengths[p];
+            } while ((p = tree.next(p)) >= 0);
+            pointValues[point(quad)] = value;
+            return false;
+        }
+        final double cx = centerX[quad] = (x0 + x1) / 2, cy = centerY[quad] = (y0 + y1) / 2;
+        final int m = quad * stride();
+        Arrays.fill(multipoles, m, m + stride(), 0);
+        double r = 0;
+        for (int i = 0; i < 4; ++i) {
+            final int child = tree.child(quad, i);
+            if (child == EMPTY) continue;
+            final double dx = x(child) - cx, dy = y(child) - cy;
+            r = Math.max(r, Math.sqrt(dx * dx + dy * dy) + radius(child));
+            if (child > 0) {
+                shiftMultipole(child * stride(), dx, dy, m);
+            } else {
+                addCharge(pointValues[point(child)], dx, dy, m);
+            }
+        }
+        radii[quad] = r;
+        return false;
+    }
+
+    /**
+     * Pushes the local expansion of every internal node to its internal children and evaluates it at its leaves.
+     */
+    private boolean downward(int quad, double x0, double y0, double x1, double y1) {
+        if (quad < 0) return true;
+        final int l = quad * stride();
+        final double cx = centerX[quad], cy = centerY[quad];
+        for (int i = 0; i < 4; ++i) {
+            final int child = tree.child(quad, i);
+            if (child == EMPTY) continue;
+            if (child > 0) {
+                shiftLocal(l, centerX[child] - cx, centerY[child] - cy, child * stride());
+            } else {
+                evaluateLocal(l, tree.x(point(child)) - cx, tree.y(point(child)) - cy, child);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Interactions of the nodes within a quadrant.
+     */
+    private void self(int quad) {
+        if (quad < 0) {
+            for (int p = point(quad); p >= 0; p = tree.next(p)) {
+                for (int q = tree.next(p); q >= 0; q = tree.next(q)) {
+                    direct(p, q);
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < 4; ++i) {
+            final int a = tree.child(quad, i);
+            if (a == EMPTY) continue;
+            self(a);
+            for (int j = i + 1; j < 4; ++j) {
+                final int b = tree.child(quad, j);
+                if (b != EMPTY) interact(a, b);
+            }
+        }
+    }
+
+    /**
+     * Interactions between the nodes of two disjoint quadrants.
+     */
+    private void interact(int a, int b) {
+        if (a < 0 && b < 0) {
+            for (int p = point(a); p >= 0; p = tree.next(p)) {
+                for (int q = point(b); q >= 0; q = tree.next(q)) {
+                    direct(p, q);
+                }
+            }
+            return;
+        }
+        final double dx = x(b) - x(a), dy = y(b) - y(a), r = radius(a) + radius(b), l = dx * dx + dy * dy;
+        // Expansions do not limit the force of close nodes, so they are only used if no pair can be that close.
+        if (r * r < theta2 * l && Math.sqrt(l) - r >= getDistanceMin()) {
+            far(a, b, dx, dy);
+            far(b, a, -dx, -dy);
+        } else if (b < 0 || (a > 0 && radius(a) >= radius(b))) {
+            for (int i = 0; i < 4; ++i) {
+                final int child = tree.child(a, i);
+                if (child != EMPTY) interact(child, b);
+            }
+        } else {
+            for (int i = 0; i < 4; ++i) {
+                final int child = tree.child(b, i);
+                if (child != EMPTY) interact(a, child);
+            }
+        }
+    }
+
+    /**
+     * Adds the field of the nodes of a source quadrant to a well separated target quadrant.
+     *
+     * @param dx offset of the center of the source from the center of the target
+     * @param dy offset of the center of the source from the center of the target
+     */
+    private void far(int target, int source, double dx, double dy) {
+        if (target > 0 && source > 0) {
+            translate(source * stride(), dx, dy, target * stride());
+        } else if (target > 0) {
+            addLocalCharge(pointValues[point(source)], dx, dy, target * stride());
+        } else {
+            evaluateMultipole(source * stride(), -dx, -dy, target);
+        }
+    }
+
+    /**
+     * Direct interaction of two points.
+     */
+    private void direct(int p, int q) {
+        double x = tree.x(q) - tree.x(p),
+                y = tree.y(q) - tree.y(p),
+                l = x * x + y * y;
+        if (Double.compare(x, 0) == 0) {
+            x = jiggle(random);
+            l += x * x;
+        }
+        if (Double.compare(y, 0) == 0) {
+            y = jiggle(random);
+            l += y * y;
+        }
+        if (l < distanceMin2) {
+            l = Math.sqrt(distanceMin2 * l);
+        }
+        double w = strengths[q] / l;
+        fieldX[p] += x * w;
+        fieldY[p] += y * w;
+        w = strengths[p] / l;
+        fieldX[q] -= x * w;
+        fieldY[q] -= y * w;
+    }
+
+    /**
+     * Adds a charge at offset {@code z} from the center to the multipole expansion at {@code m}:
+     * {@code a0 += q, ak -= q z^k / k}.
+     */
+    private void addCharge(double q, double zr, double zi, int m) {
+        multipoles[m] += q;
+        double pr = 1, pi = 0, t;
+        for (int k = 1; k <= order; ++k) {
+            t = pr * zr - pi * zi;
+            pi = pr * zi + pi * zr;
+            pr = t;
+            multipoles[m + 2 * k] -= q * pr / k;
+            multipoles[m + 2 * k + 1] -= q * pi / k;
+        }
+    }
+
+    /**
+     * Adds the multipole expansion at {@code from}, centered at offset {@code z} from the center of the expansion at
+     * {@code to}, to the latter: {@code bl += -a0 z^l / l + sum(k = 1..l) ak z^(l-k) C(l-1, k-1)}.
+     */
+    private void shiftMultipole(int from, double zr, double zi, int to) {
+        powers(zr, zi, order);
+        final double a0 = multipoles[from];
+        multipoles[to] += a0;
+        for (int l = 1; l <= order; ++l) {
+            double sr = -a0 * powRe[l] / l, si = -a0 * powIm[l] / l;
+            for (int k = 1; k <= l; ++k) {
+                final double ar = multipoles[from + 2 * k], ai = multipoles[from + 2 * k + 1], c = binomial[l - 1][k - 1];
+                sr += c * (ar * powRe[l - k] - ai * powIm[l - k]);
+                si += c * (ar * powIm[l - k] + ai * powRe[l - k]);
+            }
+            multipoles[to + 2 * l] += sr;
+            multipoles[to + 2 * l + 1] += si;
+        }
+    }
+
+    /**
+     * Converts the multipole expansion at {@code from}, centered at offset {@code z} from the center of the local
+     * expansion at {@code to}, and adds it to the latter:
+     * {@code bl += z^-l (-a0 / l + sum(k = 1..p) ak (-z)^-k C(l+k-1, k-1))}. The constant term is not needed.
+     */
+    private void translate(int from, double zr, double zi, int to) {
+        final double d = zr * zr + zi * zi, wr = zr / d, wi = -zi / d;
+        final double a0 = multipoles[from];
+        double pr = 1, pi = 0, t;
+        for (int k = 1; k <= order; ++k) {
+            t = -(pr * wr - pi * wi);
+            pi = -(pr * wi + pi * wr);
+            pr = t;
+            final double ar = multipoles[from + 2 * k], ai = multipoles[from + 2 * k + 1];
+            termRe[k] = ar * pr - ai * pi;
+            termIm[k] = ar * pi + ai * pr;
+        }
+        pr = 1;
+        pi = 0;
+        for (int l = 1; l <= order; ++l) {
+            t = pr * wr - pi * wi;
+            pi = pr * wi + pi * wr;
+            pr = t;
+            double sr = -a0 / l, si = 0;
+            for (int k = 1; k <= order; ++k) {
+                final double c = binomial[l + k - 1][k - 1];
+                sr += c * termRe[k];
+                si += c * termIm[k];
+            }
+            locals[to + 2 * l] += sr * pr - si * pi;
+            locals[to + 2 * l + 1] += sr * pi + si * pr;
+        }
+    }
+
+    /**
+     * Adds the local expansion of a charge at offset {@code z} from the center of the expansion at {@code to}:
+     * {@code bl += -q z^-l / l}.
+     */
+    private void addLocalCharge(double q, double zr, double zi, int to) {
+        final double d = zr * zr + zi * zi, wr = zr / d, wi = -zi / d;
+        double pr = 1, pi = 0, t;
+        for (int l = 1; l <= order; ++l) {
+            t = pr * wr - pi * wi;
+            pi = pr * wi + pi * wr;
+            pr = t;
+            locals[to + 2 * l] -= q * pr / l;
+            locals[to + 2 * l + 1] -= q * pi / l;
+        }
+    }
+
+    /**
+     * Adds the local expansion at {@code from}, re-centered at offset {@code z} from its center, to the local
+     * expansion at {@code to}: {@code b'l += sum(k = l..p) bk C(k, l) z^(k-l)}.
+     */
+    private void shiftLocal(int from, double zr, double zi, int to) {
+        powers(zr, zi, order);
+        for (int l = 1; l <= order; ++l) {
+            double sr = 0, si = 0;
+            for (int k = l; k <= order; ++k) {
+                final double br = locals[from + 2 * k], bi = locals[from + 2 * k + 1], c = binomial[k][l];
+                sr += c * (br * powRe[k - l] - bi * powIm[k - l]);
+                si += c * (br * powIm[k - l] + bi * powRe[k - l]);
+            }
+            locals[to + 2 * l] += sr;
+            locals[to + 2 * l + 1] += si;
+        }
+    }
+
+    /**
+     * Adds the field of the local expansion at {@code from}, evaluated at offset {@code z} from its center, to the
+     * points of a leaf. The field is the derivative of the potential, {@code sum(k = 1..p) k bk z^(k-1)}.
+     */
+    private void evaluateLocal(int from, double zr, double zi, int leaf) {
+        double er = 0, ei = 0, t;
+        for (int k = order; k >= 1; --k) {
+            t = er * zr - ei * zi + k * locals[from + 2 * k];
+            ei = er * zi + ei * zr + k * locals[from + 2 * k + 1];
+            er = t;
+        }
+        addField(leaf, er, ei);
+    }
+
+    /**
+     * Adds the field of the multipole expansion at {@code from}, evaluated at offset {@code z} from its center, to
+     * the points of a leaf: {@code a0 / z - sum(k = 1..p) k ak / z^(k+1)}.
+     */
+    private void evaluateMultipole(int from, double zr, double zi, int leaf) {
+        final double d = zr * zr + zi * zi, ur = zr / d, ui = -zi / d;
+        final double a0 = multipoles[from];
+        double er = a0 * ur, ei = a0 * ui, pr = ur, pi = ui, t;
+        for (int k = 1; k <= order; ++k) {
+            t = pr * ur - pi * ui;
+            pi = pr * ui + pi * ur;
+            pr = t;
+            final double ar = multipoles[from + 2 * k], ai = multipoles[from + 2 * k + 1];
+            er -= k * (ar * pr - ai * pi);
+            ei -= k * (ar * pi + ai * pr);
+        }
+        addField(leaf, er, ei);
+    }
+
+    /**
+     * Adds the derivative {@code e} of the complex potential to the points of a leaf. A node moves along the
+     * conjugate of the derivative, in the direction opposite to it.
+     */
+    private void addField(int leaf, double er, double ei) {
+        for (int p = point(leaf); p >= 0; p = tree.next(p)) {
+            fieldX[p] -= er;
+            fieldY[p] += ei;
+        }
+    }
+
+    private void powers(double zr, double zi, int n) {
+        powRe[0] = 1;
+        powIm[0] = 0;
+        for (int k = 1; k <= n; ++k) {
+            powRe[k] = powRe[k - 1] * zr - powIm[k - 1] * zi;
+            powIm[k] = powRe[k - 1] * zi + powIm[k - 1] * zr;
+        }
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * Sets the number of terms of the expansions. The error decreases roughly as {@code theta^order}, while the
+     * time spent in the expansions grows as {@code order^2}.
+     *
+     * @param order order of the expansions, at least 1
+     */
+    public void setOrder(int order) {
+        if (order < 1) throw new IllegalArgumentException("order must be positive");
+        if (order == this.order) return;
+        this.order = order;
+        binomial = new double[2 * order + 1][];
+        for (int n = 0; n < binomial.length; ++n) {
+            binomial[n] = new double[n + 1];
+            binomial[n][0] = binomial[n][n] = 1;
+            for (int k = 1; k < n; ++k) {
+                binomial[n][k] = binomial[n - 1][k - 1] + binomial[n - 1][k];
+            }
+        }
+        powRe = new double[order + 1];
+        powIm = new double[order + 1];
+        termRe = new double[order + 1];
+        termIm = new double[order + 1];
+        multipoles = new double[centerX.length * stride()];
+        locals = new double[centerX.length * stride()];
+    }
+
+    public double getTheta() {
+        return Math.sqrt(theta2);
+    }
+
+    /**
+     * @param theta largest ratio of the sum of the radii of two quadrants to the distance between their centers for
+     *              which they interact through their expansions, between 0 and 1
+     */
+    public void setTheta(double theta) {
+        this.theta2 = theta * theta;
+    }
+
+    public double getDistanceMin() {
+        return Math.sqrt(distanceMin2);
+    }
+
+    public void setDistanceMin(double distanceMin) {
+        this.distanceMin2 = distanceMin * distanceMin;
+    }
+
+    /**
+     * Seeds the random displacements of coincident nodes, making the simulation reproducible.
+     */
+    public void setSeed(long seed) {
+        this.random = new SplittableRandom(seed);
+    }
+
+    public Function<N, Double> getStrength() {
+        return strength;
+    }
+
+    public void setStrength(Function<N, Double> strength) {
+        this.strength = strength;
+        initialize();
+    }
+
+    /**
+     * Default order of the expansions
+     */
+    private static final int DEFAULT_ORDER = 8;
+}
@@ -0,0 +1,268 @@
+package ru.vzotov.d3fx.force;
+
+import javafx.collections.ObservableList;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Many-body force evaluated on a regular grid, an alternative to {@link ManyBodyForce} for huge graphs where only
+ * the overall repulsion matters.
+ * <p>
+ * Every tick the grid is stretched over the bounding box of the nodes, and the strength of every node is
+ * deposited onto the four grid points around it with bilinear (cloud-in-cell) weights. The field of the grid is the
+ * convolution of the charges with the field of a unit charge, {@code d / |d|^2} as in {@link ManyBodyForce},
+ * computed with a fast Fourier transform. The grid is padded to twice its size, so that charges do not wrap around.
+ * The field is interpolated back to the nodes with the same weights, so a node does not act on itself. The cost is
+ * linear in the number of nodes plus {@code O(g^2 log g)} for a grid of {@code g x g} points, without a tree.
+ * <p>
+ * Forces between nodes that are closer than a couple of grid cells are smoothed out, so the force is usually
+ * combined with a {@link CollideForce} or a {@link LinkForce} that keeps close nodes apart.
+ */
+public class ParticleMeshForce<N extends ForcedNode<?>> extends CustomizableForce<N> {
+
+    private Function<N, Double> strength;
+    private double[] strengths = new double[DEFAULT_CAPACITY];
+    private int capacity = DEFAULT_CAPACITY;
+
+    /**
+     * Number of grid points along an axis, and of the padded grid
+     */
+    private int gridSize;
+    private int size;
+
+    /**
+     * Padded grid, row by row: charges before the transform, the field after it, the real part being the
+     * x-component. The kernel holds the transform of the field of a unit charge.
+     */
+    private double[] re;
+    private double[] im;
+    private double[] kernelRe;
+    private double[] kernelIm;
+
+    /**
+     * Twiddle factors and bit reversal permutation of a transform of {@link #size} points
+     */
+    private double[] cos;
+    private double[] sin;
+    private int[] reversed;
+
+    public ParticleMeshForce(ObservableList<N> nodes) {
+        this(nodes, (node) -> -30d);
+    }
+
+    public ParticleMeshForce(ObservableList<N> nodes, Function<N, Double> strength) {
+        super(nodes);
+        this.strength = strength;
+        setGridSize(DEFAULT_GRID_SIZE);
+        initialize();
+    }
+
+    @Override
+    protected void ensureCapacity(int n) {
+        if (n > capacity) {
+            capacity = n;
+            strengths = ensureCapacity(strengths, capacity);
+        }
+    }
+
+    @Override
+    protected void initNode(int i, N node) {
+        strengths[i] = strength.apply(node);
+    }
+
+    @Override
+    public void force(double alpha) {
+        final SimulationState state = state();
+        final double[] x = state.x, y = state.y, vx = state.vx, vy = state.vy;
+        final int n = nodes.size(), g = gridSize, m = size;
+
+        double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+        double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; ++i) {
+            final int j = nodes.get(i).index;
+            if (Double.isNaN(x[j]) || Double.isNaN(y[j])) continue;
+            x0 = Math.min(x0, x[j]);
+            y0 = Math.min(y0, y[j]);
+            x1 = Math.max(x1, x[j]);
+            y1 = Math.max(y1, y[j]);
+        }
+        if (x0 > x1) return;
+        double h = Math.max(x1 - x0, y1 - y0) / (g - 1);
+        if (!(h > 0)) h = 1;
+
+        // Deposit the charges.
+        Arrays.fill(re, 0);
+        Arrays.fill(im, 0);
+        for (int i = 0; i < n; ++i) {
+            final int j = nodes.get(i).index;
+            if (Double.isNaN(x[j]) || Double.isNaN(y[j])) continue;
+            final double gx = (x[j] - x0) / h, gy = (y[j] - y0) / h;
+            final int cx = Math.min((int) gx, g - 2), cy = Math.min((int) gy, g - 2), c = cy * m + cx;
+            final double tx = gx - cx, ty = gy - cy, s = strengths[i];
+            re[c] += s * (1 - tx) * (1 - ty);
+            re[c + 1] += s * tx * (1 - ty);
+            re[c + m] += s * (1 - tx) * ty;
+            re[c + m + 1] += s * tx * ty;
+        }
+
+        // Convolve with the kernel. Only the first g rows hold charges, and only they are needed in the result.
+        forward(re, im, g);
+        for (int c = 0, cells = m * m; c < cells; ++c) {
+            final double r = re[c] * kernelRe[c] - im[c] * kernelIm[c];
+            im[c] = re[c] * kernelIm[c] + im[c] * kernelRe[c];
+            re[c] = r;
+        }
+        inverse(re, im, g);
+
+        // Interpolate the field.
+        final double scale = alpha / (h * m * m);
+        for (int i = 0; i < n; ++i) {
+            final int j = nodes.get(i).index;
+            if (Double.isNaN(x[j]) || Double.isNaN(y[j])) continue;
+            final double gx = (x[j] - x0) / h, gy = (y[j] - y0) / h;
+            final int cx = Math.min((int) gx, g - 2), cy = Math.min((int) gy, g - 2), c = cy * m + cx;
+            final double tx = gx - cx, ty = gy - cy;
+            final double w00 = (1 - tx) * (1 - ty), w10 = tx * (1 - ty), w01 = (1 - tx) * ty, w11 = tx * ty;
+            vx[j] += scale * (re[c] * w00 + re[c + 1] * w10 + re[c + m] * w01 + re[c + m + 1] * w11);
+            vy[j] += scale * (im[c] * w00 + im[c + 1] * w10 + im[c + m] * w01 + im[c + m + 1] * w11);
+        }
+    }
+
+    /**
+     * Two-dimensional transform of the padded grid. Rows are transformed, the grid is transposed and the rows are
+     * transformed again, so the result is transposed. That does not matter for the product with the kernel, which
+     * is transformed in the same way, and {@link #inverse} transposes it back.
+     *
+     * @param rows number of leading rows that may be non-zero
+     */
+    private void forward(double[] re, double[] im, int rows) {
+        for (int r = 0; r < rows; ++r) {
+            row(re, im, r * size, false);
+        }
+        transpose(re);
+        transpose(im);
+        for (int r = 0; r < size; ++r) {
+            row(re, im, r * size, false);
+        }
+    }
+
+    /**
+     * Inverse of {@link #forward}, without the scaling by the number of cells.
+     *
+     * @param rows number of leading rows that are needed in the result
+     */
+    private void inverse(double[] re, double[] im, int rows) {
+        for (int r = 0; r < size; ++r) {
+            row(re, im, r * size, true);
+        }
+        transpose(re);
+        transpose(im);
+        for (int r = 0; r < rows; ++r) {
+            row(re, im, r * size, true);
+        }
+    }
+
+    /**
+     * In-place radix-2 transform of the row starting at {@code offset}.
+     */
+    private void row(double[] re, double[] im, int offset, boolean inverse) {
+        final int m = size;
+        for (int i = 0; i < m; ++i) {
+            final int j = reversed[i];
+            if (j > i) {
+                double t = re[offset + i];
+                re[offset + i] = re[offset + j];
+                re[offset + j] = t;
+                t = im[offset + i];
+                im[offset + i] = im[offset + j];
+                im[offset + j] = t;
+            }
+        }
+        final double sign = inverse ? 1 : -1;
+        for (int half = 1, step = m >> 1; half < m; half <<= 1, step >>= 1) {
+            for (int start = offset, end = offset + m; start < end; start += half << 1) {
+                for (int k = 0; k < half; ++k) {
+                    final double wr = cos[k * step], wi = sign * sin[k * step];
+                    final int a = start + k, b = a + half;
+                    final double tr = re[b] * wr - im[b] * wi, ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    private void transpose(double[] a) {
+        final int m = size;
+        for (int r = 0; r < m; ++r) {
+            for (int c = r + 1; c < m; ++c) {
+                final double t = a[r * m + c];
+                a[r * m + c] = a[c * m + r];
+                a[c * m + r] = t;
+            }
+        }
+    }
+
+    public int getGridSize() {
+        return gridSize;
+    }
+
+    /**
+     * Sets the resolution of the grid. Forces are accurate between nodes that are several cells apart, a cell being
+     * the larger side of the bounding box of the nodes divided by the grid size.
+     *
+     * @param gridSize number of grid points along an axis, a power of two of at least 2
+     */
+    public void setGridSize(int gridSize) {
+        if (gridSize < 2 || Integer.bitCount(gridSize) != 1) {
+            throw new IllegalArgumentException("grid size must be a power of two of at least 2");
+        }
+        if (gridSize == this.gridSize) return;
+        final int g = this.gridSize = gridSize, m = this.size = gridSize << 1;
+
+        cos = new double[m >> 1];
+        sin = new double[m >> 1];
+        for (int k = 0; k < m >> 1; ++k) {
+            cos[k] = Math.cos(2 * Math.PI * k / m);
+            sin[k] = Math.sin(2 * Math.PI * k / m);
+        }
+        reversed = new int[m];
+        final int bits = Integer.numberOfTrailingZeros(m);
+        for (int i = 0; i < m; ++i) {
+            reversed[i] = Integer.reverse(i) >>> (Integer.SIZE - bits);
+        }
+
+        // Field of a unit charge at offset d from it, in cells: -d / |d|^2, the x-component in the real part.
+        re = new double[m * m];
+        im = new double[m * m];
+        kernelRe = new double[m * m];
+        kernelIm = new double[m * m];
+        for (int dy = 1 - g; dy < g; ++dy) {
+            for (int dx = 1 - g; dx < g; ++dx) {
+                if (dx == 0 && dy == 0) continue;
+                final int c = ((dy + m) % m) * m + (dx + m) % m;
+                final double l = dx * dx + dy * dy;
+                kernelRe[c] = -dx / l;
+                kernelIm[c] = -dy / l;
+            }
+        }
+        forward(kernelRe, kernelIm, m);
+    }
+
+    public Function<N, Double> getStrength() {
+        return strength;
+    }
+
+    public void setStrength(Function<N, Double> strength) {
+        this.strength = strength;
+        initialize();
+    }
+
+    /**
+     * Default number of grid points along an axis
+     */
+    private static final int DEFAULT_GRID_SIZE = 128;
+}
@@ -0,0 +1,80 @@
+package ru.vzotov.d3fx.force;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands completed simulation frames from a worker thread to the JavaFX Application Thread.
+ * <p>
+ * The worker copies the state into a spare frame and swaps it in as the newest one; a newer frame replaces an
+ * older one that has not been published yet, and the replaced frame becomes the spare. The FX thread takes the
+ * newest frame, pushes it into the nodes and returns it as the spare. Frames are only exchanged through atomic
+ * references, so neither side waits for the other and no frame is written while it is being published.
+ */
+final class PublishBuffer {
+
+    private static final class Frame {
+        double[] x = new double[0];
+        double[] y = new double[0];
+        double[] vx = new double[0];
+        double[] vy = new double[0];
+        int size;
+
+        void copy(SimulationState state) {
+            final int n = state.size();
+            if (x.length < n) {
+                x = new double[n];
+                y = new double[n];
+                vx = new double[n];
+                vy = new double[n];
+            }
+            System.arraycopy(state.x, 0, x, 0, n);
+            System.arraycopy(state.y, 0, y, 0, n);
+            System.arraycopy(state.vx, 0, vx, 0, n);
+            System.arraycopy(state.vy, 0, vy, 0, n);
+            size = n;
+        }
+    }
+
+    private final AtomicReference<Frame> ready = new AtomicReference<>();
+    private final AtomicReference<Frame> spare = new AtomicReference<>();
+
+    /**
+     * Makes a copy of the state the newest frame. Called by the worker after a tick.
+     */
+    void offer(SimulationState state) {
+        Frame frame = spare.getAndSet(null);
+        if (frame == null) frame = new Frame();
+        frame.copy(state);
+        final Frame stale = ready.getAndSet(frame);
+        if (stale != null) spare.set(stale);
+    }
+
+    /**
+     * Pushes the newest frame, if any, into the nodes. Called on the JavaFX Application Thread. A coordinate that
+     * was set since it was last published is kept, so that it is read into the state before the next tick.
+     *
+     * @return {@code true} if a frame was published
+     */
+    boolean publish(List<? extends ForcedNode<?>> nodes) {
+        final Frame frame = ready.getAndSet(null);
+        if (frame == null) return false;
+        for (int i = 0, n = Math.min(frame.size, nodes.size()); i < n; ++i) {
+            final ForcedNode<?> node = nodes.get(i);
+            node.vx = frame.vx[i];
+            node.vy = frame.vy[i];
+            if (Double.compare(node.getX(), node.px) == 0) node.setX(node.px = frame.x[i]);
+            if (Double.compare(node.getY(), node.py) == 0) node.setY(node.py = frame.y[i]);
+        }
+        spare.set(frame);
+        return true;
+    }
+
+    /**
+     * Drops the newest frame, e.g. because the nodes it was made for have changed.
+     */
+    void discard() {
+        final Frame frame = ready.getAndSet(null);
+        if (frame != null) spare.set(frame);
+    }
+}
@@ -16,15 +16,17 @@ public class RadialForce<N extends ForcedNode<?>> extends CustomizableForce<N> {
 
     @Override
     public void force(double alpha) {
+        final SimulationState state = state();
+        final double[] xs = state.x, ys = state.y, vx = state.vx, vy = state.vy;
         int n = nodes.size();
         for (int i = 0; i < n; ++i) {
-            var node = nodes.get(i);
-            double dx = notZero(node.getX() - x, 1e-6);
-            double dy = notZero(node.getY() - y, 1e-6);
+            final int j = nodes.get(i).index;
+            double dx = notZero(xs[j] - x, 1e-6);
+            double dy = notZero(ys[j] - y, 1e-6);
             double r = Math.sqrt(dx * dx + dy * dy);
             double k = (radiuses[i] - r) * strengths[i] * alpha / r;
-            node.vx += dx * k;
-            node.vy += dy * k;
+            vx[j] += dx * k;
+            vy[j] += dy * k;
         }
     }
 
@@ -0,0 +1,195 @@
+package ru.vzotov.d3fx.force;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Positions, velocities and fixed positions of the nodes of a simulation, in primitive arrays indexed by
+ * {@link ForcedNode#index}.
+ * <p>
+ * Forces read and write these arrays instead of the JavaFX properties of the nodes, so a tick does not go through
+ * bindings or fire listeners. The nodes only see the result when the state is {@link #publish published}, once per
+ * rendered frame. A fixed coordinate is stored as a number, a free one as {@code NaN}. Arrays are replaced when the
+ * number of nodes grows, so they should be read from the fields at the start of every force application rather
+ * than cached.
+ */
+public final class SimulationState {
+
+    private static final int DEFAULT_CAPACITY = 50;
+    private static final double INITIAL_RADIUS = 10;
+    private static final double INITIAL_ANGLE = Math.PI * (3 - Math.sqrt(5));
+    private static final double VELOCITY_DECAY = 0.6;
+
+    /**
+     * Alpha below which a simulation stops, and the decay of alpha per tick that reaches it in 300 ticks
+     */
+    static final double ALPHA_MIN = 0.001d;
+    static final double ALPHA_DECAY = 1 - Math.pow(ALPHA_MIN, 1d / 300d);
+
+    public double[] x = new double[DEFAULT_CAPACITY];
+    public double[] y = new double[DEFAULT_CAPACITY];
+    public double[] vx = new double[DEFAULT_CAPACITY];
+    public double[] vy = new double[DEFAULT_CAPACITY];
+    public double[] fx = new double[DEFAULT_CAPACITY];
+    public double[] fy = new double[DEFAULT_CAPACITY];
+    private int size;
+
+    /**
+     * Motion of the free nodes in the last tick
+     */
+    private double kineticEnergy;
+    private double meanDisplacement;
+    private double maxDisplacement;
+
+    /**
+     * @return number of nodes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return kinetic energy of the free nodes after the last tick, the mass of a node being one and a velocity
+     * being measured per tick
+     */
+    public double kineticEnergy() {
+        return kineticEnergy;
+    }
+
+    /**
+     * @return mean distance moved by a free node in the last tick
+     */
+    public double meanDisplacement() {
+        return meanDisplacement;
+    }
+
+    /**
+     * @return largest distance moved by a free node in the last tick
+     */
+    public double maxDisplacement() {
+        return maxDisplacement;
+    }
+
+    void motion(double kineticEnergy, double meanDisplacement, double maxDisplacement) {
+        this.kineticEnergy = kineticEnergy;
+        this.meanDisplacement = meanDisplacement;
+        this.maxDisplacement = maxDisplacement;
+    }
+
+    /**
+     * Sets the number of nodes, growing the arrays if necessary.
+     *
+     * @param size number of nodes
+     */
+    void resize(int size) {
+        if (size > x.length) {
+            final int capacity = Math.max(size, x.length << 1);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            vx = Arrays.copyOf(vx, capacity);
+            vy = Arrays.copyOf(vy, capacity);
+            fx = Arrays.copyOf(fx, capacity);
+            fy = Arrays.copyOf(fy, capacity);
+        }
+        this.size = size;
+    }
+
+    /**
+     * @return {@code true} if both coordinates of the node are free
+     */
+    public boolean isFree(int i) {
+        return Double.isNaN(fx[i]) && Double.isNaN(fy[i]);
+    }
+
+    /**
+     * Places a node without a position on a phyllotaxis spiral and reads it into slot {@code i}.
+     */
+    void initialize(int i, ForcedNode<?> node) {
+        node.index = i;
+        if (node.fx != null) node.setX(node.fx);
+        if (node.fy != null) node.setY(node.fy);
+        if (Double.isNaN(node.getX()) || Double.isNaN(node.getY())) {
+            double radius = INITIAL_RADIUS * Math.sqrt(0.5 + i), angle = i * INITIAL_ANGLE;
+            node.setX(radius * Math.cos(angle));
+            node.setY(radius * Math.sin(angle));
+        }
+        if (Double.isNaN(node.vx) || Double.isNaN(node.vy)) {
+            node.vx = node.vy = 0;
+        }
+        read(i, node);
+    }
+
+    /**
+     * Copies the position, the velocity and the fixed position of a node into slot {@code i}.
+     */
+    void read(int i, ForcedNode<?> node) {
+        x[i] = node.px = node.getX();
+        y[i] = node.py = node.getY();
+        vx[i] = node.vx;
+        vy[i] = node.vy;
+        fx[i] = node.fx != null ? node.fx : Double.NaN;
+        fy[i] = node.fy != null ? node.fy : Double.NaN;
+    }
+
+    /**
+     * Copies the fixed positions of the nodes, which may be changed between ticks, e.g. by dragging, and the
+     * positions of the nodes that were moved since they were last published.
+     */
+    void readFixed(List<? extends ForcedNode<?>> nodes) {
+        for (int i = 0, n = size; i < n; ++i) {
+            final ForcedNode<?> node = nodes.get(i);
+            fx[i] = node.fx != null ? node.fx : Double.NaN;
+            fy[i] = node.fy != null ? node.fy : Double.NaN;
+            final double nx = node.getX(), ny = node.getY();
+            if (Double.compare(nx, node.px) != 0) x[i] = node.px = nx;
+            if (Double.compare(ny, node.py) != 0) y[i] = node.py = ny;
+        }
+    }
+
+    /**
+     * Pushes the positions and the velocities into the nodes.
+     */
+    void publish(List<? extends ForcedNode<?>> nodes) {
+        for (int i = 0, n = size; i < n; ++i) {
+            final ForcedNode<?> node = nodes.get(i);
+            node.vx = vx[i];
+            node.vy = vy[i];
+            node.setX(node.px = x[i]);
+            node.setY(node.py = y[i]);
+        }
+    }
+
+    /**
+     * Applies the velocity decay, moves the free nodes by their velocities and records their motion.
+     */
+    void integrate() {
+        final double[] x = this.x, y = this.y, vx = this.vx, vy = this.vy, fx = this.fx, fy = this.fy;
+        final int n = size;
+        double energy = 0, sum = 0, max = 0;
+        int free = 0;
+        for (int i = 0; i < n; ++i) {
+            vx[i] *= VELOCITY_DECAY;
+            vy[i] *= VELOCITY_DECAY;
+            double d = 0;
+            if (Double.isNaN(fx[i])) {
+                x[i] += vx[i];
+                d += vx[i] * vx[i];
+            } else {
+                x[i] = fx[i];
+            }
+            if (Double.isNaN(fy[i])) {
+                y[i] += vy[i];
+                d += vy[i] * vy[i];
+            } else {
+                y[i] = fy[i];
+            }
+            if (Double.isNaN(fx[i]) || Double.isNaN(fy[i])) {
+                energy += d;
+                sum += Math.sqrt(d);
+                max = Math.max(max, d);
+                free++;
+            }
+        }
+        motion(energy / 2, free > 0 ? sum / free : 0, Math.sqrt(max));
+    }
+}
@@ -0,0 +1,21 @@
+package ru.vzotov.d3fx.force;
+
+/**
+ * Receives the state of the motion after every tick of a {@link ForceAnimation}, e.g. to plot the convergence of a
+ * layout.
+ * <p>
+ * Listeners are called on the thread that runs the tick: the JavaFX Application Thread, or a thread of the
+ * {@link ForceAnimation#executor(java.util.concurrent.Executor) executor} of the animation. They are called while
+ * the simulation state is locked, so they should return quickly.
+ */
+@FunctionalInterface
+public interface TickListener {
+
+    /**
+     * @param alpha            alpha the tick was run with
+     * @param kineticEnergy    kinetic energy of the free nodes after the tick, see {@link SimulationState#kineticEnergy()}
+     * @param meanDisplacement mean distance moved by a free node in the tick
+     * @param maxDisplacement  largest distance moved by a free node in the tick
+     */
+    void ticked(double alpha, double kineticEnergy, double meanDisplacement, double maxDisplacement);
+}
@@ -13,10 +13,12 @@ public class XForce<N extends ForcedNode<?>> extends CustomizableForce<N> {
 
     @Override
     public void force(double alpha) {
-        N node;
+        final SimulationState state = state();
+        final double[] x = state.x, vx = state.vx;
+        int j;
         for (int i = 0, n = nodes.size(); i < n; ++i) {
-            node = nodes.get(i);
-            node.vx += (xz[i] - node.getX()) * strengths[i] * alpha;
+            j = nodes.get(i).index;
+            vx[j] += (xz[i] - x[j]) * strengths[i] * alpha;
         }
     }
 
@@ -13,10 +13,12 @@ public class YForce<N extends ForcedNode<?>> extends CustomizableForce<N> {
 
     @Override
     public void force(double alpha) {
-        N node;
+        final SimulationState state = state();
+        final double[] y = state.y, vy = state.vy;
+        int j;
         for (int i = 0, n = nodes.size(); i < n; ++i) {
-            node = nodes.get(i);
-            node.vy += (yz[i] - node.getY()) * strengths[i] * alpha;
+            j = nodes.get(i).index;
+            vy[j] += (yz[i] - y[j]) * strengths[i] * alpha;
         }
     }
 
@@ -0,0 +1,69 @@
+package ru.vzotov.d3fx.force;
+
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the parallel mode of {@link CollideForce} does not depend on the number of threads, and that both
+ * modes separate overlapping nodes.
+ */
+class CollideForceTest {
+
+    private static final int N = 3_000;
+    private static final double RADIUS = 8;
+
+    private static double[] run(ForkJoinPool pool, int ticks) {
+        final ObservableList<ForcedNode<Node>> nodes = ManyBodyForceTest.nodes(N);
+        final ForceAnimation<ForcedNode<Node>> animation = new ForceAnimation<>(nodes);
+        final CollideForce<ForcedNode<Node>> force = animation.force(new CollideForce<>(nodes, node -> RADIUS));
+        force.setSeed(42);
+        force.setPool(pool);
+        return ManyBodyForceTest.positions(animation, ticks);
+    }
+
+    /**
+     * @return sum of the overlaps of all pairs of nodes
+     */
+    private static double overlap(double[] xy) {
+        double overlap = 0;
+        for (int i = 0; i < N; ++i) {
+            for (int j = i + 1; j < N; ++j) {
+                final double d = Math.hypot(xy[2 * i] - xy[2 * j], xy[2 * i + 1] - xy[2 * j + 1]);
+                if (d < 2 * RADIUS) overlap += 2 * RADIUS - d;
+            }
+        }
+        return overlap;
+    }
+
+    @Test
+    void parallelModeDoesNotDependOnThreads() {
+        final ForkJoinPool single = new ForkJoinPool(1);
+        final ForkJoinPool quad = new ForkJoinPool(4);
+        try {
+            assertArrayEquals(run(single, 5), run(quad, 5));
+        } finally {
+            single.shutdown();
+            quad.shutdown();
+        }
+    }
+
+    @Test
+    void bothModesSeparateNodes() {
+        final double initial = overlap(run(null, 0));
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final double sequential = overlap(run(null, 30));
+            final double parallel = overlap(run(pool, 30));
+            assertTrue(sequential < initial / 4, sequential + " of " + initial);
+            assertTrue(parallel < initial / 4, parallel + " of " + initial);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package ru.vzotov.d3fx.force;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Ticks of a {@link ForceAnimation} driven by calls of {@link ForceAnimation#interpolate(double)}, as the pulses of
+ * the JavaFX Application Thread would do, with an executor that runs the queued ticks on demand.
+ */
+class ForceAnimationTest {
+
+    private static final class ManualExecutor implements Executor {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private static ObservableList<ForcedNode<Node>> nodes(int n) {
+        final List<ForcedNode<Node>> list = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            final ForcedNode<Node> node = new ForcedNode<>();
+            node.setX(Double.NaN);
+            node.setY(Double.NaN);
+            list.add(node);
+        }
+        return FXCollections.observableArrayList(list);
+    }
+
+    @Test
+    void nodeChangesWaitForTheRunningTick() {
+        final ObservableList<ForcedNode<Node>> nodes = nodes(20);
+        final ManualExecutor executor = new ManualExecutor();
+        final ForceAnimation<ForcedNode<Node>> animation = new ForceAnimation<>(nodes);
+        final ManyBodyForce<ForcedNode<Node>> force = animation.force(
+                new ManyBodyForce<>(nodes, node -> -30d, 1, Double.POSITIVE_INFINITY));
+        animation.executor(executor);
+
+        animation.interpolate(0);
+        assertEquals(1, executor.tasks.size());
+
+        final ForcedNode<Node> added = new ForcedNode<>();
+        added.setX(Double.NaN);
+        added.setY(Double.NaN);
+        nodes.add(added);
+        nodes.remove(3);
+        assertEquals(20, animation.getState().size());
+        assertEquals(20, force.nodes.size());
+
+        executor.runAll();
+        animation.interpolate(0);
+        assertEquals(20, animation.getState().size());
+        assertEquals(20, force.nodes.size());
+        assertEquals(nodes, force.nodes);
+        assertEquals(19, added.index);
+        assertFalse(Double.isNaN(added.getX()));
+        assertEquals(1, executor.tasks.size());
+
+        executor.runAll();
+        animation.interpolate(0);
+        for (ForcedNode<Node> node : nodes) {
+            assertEquals(node.getX(), animation.getState().x[node.index]);
+        }
+    }
+
+    @Test
+    void changesAreAppliedAtOnceWhileIdle() {
+        final ObservableList<ForcedNode<Node>> nodes = nodes(5);
+        final ForceAnimation<ForcedNode<Node>> animation = new ForceAnimation<>(nodes);
+        final XForce<ForcedNode<Node>> force = animation.force(new XForce<>(nodes, node -> 0d));
+        animation.executor(new ManualExecutor());
+
+        nodes.addAll(nodes(3));
+        assertEquals(8, animation.getState().size());
+        assertEquals(8, force.nodes.size());
+    }
+
+    private static ForceAnimation<ForcedNode<Node>> settling(ObservableList<ForcedNode<Node>> nodes) {
+        final ForceAnimation<ForcedNode<Node>> animation = new ForceAnimation<>(nodes);
+        animation.force(new ManyBodyForce<>(nodes, node -> -30d, 1, Double.POSITIVE_INFINITY));
+        animation.convergence(ForceAnimation.Convergence.MAX_DISPLACEMENT, 0.5);
+        return animation;
+    }
+
+    @Test
+    void convergenceStopsTheTicks() {
+        final ForceAnimation<ForcedNode<Node>> animation = settling(nodes(30));
+        final int[] ticks = new int[1];
+        animation.addTickListener((alpha, energy, mean, max) -> ticks[0]++);
+
+        animation.tick(1000);
+        assertTrue(animation.converged());
+        assertTrue(ticks[0] < 300, ticks[0] + " ticks");
+        assertTrue(animation.alpha() > SimulationState.ALPHA_MIN);
+
+        final int settled = ticks[0];
+        animation.tick(10);
+        assertEquals(settled, ticks[0]);
+
+        animation.alpha(0.5);
+        assertFalse(animation.converged());
+        animation.tick(1);
+        assertEquals(settled + 1, ticks[0]);
+    }
+
+    @Test
+    void reheatDuringBackgroundTickIsKept() {
+        final ObservableList<ForcedNode<Node>> nodes = nodes(30);
+        final ManualExecutor executor = new ManualExecutor();
+        final ForceAnimation<ForcedNode<Node>> animation = settling(nodes);
+        animation.executor(executor);
+        final boolean[] reheated = new boolean[1];
+        animation.addTickListener((alpha, energy, mean, max) -> {
+            // Reheats on the tick that meets the criterion, as the FX thread might do while it runs
+            if (!reheated[0] && max < 0.5) {
+                reheated[0] = true;
+                animation.alpha(0.8);
+            }
+        });
+
+        for (int frame = 0; frame < 1000 && !reheated[0]; ++frame) {
+            animation.interpolate(0);
+            executor.runAll();
+        }
+        assertTrue(reheated[0]);
+        assertFalse(animation.converged());
+        assertTrue(animation.alpha() >= 0.8, "alpha " + animation.alpha());
+
+        animation.interpolate(0);
+        assertEquals(1, executor.tasks.size(), "the animation stopped after the reheat");
+    }
+
+    @Test
+    void budgetRunsSeveralTicksPerFrame() {
+        final ObservableList<ForcedNode<Node>> nodes = nodes(30);
+        final ManualExecutor executor = new ManualExecutor();
+        final ForceAnimation<ForcedNode<Node>> animation = new ForceAnimation<>(nodes);
+        animation.force(new ManyBodyForce<>(nodes, node -> -30d, 1, Double.POSITIVE_INFINITY));
+        animation.executor(executor).frameBudget(50);
+
+        animation.interpolate(0);
+        executor.runAll();
+        assertTrue(animation.frameTicks() > 1, animation.frameTicks() + " ticks");
+
+        animation.interpolate(0);
+        for (ForcedNode<Node> node : nodes) {
+            assertEquals(node.getX(), animation.getState().x[node.index]);
+            assertEquals(node.getY(), animation.getState().y[node.index]);
+        }
+
+        animation.executor(null).frameBudget(0);
+        executor.runAll();
+        animation.interpolate(0);
+        assertEquals(1, animation.frameTicks());
+    }
+
+    @Test
+    void removedForceStopsFollowingTheNodes() {
+        final ObservableList<ForcedNode<Node>> nodes = nodes(10);
+        final ManualExecutor executor = new ManualExecutor();
+        final ForceAnimation<ForcedNode<Node>> animation = new ForceAnimation<>(nodes);
+        final XForce<ForcedNode<Node>> idle = animation.force(new XForce<>(nodes, node -> 0d));
+        final ManyBodyForce<ForcedNode<Node>> busy = animation.force(
+                new ManyBodyForce<>(nodes, node -> -30d, 1, Double.POSITIVE_INFINITY));
+        animation.executor(executor);
+
+        animation.getForces().remove(idle);
+        nodes.addAll(nodes(2));
+        assertEquals(10, idle.nodes.size());
+        assertThrows(IllegalStateException.class, idle::state);
+
+        // A force removed during a background tick still runs that tick, and is detached after it
+        animation.interpolate(0);
+        animation.getForces().remove(busy);
+        executor.runAll();
+        assertEquals(12, busy.nodes.size());
+        animation.interpolate(0);
+        nodes.remove(0);
+        assertEquals(12, busy.nodes.size());
+        assertThrows(IllegalStateException.class, busy::state);
+
+        animation.getForces().add(idle);
+        assertEquals(nodes, idle.nodes);
+        assertEquals(animation.getState(), idle.state());
+    }
+}
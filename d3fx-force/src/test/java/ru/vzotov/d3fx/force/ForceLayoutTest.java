@@ -0,0 +1,71 @@
+package ru.vzotov.d3fx.force;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Convergence of a {@link ForceLayout} of a ring of nodes.
+ */
+class ForceLayoutTest {
+
+    private static final int N = 40;
+
+    private static ForceLayout ring() {
+        return new ForceLayout(N).links(N, link -> link, link -> (link + 1) % N);
+    }
+
+    private static double distance(double[] xy, int i, int j) {
+        return Math.hypot(xy[2 * i] - xy[2 * j], xy[2 * i + 1] - xy[2 * j + 1]);
+    }
+
+    @Test
+    void layoutConverges() {
+        final ForceLayout layout = ring();
+        final double[] xy = layout.run();
+        assertEquals(2 * N, xy.length);
+        for (double v : xy) {
+            assertFalse(Double.isNaN(v));
+        }
+        // Links are stretched by the repulsion of the other nodes, roughly evenly along the ring
+        double mean = 0;
+        for (int i = 0; i < N; ++i) {
+            mean += distance(xy, i, (i + 1) % N) / N;
+        }
+        assertTrue(mean > 20 && mean < 90, "mean link length " + mean);
+        for (int i = 0; i < N; ++i) {
+            final double d = distance(xy, i, (i + 1) % N);
+            assertTrue(d > mean / 3 && d < mean * 2, "link " + i + " has length " + d);
+        }
+        // The many-body force keeps unlinked nodes apart
+        for (int i = 0; i < N; ++i) {
+            for (int j = i + 2; j < N; ++j) {
+                assertTrue(distance(xy, i, j) > 5);
+            }
+        }
+    }
+
+    @Test
+    void energyThresholdStopsEarly() {
+        final ForceLayout full = ring();
+        full.run();
+        final ForceLayout early = ring().energyThreshold(1e-2);
+        early.run();
+        assertTrue(early.ticks() < full.ticks(), early.ticks() + " >= " + full.ticks());
+        assertTrue(full.ticks() >= 300);
+    }
+
+    @Test
+    void centerKeepsTheCenterOfMass() {
+        final double[] xy = ring().center(100, -50).run();
+        double sx = 0, sy = 0;
+        for (int i = 0; i < N; ++i) {
+            sx += xy[2 * i];
+            sy += xy[2 * i + 1];
+        }
+        assertEquals(100, sx / N, 1);
+        assertEquals(-50, sy / N, 1);
+    }
+}
@@ -0,0 +1,131 @@
+package ru.vzotov.d3fx.force;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the parallel traversal of {@link ManyBodyForce} gives the result of the sequential one, and that the
+ * refit mode stays close to a full build of the tree on every tick.
+ */
+class ManyBodyForceTest {
+
+    private static final int N = 3_000;
+
+    /**
+     * Nodes on the initial spiral, every tenth one placed on top of the previous one
+     */
+    static ObservableList<ForcedNode<Node>> nodes(int n) {
+        final List<ForcedNode<Node>> list = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            final ForcedNode<Node> node = new ForcedNode<>();
+            if (i % 10 == 9) {
+                final double radius = 10 * Math.sqrt(i - 0.5), angle = (i - 1) * Math.PI * (3 - Math.sqrt(5));
+                node.setX(radius * Math.cos(angle));
+                node.setY(radius * Math.sin(angle));
+            } else {
+                node.setX(Double.NaN);
+                node.setY(Double.NaN);
+            }
+            list.add(node);
+        }
+        return FXCollections.observableArrayList(list);
+    }
+
+    /**
+     * @return positions after a few ticks, {@code x} and {@code y} of every node
+     */
+    static double[] positions(ForceAnimation<ForcedNode<Node>> animation, int ticks) {
+        for (int k = 0; k < ticks; ++k) {
+            animation.tick(1);
+        }
+        final ObservableList<ForcedNode<Node>> nodes = animation.getNodes();
+        final double[] result = new double[2 * nodes.size()];
+        for (int i = 0; i < nodes.size(); ++i) {
+            result[2 * i] = nodes.get(i).getX();
+            result[2 * i + 1] = nodes.get(i).getY();
+        }
+        return result;
+    }
+
+    private static double[] run(ForkJoinPool pool, int refitTicks) {
+        final ObservableList<ForcedNode<Node>> nodes = nodes(N);
+        final ForceAnimation<ForcedNode<Node>> animation = new ForceAnimation<>(nodes);
+        final ManyBodyForce<ForcedNode<Node>> force = animation.force(
+                new ManyBodyForce<>(nodes, node -> -30d, 1, Double.POSITIVE_INFINITY));
+        force.setSeed(42);
+        force.setPool(pool);
+        force.setRefitTicks(refitTicks);
+        return positions(animation, 5);
+    }
+
+    /**
+     * @return positions after ticks in the refit mode that follow ticks with a full build on every tick, when the
+     * layout has cooled down and the nodes move little
+     */
+    private static double[] settle(int refitTicks, double refitDistance) {
+        final ObservableList<ForcedNode<Node>> nodes = nodes(1_000);
+        final ForceAnimation<ForcedNode<Node>> animation = new ForceAnimation<>(nodes);
+        final ManyBodyForce<ForcedNode<Node>> force = animation.force(
+                new ManyBodyForce<>(nodes, node -> -30d, 1, Double.POSITIVE_INFINITY));
+        force.setSeed(42);
+        positions(animation, 150);
+        force.setRefitTicks(refitTicks);
+        force.setRefitDistance(refitDistance);
+        return positions(animation, 30);
+    }
+
+    private static double maxDifference(double[] a, double[] b) {
+        double max = 0;
+        for (int i = 0; i < a.length; ++i) {
+            max = Math.max(max, Math.abs(a[i] - b[i]));
+        }
+        return max;
+    }
+
+    @Test
+    void refitStaysCloseToFullBuild() {
+        final double[] full = settle(0, 1);
+        final double[] refit = settle(10, 1);
+        final double difference = maxDifference(full, refit);
+        assertTrue(difference > 0, "the tree was never refitted");
+        assertTrue(difference < 0.5, "difference " + difference);
+    }
+
+    @Test
+    void driftBeyondRefitDistanceRebuildsTheTree() {
+        assertArrayEquals(settle(0, 1), settle(10, 0));
+    }
+
+    @Test
+    void parallelTraversalMatchesSequential() {
+        final double[] sequential = run(null, 0);
+        for (int parallelism : new int[]{1, 4}) {
+            final ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                assertArrayEquals(sequential, run(pool, 0), "pool of " + parallelism);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Test
+    void parallelRefitMatchesSequential() {
+        final double[] sequential = run(null, 3);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertArrayEquals(sequential, run(pool, 3));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
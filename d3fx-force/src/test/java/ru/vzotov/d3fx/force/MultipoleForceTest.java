@@ -0,0 +1,124 @@
+package ru.vzotov.d3fx.force;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Accuracy of {@link MultipoleForce} compared with the exact sum over all pairs of nodes.
+ */
+class MultipoleForceTest {
+
+    private static final int N = 2_000;
+    static final double STRENGTH = -30;
+
+    /**
+     * Nodes in a few gaussian clusters
+     */
+    static ObservableList<ForcedNode<Node>> clusters(int n, long seed) {
+        final Random random = new Random(seed);
+        final int clusters = Math.max(1, n / 500);
+        final double extent = Math.sqrt(n) * 10;
+        final double[] cx = new double[clusters], cy = new double[clusters];
+        for (int i = 0; i < clusters; ++i) {
+            cx[i] = random.nextDouble() * extent;
+            cy[i] = random.nextDouble() * extent;
+        }
+        final List<ForcedNode<Node>> list = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            final ForcedNode<Node> node = new ForcedNode<>();
+            final int c = random.nextInt(clusters);
+            node.setX(cx[c] + random.nextGaussian() * extent / 20);
+            node.setY(cy[c] + random.nextGaussian() * extent / 20);
+            list.add(node);
+        }
+        return FXCollections.observableArrayList(list);
+    }
+
+    /**
+     * @return exact velocity changes at alpha 1, a pair of coordinates per node
+     */
+    static double[] exact(List<ForcedNode<Node>> nodes) {
+        final int n = nodes.size();
+        final double[] result = new double[2 * n];
+        for (int i = 0; i < n; ++i) {
+            final ForcedNode<Node> node = nodes.get(i);
+            double vx = 0, vy = 0;
+            for (int j = 0; j < n; ++j) {
+                if (j == i) continue;
+                final double x = nodes.get(j).getX() - node.getX(), y = nodes.get(j).getY() - node.getY();
+                double l = x * x + y * y;
+                if (l < 1) l = Math.sqrt(l);
+                vx += x * STRENGTH / l;
+                vy += y * STRENGTH / l;
+            }
+            result[2 * i] = vx;
+            result[2 * i + 1] = vy;
+        }
+        return result;
+    }
+
+    /**
+     * Applies the force once with alpha 1 to nodes at rest.
+     *
+     * @return root mean square of the velocity error relative to that of the exact velocity
+     */
+    static double error(ForceAnimation<ForcedNode<Node>> animation, Force<ForcedNode<Node>> force, double[] exact) {
+        final SimulationState state = animation.getState();
+        Arrays.fill(state.vx, 0);
+        Arrays.fill(state.vy, 0);
+        force.force(1);
+        final ObservableList<ForcedNode<Node>> nodes = animation.getNodes();
+        double error = 0, norm = 0;
+        for (int i = 0; i < nodes.size(); ++i) {
+            final int j = nodes.get(i).index;
+            final double dx = state.vx[j] - exact[2 * i], dy = state.vy[j] - exact[2 * i + 1];
+            error += dx * dx + dy * dy;
+            norm += exact[2 * i] * exact[2 * i] + exact[2 * i + 1] * exact[2 * i + 1];
+        }
+        return Math.sqrt(error / norm);
+    }
+
+    private static double error(ObservableList<ForcedNode<Node>> nodes, double[] exact, int order) {
+        final ForceAnimation<ForcedNode<Node>> animation = new ForceAnimation<>(nodes);
+        final MultipoleForce<ForcedNode<Node>> force = animation.force(new MultipoleForce<>(nodes, node -> STRENGTH));
+        if (order > 0) force.setOrder(order);
+        return error(animation, force, exact);
+    }
+
+    @Test
+    void defaultOrderIsAccurate() {
+        final ObservableList<ForcedNode<Node>> nodes = clusters(N, 1);
+        final double error = error(nodes, exact(nodes), 0);
+        assertTrue(error < 1e-3, "error " + error);
+    }
+
+    @Test
+    void errorFallsAsTheOrderRises() {
+        final ObservableList<ForcedNode<Node>> nodes = clusters(N, 2);
+        final double[] exact = exact(nodes);
+        final double low = error(nodes, exact, 4), middle = error(nodes, exact, 8), high = error(nodes, exact, 12);
+        assertTrue(low < 1e-2, "order 4, error " + low);
+        assertTrue(middle < low / 4, "order 8, error " + middle + " against " + low);
+        assertTrue(high < middle / 4, "order 12, error " + high + " against " + middle);
+    }
+
+    @Test
+    void orderMustBePositive() {
+        final MultipoleForce<ForcedNode<Node>> force = new MultipoleForce<>(clusters(10, 3));
+        assertThrows(IllegalArgumentException.class, () -> force.setOrder(0));
+        assertThrows(IllegalArgumentException.class, () -> force.setOrder(-2));
+        force.setOrder(1);
+        assertEquals(1, force.getOrder());
+    }
+}
@@ -0,0 +1,61 @@
+package ru.vzotov.d3fx.force;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static ru.vzotov.d3fx.force.MultipoleForceTest.STRENGTH;
+
+/**
+ * Accuracy of {@link ParticleMeshForce} compared with the exact sum over all pairs of nodes.
+ */
+class ParticleMeshForceTest {
+
+    @Test
+    void fieldIsCloseToTheExactSum() {
+        final ObservableList<ForcedNode<Node>> nodes = MultipoleForceTest.clusters(2_000, 4);
+        final ForceAnimation<ForcedNode<Node>> animation = new ForceAnimation<>(nodes);
+        final ParticleMeshForce<ForcedNode<Node>> force = animation.force(
+                new ParticleMeshForce<>(nodes, node -> STRENGTH));
+        final double error = MultipoleForceTest.error(animation, force, MultipoleForceTest.exact(nodes));
+        assertTrue(error < 0.15, "error " + error);
+    }
+
+    @Test
+    void gridSizeMustBeAPowerOfTwo() {
+        final ParticleMeshForce<ForcedNode<Node>> force = new ParticleMeshForce<>(FXCollections.observableArrayList());
+        for (int size : new int[]{-4, 0, 1, 3, 100, 129}) {
+            assertThrows(IllegalArgumentException.class, () -> force.setGridSize(size), "grid size " + size);
+        }
+        force.setGridSize(64);
+        assertEquals(64, force.getGridSize());
+    }
+
+    @Test
+    void nodesInOneCellPushApart() {
+        final List<ForcedNode<Node>> list = new ArrayList<>();
+        for (double[] p : new double[][]{{0, 0}, {1000, 1000}, {500, 500}, {500.5, 500}, {300, 700}, {300, 700}}) {
+            final ForcedNode<Node> node = new ForcedNode<>();
+            node.setX(p[0]);
+            node.setY(p[1]);
+            list.add(node);
+        }
+        final ObservableList<ForcedNode<Node>> nodes = FXCollections.observableArrayList(list);
+        final ForceAnimation<ForcedNode<Node>> animation = new ForceAnimation<>(nodes);
+        animation.force(new ParticleMeshForce<>(nodes, node -> STRENGTH)).force(1);
+
+        final SimulationState state = animation.getState();
+        for (ForcedNode<Node> node : nodes) {
+            assertTrue(Double.isFinite(state.vx[node.index]) && Double.isFinite(state.vy[node.index]));
+        }
+        final double left = state.vx[nodes.get(2).index], right = state.vx[nodes.get(3).index];
+        assertTrue(right - left > 0, "velocities " + left + ", " + right);
+    }
+}
@@ -0,0 +1,62 @@
+package ru.vzotov.d3fx.force;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Exchange of positions between the nodes and the simulation state.
+ */
+class SimulationStateTest {
+
+    private static ObservableList<ForcedNode<Node>> nodes(int n) {
+        final List<ForcedNode<Node>> list = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            final ForcedNode<Node> node = new ForcedNode<>();
+            node.setX(i * 10);
+            node.setY(i * 5);
+            list.add(node);
+        }
+        return FXCollections.observableArrayList(list);
+    }
+
+    @Test
+    void forceWithoutSimulationFailsClearly() {
+        final XForce<ForcedNode<Node>> force = new XForce<>(nodes(3), node -> 0d);
+        final IllegalStateException e = assertThrows(IllegalStateException.class, () -> force.force(0.5));
+        assertTrue(e.getMessage().contains("ForceAnimation"));
+    }
+
+    @Test
+    void positionSetBetweenTicksIsKept() {
+        final ObservableList<ForcedNode<Node>> nodes = nodes(3);
+        final ForceAnimation<ForcedNode<Node>> animation = new ForceAnimation<>(nodes);
+        animation.force(new XForce<>(nodes, node -> 0d));
+        animation.tick(1);
+        final double y = nodes.get(1).getY();
+
+        nodes.get(1).setX(500);
+        animation.tick(1);
+        assertTrue(nodes.get(1).getX() > 400, "moved position was overwritten: " + nodes.get(1).getX());
+        assertEquals(y, nodes.get(1).getY());
+        assertEquals(500, animation.getState().x[1], 100);
+    }
+
+    @Test
+    void fixedPositionIsApplied() {
+        final ObservableList<ForcedNode<Node>> nodes = nodes(3);
+        final ForceAnimation<ForcedNode<Node>> animation = new ForceAnimation<>(nodes);
+        animation.force(new XForce<>(nodes, node -> 0d));
+        nodes.get(2).fx = -40d;
+        animation.tick(1);
+        assertEquals(-40, nodes.get(2).getX());
+    }
+}
@@ -0,0 +1,252 @@
+package ru.vzotov.d3fx.quadtree;
+
+import java.util.Arrays;
+
+/**
+ * Z-order (Morton) sort of points used to bulk load quadtrees.
+ * <p>
+ * Each valid point gets a key made of its quadrant path from the root of the extent, two bits per level, followed
+ * by its index. Quadrants are chosen with the same midpoint comparisons as the insertion into the tree, so the
+ * path of a point is exactly the path it would take in the tree. After sorting, the points of every quadrant form
+ * a contiguous range, ordered by index, and a tree can be built top-down in one pass over the keys.
+ * Points whose paths are equal on all encoded levels fall into the same range and have to be separated by
+ * comparisons (see {@link #partition}).
+ */
+final class MortonOrder {
+
+    /**
+     * Number of points from which the keys are sorted in parallel
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+    /**
+     * Distance to a cell boundary, in cells, below which an inexact scaled coordinate is not trusted
+     */
+    private static final double EPSILON = 0x1p-16;
+
+    long[] keys = new long[0];
+    int count;
+    int levels;
+    private int indexBits;
+    private long indexMask;
+    private int from;
+
+    /**
+     * Computes and sorts the keys of the valid points with indices in {@code [from, to)}.
+     */
+    void sort(double[] xs, double[] ys, int from, int to, double x0, double y0, double x1, double y1) {
+        final int n = to - from;
+        this.from = from;
+        this.indexBits = 32 - Integer.numberOfLeadingZeros(Math.max(n - 1, 1));
+        this.indexMask = (1L << indexBits) - 1;
+        this.levels = (63 - indexBits) >> 1;
+        if (keys.length < n) {
+            keys = new long[n];
+        }
+
+        // A square extent made of whole finest cells lets the paths be computed from scaled coordinates.
+        final int scaled = scaledLevels(x0, y0, x1, y1, levels);
+        if (scaled > 0) {
+            this.levels = scaled;
+        }
+        final double scale = Math.scalb(1d, scaled) / (x1 - x0);
+
+        count = 0;
+        for (int i = from; i < to; ++i) {
+            final double x = xs[i];
+            final double y = ys[i];
+            if (Double.isNaN(x) || Double.isNaN(y)) continue;
+            final long path = scaled > 0
+                    ? scaledPath(x, y, x0, y0, x1, y1, scale, scaled)
+                    : path(x, y, x0, y0, x1, y1, levels);
+            keys[count++] = path << indexBits | (i - from);
+        }
+        if (count >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSort(keys, 0, count);
+        } else {
+            Arrays.sort(keys, 0, count);
+        }
+    }
+
+    /**
+     * Finds the number of levels at which every quadrant boundary of the extent is exactly representable, so that
+     * the quadrant of a point can be read from its offset to the extent, measured in the finest cells.
+     *
+     * @return number of levels, or zero if the extent is not suitable
+     */
+    private static int scaledLevels(double x0, double y0, double x1, double y1, int levels) {
+        final double w = x1 - x0;
+        if (!(w > 0) || Double.isInfinite(w) || w != y1 - y0 || w != Math.scalb(1d, Math.getExponent(w))) return 0;
+        final double m = Math.max(Math.max(Math.abs(x0), Math.abs(x1)), Math.max(Math.abs(y0), Math.abs(y1)));
+        for (int l = levels; l > 0; --l) {
+            final double g = Math.scalb(w, -l);
+            if (x0 % g == 0 && y0 % g == 0 && m / g < 0x1p52) return l;
+        }
+        return 0;
+    }
+
+    private static long scaledPath(double x, double y, double x0, double y0, double x1, double y1,
+                                   double scale, int levels) {
+        final double dx = x - x0;
+        final double dy = y - y0;
+        final double u = dx * scale;
+        final double v = dy * scale;
+        // Offsets that are not exact may put points next to a boundary into the wrong cell.
+        if (roundoff(x, -x0, dx) != 0 || roundoff(y, -y0, dy) != 0) {
+            final double fu = u - Math.floor(u);
+            final double fv = v - Math.floor(v);
+            if (fu < EPSILON || fu > 1 - EPSILON || fv < EPSILON || fv > 1 - EPSILON) {
+                return path(x, y, x0, y0, x1, y1, levels);
+            }
+        }
+        return spread((long) u) | spread((long) v) << 1;
+    }
+
+    /**
+     * @return rounding error of {@code s = a + b} (TwoSum)
+     */
+    private static double roundoff(double a, double b, double s) {
+        final double bv = s - a;
+        final double av = s - bv;
+        return (a - av) + (b - bv);
+    }
+
+    /**
+     * Spreads the lower 32 bits of the value to the even bits of the result.
+     */
+    static long spread(long v) {
+        v &= 0xFFFFFFFFL;
+        v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+        v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+        v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+
+    private static long path(double x, double y, double x0, double y0, double x1, double y1, int levels) {
+        long path = 0;
+        for (int l = 0; l < levels; ++l) {
+            final double xm = (x0 + x1) / 2;
+            final double ym = (y0 + y1) / 2;
+            final boolean right = x >= xm;
+            final boolean bottom = y >= ym;
+            if (right) {
+                x0 = xm;
+            } else {
+                x1 = xm;
+            }
+            if (bottom) {
+                y0 = ym;
+            } else {
+                y1 = ym;
+            }
+            path = path << 2 | (bottom ? 2 : 0) | (right ? 1 : 0);
+        }
+        return path;
+    }
+
+    /**
+     * @param k position in the sorted keys
+     * @return index of the point
+     */
+    int point(int k) {
+        return from + (int) (keys[k] & indexMask);
+    }
+
+    /**
+     * @return {@code true} if two keys have the same path on all encoded levels
+     */
+    boolean sameCell(int a, int b) {
+        return (keys[a] >>> indexBits) == (keys[b] >>> indexBits);
+    }
+
+    /**
+     * @return quadrant of the key at the given level
+     */
+    int quadrant(int k, int level) {
+        return (int) (keys[k] >>> (indexBits + ((levels - 1 - level) << 1))) & 3;
+    }
+
+    /**
+     * Finds the first key in a range of one quadrant whose child quadrant at the given level is at least
+     * {@code quadrant}.
+     */
+    int lowerBound(int lo, int hi, int level, int quadrant) {
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (quadrant(mid, level) < quadrant) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Stably partitions point indices by their quadrant in the given bounds.
+     *
+     * @param points  point indices, partitioned in place
+     * @param scratch buffer at least as long as the range
+     * @return bounds of the four partitions: {@code lo, b1, b2, b3, hi}
+     */
+    static int[] partition(double[] xs, double[] ys, int[] points, int[] scratch, int lo, int hi,
+                           double xm, double ym) {
+        final int[] bounds = new int[5];
+        for (int k = lo; k < hi; ++k) {
+            bounds[quadrant(xs[points[k]], ys[points[k]], xm, ym) + 1]++;
+        }
+        bounds[0] = lo;
+        for (int q = 1; q < 5; ++q) {
+            bounds[q] += bounds[q - 1];
+        }
+        final int[] next = Arrays.copyOf(bounds, 4);
+        for (int k = lo; k < hi; ++k) {
+            scratch[next[quadrant(xs[points[k]], ys[points[k]], xm, ym)]++] = points[k];
+        }
+        System.arraycopy(scratch, lo, points, lo, hi - lo);
+        return bounds;
+    }
+
+    private static int quadrant(double x, double y, double xm, double ym) {
+        return (y >= ym ? 2 : 0) | (x >= xm ? 1 : 0);
+    }
+
+    /**
+     * @return {@code true} if all points of the range are at the same position
+     */
+    static boolean coincident(double[] xs, double[] ys, int[] points, int lo, int hi) {
+        final double x = xs[points[lo]];
+        final double y = ys[points[lo]];
+        for (int k = lo + 1; k < hi; ++k) {
+            if (xs[points[k]] != x || ys[points[k]] != y) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} if all points of a range of sorted keys are at the same position
+     */
+    boolean coincident(double[] xs, double[] ys, int lo, int hi) {
+        final int p = point(lo);
+        final double x = xs[p];
+        final double y = ys[p];
+        for (int k = lo + 1; k < hi; ++k) {
+            final int q = point(k);
+            if (xs[q] != x || ys[q] != y) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return point indices of a range of sorted keys, in key order
+     */
+    int[] points(int lo, int hi) {
+        final int[] points = new int[hi - lo];
+        for (int k = lo; k < hi; ++k) {
+            points[k - lo] = point(k);
+        }
+        return points;
+    }
+}
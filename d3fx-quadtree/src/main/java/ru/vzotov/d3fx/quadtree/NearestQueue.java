@@ -0,0 +1,251 @@
+package ru.vzotov.d3fx.quadtree;
+
+import java.util.Arrays;
+
+/**
+ * State of a best-first nearest neighbour search.
+ * <p>
+ * Pending quadrants are kept in a binary min-heap ordered by the squared distance from the query point to their
+ * bounds, so the search always expands the closest quadrant and stops as soon as it is farther than the k-th
+ * neighbour found so far. The heap only holds the distances and slots of the quadrants; the quadrants themselves
+ * are appended to flat arrays that are reset with every search, so sifting moves little data. Neighbours are kept
+ * in a binary max-heap of at most k entries. Nodes and points are stored either as integer handles or as object
+ * references, the same way as in {@link TraversalStack}.
+ * <p>
+ * Queues are owned by threads (see {@link #get()}), so concurrent searches in the same tree do not interfere.
+ */
+final class NearestQueue {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final ThreadLocal<NearestQueue> QUEUE = ThreadLocal.withInitial(NearestQueue::new);
+
+    /**
+     * @return search state for the current thread
+     */
+    static NearestQueue get() {
+        return QUEUE.get();
+    }
+
+    private double[] keys = new double[INITIAL_CAPACITY];
+    private int[] slots = new int[INITIAL_CAPACITY];
+    private int size;
+
+    private int[] nodes = new int[INITIAL_CAPACITY];
+    private Object[] refs = new Object[INITIAL_CAPACITY];
+    private double[] bounds = new double[INITIAL_CAPACITY << 2];
+    private int quadrants;
+
+    private double[] distances = new double[INITIAL_CAPACITY];
+    private int[] points = new int[INITIAL_CAPACITY];
+    private Object[] items = new Object[INITIAL_CAPACITY];
+    private int count;
+    private int k;
+    private double limit;
+
+    /**
+     * Quadrant taken by the last {@link #poll()}
+     */
+    int node;
+    Object ref;
+    double x0, y0, x1, y1;
+
+    /**
+     * Starts a new search.
+     *
+     * @param k      maximum number of neighbours
+     * @param radius search radius, infinite if {@code NaN}
+     */
+    void reset(int k, double radius) {
+        this.size = 0;
+        this.quadrants = 0;
+        this.count = 0;
+        this.k = k;
+        this.limit = Double.isNaN(radius) ? Double.POSITIVE_INFINITY : radius * radius;
+        if (distances.length < k) {
+            distances = new double[k];
+            points = new int[k];
+            items = new Object[k];
+        }
+    }
+
+    /**
+     * @return squared distance that a point or quadrant has to be below to improve the result
+     */
+    double limit() {
+        return count == k ? distances[0] : limit;
+    }
+
+    /**
+     * @return squared distance from a point to a rectangle, zero if the point is inside
+     */
+    static double distance(double x, double y, double x0, double y0, double x1, double y1) {
+        final double dx = x < x0 ? x0 - x : x > x1 ? x - x1 : 0;
+        final double dy = y < y0 ? y0 - y : y > y1 ? y - y1 : 0;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Adds a quadrant unless it is too far to contain a closer neighbour.
+     */
+    void offer(int node, Object ref, double x, double y, double x0, double y0, double x1, double y1) {
+        final double key = distance(x, y, x0, y0, x1, y1);
+        if (key >= limit()) return;
+        if (quadrants == nodes.length) {
+            growQuadrants();
+        }
+        final int slot = quadrants++;
+        nodes[slot] = node;
+        refs[slot] = ref;
+        final int b = slot << 2;
+        bounds[b] = x0;
+        bounds[b + 1] = y0;
+        bounds[b + 2] = x1;
+        bounds[b + 3] = y1;
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+            slots = Arrays.copyOf(slots, size << 1);
+        }
+        int i = size++;
+        while (i > 0) {
+            final int parent = (i - 1) >> 1;
+            if (keys[parent] <= key) break;
+            keys[i] = keys[parent];
+            slots[i] = slots[parent];
+            i = parent;
+        }
+        keys[i] = key;
+        slots[i] = slot;
+    }
+
+    /**
+     * Takes the closest pending quadrant into {@link #node}, {@link #ref} and the bounds fields.
+     *
+     * @return {@code false} if no pending quadrant can contain a closer neighbour
+     */
+    boolean poll() {
+        if (size == 0 || keys[0] >= limit()) {
+            Arrays.fill(refs, 0, quadrants, null);
+            size = 0;
+            quadrants = 0;
+            return false;
+        }
+        final int slot = slots[0];
+        node = nodes[slot];
+        ref = refs[slot];
+        final int b = slot << 2;
+        x0 = bounds[b];
+        y0 = bounds[b + 1];
+        x1 = bounds[b + 2];
+        y1 = bounds[b + 3];
+
+        final int last = --size;
+        final double key = keys[last];
+        final int lastSlot = slots[last];
+        int i = 0;
+        while (true) {
+            int child = (i << 1) + 1;
+            if (child >= last) break;
+            if (child + 1 < last && keys[child + 1] < keys[child]) child++;
+            if (key <= keys[child]) break;
+            keys[i] = keys[child];
+            slots[i] = slots[child];
+            i = child;
+        }
+        keys[i] = key;
+        slots[i] = lastSlot;
+        return true;
+    }
+
+    /**
+     * Adds a neighbour if it is closer than the farthest one found so far.
+     */
+    void neighbour(double distance, int point, Object item) {
+        if (distance >= limit()) return;
+        int i;
+        if (count < k) {
+            i = count++;
+            while (i > 0) {
+                final int parent = (i - 1) >> 1;
+                if (distances[parent] >= distance) break;
+                distances[i] = distances[parent];
+                points[i] = points[parent];
+                items[i] = items[parent];
+                i = parent;
+            }
+        } else {
+            i = 0;
+            while (true) {
+                int child = (i << 1) + 1;
+                if (child >= count) break;
+                if (child + 1 < count && distances[child + 1] > distances[child]) child++;
+                if (distance >= distances[child]) break;
+                distances[i] = distances[child];
+                points[i] = points[child];
+                items[i] = items[child];
+                i = child;
+            }
+        }
+        distances[i] = distance;
+        points[i] = point;
+        items[i] = item;
+    }
+
+    /**
+     * @return number of neighbours found
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * Removes the farthest neighbour. Neighbours are therefore taken in descending order of distance.
+     */
+    int pollPoint() {
+        final int point = points[0];
+        removeFarthest();
+        return point;
+    }
+
+    /**
+     * @see #pollPoint()
+     */
+    @SuppressWarnings("unchecked")
+    <T> T pollItem() {
+        final T item = (T) items[0];
+        removeFarthest();
+        return item;
+    }
+
+    private void removeFarthest() {
+        final int last = --count;
+        final double distance = distances[last];
+        final int point = points[last];
+        final Object item = items[last];
+        items[last] = null;
+        int i = 0;
+        while (true) {
+            int child = (i << 1) + 1;
+            if (child >= last) break;
+            if (child + 1 < last && distances[child + 1] > distances[child]) child++;
+            if (distance >= distances[child]) break;
+            distances[i] = distances[child];
+            points[i] = points[child];
+            items[i] = items[child];
+            i = child;
+        }
+        if (last > 0) {
+            distances[i] = distance;
+            points[i] = point;
+            items[i] = item;
+        }
+    }
+
+    private void growQuadrants() {
+        final int capacity = nodes.length << 1;
+        nodes = Arrays.copyOf(nodes, capacity);
+        refs = Arrays.copyOf(refs, capacity);
+        bounds = Arrays.copyOf(bounds, capacity << 2);
+    }
+}
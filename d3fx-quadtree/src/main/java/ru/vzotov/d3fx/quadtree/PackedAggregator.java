@@ -0,0 +1,26 @@
+package ru.vzotov.d3fx.quadtree;
+
+/**
+ * Computes per-node aggregates of a {@link PackedQuadTree}, such as the charge-weighted centroid of a quadrant or
+ * the largest radius in it. Aggregates are kept by the aggregator itself, typically in arrays indexed by the
+ * internal node handle and by the first point of a leaf (see {@link PackedQuadTree#point(int)}). The tree calls the
+ * aggregator for every node it creates or changes, bottom-up, so the aggregates of all ancestors are kept up to
+ * date on every insertion, removal and move.
+ */
+public interface PackedAggregator {
+
+    /**
+     * Computes the aggregate of a leaf from the points of its chain (see {@link PackedQuadTree#next(int)}).
+     *
+     * @param leaf leaf handle
+     */
+    void leaf(int leaf);
+
+    /**
+     * Computes the aggregate of an internal node from the aggregates of its children, some of which may be
+     * {@link PackedQuadTree#EMPTY}.
+     *
+     * @param node internal node handle
+     */
+    void combine(int node);
+}
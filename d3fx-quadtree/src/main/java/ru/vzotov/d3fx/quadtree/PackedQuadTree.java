@@ -0,0 +1,1594 @@
+package ru.vzotov.d3fx.quadtree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Quadtree that keeps its structure in primitive arrays instead of node objects.
+ * <p>
+ * Internal nodes are identified by positive handles; the children of node {@code n} are stored in
+ * {@code children[4 * n] .. children[4 * n + 3]}. Leaves are not materialized: a negative handle
+ * {@code -(p + 1)} refers to point {@code p}, and exactly coincident points are chained through {@link #next(int)}.
+ * Like {@link QuadTree}, the tree can be kept shallow with {@link #bucketSize(int) leaf buckets} and a
+ * {@link #maxDepth(int) depth cap}; the chain of a leaf then holds the points of its quadrant, coincident or not.
+ * Points are numbered in the order they were added, so a tree built with {@link #addAll(List)} uses the indices
+ * of the source list. Per-node values such as aggregates can be kept by the caller in arrays indexed by the
+ * internal node handle (up to {@link #nodeCount()}) or by the point index (up to {@link #size()}), and a
+ * {@link PackedAggregator} keeps them up to date along the path of every insertion, removal and move.
+ * <p>
+ * The tree produces the same structure as {@link QuadTree}. All arrays are retained by {@link #clear()}, so
+ * a tree that is rebuilt with a similar number of points on every simulation tick does not allocate. Traversals
+ * use per-thread stacks and may run concurrently as long as the tree is not modified.
+ * <p>
+ * A read-only copy made by {@link #snapshot()} or {@link QuadTree#snapshot()} can be handed to other threads, e.g.
+ * for hit-testing on the UI thread while the simulation keeps changing the original tree. Its mutators throw
+ * {@link UnsupportedOperationException}. The snapshot has to be published safely, e.g. through a volatile field or
+ * an {@link java.util.concurrent.atomic.AtomicReference}.
+ *
+ * @param <E> type of tree elements
+ */
+public class PackedQuadTree<E> {
+
+    /**
+     * Handle of an empty quadrant
+     */
+    public static final int EMPTY = 0;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * File format of {@link #write(Path)}
+     */
+    private static final int MAGIC = 0x54513344; // "D3QT"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 72;
+
+    public static <E> PackedQuadTree<E> quadTree(List<E> nodes, ToDoubleFunction<E> x, ToDoubleFunction<E> y) {
+        PackedQuadTree<E> tree = new PackedQuadTree<>(x, y);
+        tree.addAll(nodes);
+        return tree;
+    }
+
+    private final ToDoubleFunction<E> _x;
+    private final ToDoubleFunction<E> _y;
+    private double _x0;
+    private double _y0;
+    private double _x1;
+    private double _y1;
+    private int _root = EMPTY;
+
+    /**
+     * Children of internal nodes, four slots per node. Slots of node 0 are never used.
+     */
+    private int[] children = new int[(DEFAULT_CAPACITY + 1) << 2];
+    private int nodeCount;
+
+    /**
+     * Handles of pruned internal nodes, reused before new handles are allocated
+     */
+    private int[] free = new int[DEFAULT_CAPACITY];
+    private int freeCount;
+
+    /**
+     * Scratch buffers of the mutating operations
+     */
+    private int[] path = new int[DEFAULT_CAPACITY];
+    private int[] bucket = new int[DEFAULT_CAPACITY];
+    private int[] moved = new int[DEFAULT_CAPACITY];
+    private double[] movedX = new double[DEFAULT_CAPACITY];
+    private double[] movedY = new double[DEFAULT_CAPACITY];
+    private final MortonOrder order = new MortonOrder();
+
+    private Object[] data = new Object[DEFAULT_CAPACITY];
+    private double[] xs = new double[DEFAULT_CAPACITY];
+    private double[] ys = new double[DEFAULT_CAPACITY];
+    private int[] next = new int[DEFAULT_CAPACITY];
+    private int size;
+
+    private int bucketSize = 1;
+    private int maxDepth = Integer.MAX_VALUE;
+
+    private boolean readOnly;
+
+    private PackedAggregator aggregator;
+
+    private QuadTreeStats.Timer timer;
+
+    private static int bool(boolean b) {
+        return b ? 1 : 0;
+    }
+
+    /**
+     * @param node node handle
+     * @return {@code true} if the handle refers to a leaf
+     */
+    public static boolean isLeaf(int node) {
+        return node < 0;
+    }
+
+    /**
+     * @param node leaf handle
+     * @return index of the first point stored in the leaf
+     */
+    public static int point(int node) {
+        return -node - 1;
+    }
+
+    /**
+     * @param point point index
+     * @return handle of the leaf whose first point is {@code point}
+     */
+    public static int leaf(int point) {
+        return -point - 1;
+    }
+
+    public PackedQuadTree(ToDoubleFunction<E> x, ToDoubleFunction<E> y) {
+        this(x, y, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+    }
+
+    public PackedQuadTree(ToDoubleFunction<E> x, ToDoubleFunction<E> y,
+                          double x0, double y0, double x1, double y1) {
+        this._x = x;
+        this._y = y;
+        this._x0 = x0;
+        this._y0 = y0;
+        this._x1 = x1;
+        this._y1 = y1;
+    }
+
+    /**
+     * Copies the structure and the points of a tree.
+     */
+    private PackedQuadTree(PackedQuadTree<E> source) {
+        this(source._x, source._y, source._x0, source._y0, source._x1, source._y1);
+        this.bucketSize = source.bucketSize;
+        this.maxDepth = source.maxDepth;
+        this._root = source._root;
+        this.nodeCount = source.nodeCount;
+        this.children = Arrays.copyOf(source.children, (source.nodeCount + 1) << 2);
+        this.size = source.size;
+        this.data = Arrays.copyOf(source.data, source.size);
+        this.xs = Arrays.copyOf(source.xs, source.size);
+        this.ys = Arrays.copyOf(source.ys, source.size);
+        this.next = Arrays.copyOf(source.next, source.size);
+    }
+
+    /**
+     * Makes a read-only copy of the tree. The copy holds the coordinates stored at the time of the call, trimmed
+     * arrays and no scratch state, so it costs one array copy per kind of data. A read-only tree returns itself.
+     *
+     * @return read-only copy of the tree
+     */
+    public PackedQuadTree<E> snapshot() {
+        if (readOnly) return this;
+        final PackedQuadTree<E> snapshot = new PackedQuadTree<>(this);
+        snapshot.readOnly = true;
+        return snapshot;
+    }
+
+    /**
+     * Packs the nodes of an object tree into a read-only tree. Points are numbered in pre-order of the leaves and
+     * keep the order of the leaf chains.
+     *
+     * @see QuadTree#snapshot()
+     */
+    static <E, Q extends QuadNode<E, Q>> PackedQuadTree<E> snapshot(ToDoubleFunction<E> x, ToDoubleFunction<E> y,
+                                                                     double x0, double y0, double x1, double y1,
+                                                                     Q root) {
+        final PackedQuadTree<E> snapshot = new PackedQuadTree<>(x, y, x0, y0, x1, y1);
+        snapshot._root = snapshot.pack(root);
+        snapshot.readOnly = true;
+        return snapshot;
+    }
+
+    private <Q extends QuadNode<E, Q>> int pack(Q node) {
+        if (node == null) return EMPTY;
+        if (!node.hasChildren()) {
+            int head = -1;
+            int tail = -1;
+            for (Q q = node; q != null; q = q.next) {
+                for (int k = 0, n = q.size(); k < n; ++k) {
+                    final E d = q.data(k);
+                    ensurePoints(size + 1);
+                    final int p = store(d, _x.applyAsDouble(d), _y.applyAsDouble(d));
+                    if (tail < 0) {
+                        head = p;
+                    } else {
+                        next[tail] = p;
+                    }
+                    tail = p;
+                }
+            }
+            return leaf(head);
+        }
+        final int handle = newNode();
+        for (int i = 0; i < 4; ++i) {
+            final int child = pack(node.get(i));
+            children[(handle << 2) + i] = child;
+        }
+        return handle;
+    }
+
+    /**
+     * @return {@code true} if the tree is a read-only snapshot
+     */
+    public boolean readOnly() {
+        return readOnly;
+    }
+
+    private void checkWritable() {
+        if (readOnly) throw new UnsupportedOperationException("Quadtree snapshot is read-only");
+    }
+
+    /**
+     * @return handle of the root node, or {@link #EMPTY}
+     */
+    public int root() {
+        return _root;
+    }
+
+    public double x0() {
+        return _x0;
+    }
+
+    public double y0() {
+        return _y0;
+    }
+
+    public double x1() {
+        return _x1;
+    }
+
+    public double y1() {
+        return _y1;
+    }
+
+    /**
+     * @return number of points added to the tree, including ignored (invalid) and removed ones
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the greatest internal node handle that may be in use
+     */
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @param node  internal node handle
+     * @param index quadrant index, 0 to 3
+     * @return handle of the child node or {@link #EMPTY}
+     */
+    public int child(int node, int index) {
+        return children[(node << 2) + index];
+    }
+
+    /**
+     * @param point point index
+     * @return element stored for the point
+     */
+    @SuppressWarnings("unchecked")
+    public E data(int point) {
+        return (E) data[point];
+    }
+
+    /**
+     * @param point point index
+     * @return x coordinate of the point at the time it was added
+     */
+    public double x(int point) {
+        return xs[point];
+    }
+
+    /**
+     * @param point point index
+     * @return y coordinate of the point at the time it was added
+     */
+    public double y(int point) {
+        return ys[point];
+    }
+
+    /**
+     * @param point point index
+     * @return index of the next coincident point in the same leaf, or {@code -1}
+     */
+    public int next(int point) {
+        return next[point];
+    }
+
+    /**
+     * Writes the tree to a file in a compact little-endian binary format: a fixed header with the extent, the
+     * counters and the leaf layout, followed by the coordinates, the children, the point chains and the free node
+     * handles. Elements are not written; they are supplied by index to
+     * {@link #read(Path, List, ToDoubleFunction, ToDoubleFunction)}.
+     *
+     * @param file file to create or overwrite
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path file) throws IOException {
+        final int nodes = (nodeCount + 1) << 2;
+        final long length = HEADER_SIZE + 16L * size + 4L * (nodes + size + freeCount);
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(length)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION)
+                .putDouble(_x0).putDouble(_y0).putDouble(_x1).putDouble(_y1)
+                .putInt(_root).putInt(nodeCount).putInt(size).putInt(freeCount).putInt(bool(readOnly))
+                .putInt(bucketSize).putInt(maxDepth);
+        buffer.position(HEADER_SIZE);
+        buffer.asDoubleBuffer().put(xs, 0, size).put(ys, 0, size);
+        buffer.position(HEADER_SIZE + 16 * size);
+        buffer.asIntBuffer().put(children, 0, nodes).put(next, 0, size).put(free, 0, freeCount);
+        buffer.clear();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads a tree written by {@link #write(Path)}. The file is memory-mapped and its arrays are copied in bulk, so
+     * no point is inserted again. Point {@code p} of the tree refers to element {@code p} of the list, which for a
+     * tree built by {@link #addAll(List)} is the list the tree was built from. A tree that was written as a
+     * snapshot is read back as a read-only tree.
+     *
+     * @param file file to read
+     * @param data elements of the points, by point index
+     * @param x    x-accessor used by later insertions
+     * @param y    y-accessor used by later insertions
+     * @return tree
+     * @throws IOException if the file cannot be read or is not a quadtree file
+     */
+    public static <E> PackedQuadTree<E> read(Path file, List<E> data, ToDoubleFunction<E> x, ToDoubleFunction<E> y)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long length = channel.size();
+            if (length < HEADER_SIZE) throw new IOException("Not a quadtree file: " + file);
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC) throw new IOException("Not a quadtree file: " + file);
+            final int version = buffer.getInt();
+            if (version != VERSION) throw new IOException("Unsupported quadtree file version " + version);
+
+            final PackedQuadTree<E> tree = new PackedQuadTree<>(x, y,
+                    buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+            tree._root = buffer.getInt();
+            tree.nodeCount = buffer.getInt();
+            tree.size = buffer.getInt();
+            tree.freeCount = buffer.getInt();
+            tree.readOnly = buffer.getInt() != 0;
+            tree.bucketSize = buffer.getInt();
+            tree.maxDepth = buffer.getInt();
+            final int n = tree.size;
+            final int nodes = (tree.nodeCount + 1) << 2;
+            if (n != data.size()) {
+                throw new IllegalArgumentException("Expected " + n + " elements, got " + data.size());
+            }
+            if (length != HEADER_SIZE + 16L * n + 4L * (nodes + n + tree.freeCount)) {
+                throw new IOException("Truncated quadtree file: " + file);
+            }
+
+            tree.data = data.toArray();
+            tree.xs = new double[n];
+            tree.ys = new double[n];
+            tree.children = new int[nodes];
+            tree.next = new int[n];
+            tree.free = new int[Math.max(tree.freeCount, DEFAULT_CAPACITY)];
+            buffer.position(HEADER_SIZE);
+            buffer.asDoubleBuffer().get(tree.xs).get(tree.ys);
+            buffer.position(HEADER_SIZE + 16 * n);
+            buffer.asIntBuffer().get(tree.children).get(tree.next).get(tree.free, 0, tree.freeCount);
+            return tree;
+        }
+    }
+
+    /**
+     * @return maximum number of points at different positions in a leaf
+     */
+    public int bucketSize() {
+        return bucketSize;
+    }
+
+    /**
+     * Sets the capacity of leaves. A leaf is split only when it holds more than {@code bucketSize} points that are
+     * not all coincident. The default capacity of one point gives the d3 structure. The setting can only be changed
+     * while the tree is empty.
+     *
+     * @param bucketSize maximum number of points at different positions in a leaf, at least one
+     * @return this tree
+     * @throws IllegalStateException if the tree is not empty
+     * @see QuadTree#bucketSize(int)
+     */
+    public PackedQuadTree<E> bucketSize(int bucketSize) {
+        if (bucketSize < 1) throw new IllegalArgumentException("bucket size must be positive: " + bucketSize);
+        checkEmpty();
+        this.bucketSize = bucketSize;
+        return this;
+    }
+
+    /**
+     * @return maximum depth of leaves below the root
+     */
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Sets the depth below the root at which leaves are no longer split and collect any number of points. The
+     * setting can only be changed while the tree is empty.
+     *
+     * @param maxDepth maximum depth of leaves, {@link Integer#MAX_VALUE} for no limit
+     * @return this tree
+     * @throws IllegalStateException if the tree is not empty
+     * @see QuadTree#maxDepth(int)
+     */
+    public PackedQuadTree<E> maxDepth(int maxDepth) {
+        if (maxDepth < 0) throw new IllegalArgumentException("depth must not be negative: " + maxDepth);
+        checkEmpty();
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    private void checkEmpty() {
+        checkWritable();
+        if (_root != EMPTY) throw new IllegalStateException("leaf layout of a non-empty tree cannot be changed");
+    }
+
+    private boolean bucketed() {
+        return bucketSize > 1 || maxDepth != Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return {@code true} if a leaf chain at the given depth has to be split
+     */
+    private boolean overfull(int leaf, int depth) {
+        if (depth >= maxDepth) return false;
+        final int first = point(leaf);
+        int count = 0;
+        for (int q = first; q >= 0 && count <= bucketSize; q = next[q]) {
+            count++;
+        }
+        if (count <= bucketSize) return false;
+        for (int q = next[first]; q >= 0; q = next[q]) {
+            if (Double.compare(xs[q], xs[first]) != 0 || Double.compare(ys[q], ys[first]) != 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if a leaf holding the given number of points at the given depth is never split
+     */
+    private boolean fits(int count, int depth) {
+        return count <= bucketSize || depth >= maxDepth;
+    }
+
+    /**
+     * @return aggregator of the node values, or {@code null}
+     */
+    public PackedAggregator aggregator() {
+        return aggregator;
+    }
+
+    /**
+     * Sets the aggregator that keeps per-node values up to date and computes the values of all nodes of the tree.
+     * Afterwards every insertion, removal and move only recomputes the nodes along its path.
+     *
+     * @param aggregator aggregator, or {@code null} to stop maintaining the values
+     * @return this tree
+     */
+    public PackedQuadTree<E> aggregator(PackedAggregator aggregator) {
+        this.aggregator = aggregator;
+        return aggregate();
+    }
+
+    /**
+     * Recomputes the values of all nodes with the aggregator.
+     *
+     * @return this tree
+     */
+    public PackedQuadTree<E> aggregate() {
+        final PackedAggregator aggregator = this.aggregator;
+        if (aggregator != null) {
+            visitAfter((node, x0, y0, x1, y1) -> {
+                if (node > 0) {
+                    aggregator.combine(node);
+                } else {
+                    aggregator.leaf(node);
+                }
+                return false;
+            });
+        }
+        return this;
+    }
+
+    /**
+     * Recomputes the values of the leaf at a position and of its ancestors, bottom-up.
+     */
+    private void refresh(double x, double y) {
+        final PackedAggregator aggregator = this.aggregator;
+        if (aggregator == null || Double.isNaN(x) || Double.isNaN(y)) return;
+        int node = _root;
+        int depth = 0;
+        double x0 = _x0;
+        double y0 = _y0;
+        double x1 = _x1;
+        double y1 = _y1;
+        double xm;
+        double ym;
+        while (node > 0) {
+            if (depth == path.length) path = Arrays.copyOf(path, depth << 1);
+            path[depth++] = node;
+            xm = (x0 + x1) / 2;
+            if (x >= xm) {
+                x0 = xm;
+            } else {
+                x1 = xm;
+            }
+            ym = (y0 + y1) / 2;
+            if (y >= ym) {
+                y0 = ym;
+            } else {
+                y1 = ym;
+            }
+            node = children[(node << 2) + (bool(y >= ym) << 1 | bool(x >= xm))];
+        }
+        if (node < 0) aggregator.leaf(node);
+        while (depth > 0) {
+            aggregator.combine(path[--depth]);
+        }
+    }
+
+    /**
+     * @return {@code true} if build and traversal times are collected
+     */
+    public boolean timing() {
+        return timer != null;
+    }
+
+    /**
+     * Enables or disables the collection of the cumulative times of bulk loads ({@link #addAll(List)}) and
+     * traversals ({@link #visit} and {@link #visitAfter}) reported by {@link #stats()}. Disabling resets them.
+     *
+     * @param timing {@code true} to collect times
+     * @return this tree
+     */
+    public PackedQuadTree<E> timing(boolean timing) {
+        if (!timing) {
+            timer = null;
+        } else if (timer == null) {
+            timer = new QuadTreeStats.Timer();
+        }
+        return this;
+    }
+
+    /**
+     * Collects the shape of the tree by walking all of its nodes, together with the times collected so far.
+     * The memory estimate is the size of the internal arrays, including their spare capacity.
+     *
+     * @return statistics of the tree
+     */
+    public QuadTreeStats stats() {
+        int internalNodes = 0;
+        int leaves = 0;
+        int points = 0;
+        int longestChain = 0;
+        int[] histogram = new int[0];
+        final double width = _x1 - _x0;
+        final TraversalStack quads = TraversalStack.quads();
+        final int base = quads.size;
+        if (_root != EMPTY) quads.push(_root, _x0, _y0, _x1, _y1);
+        while (quads.size > base) {
+            final int top = --quads.size;
+            final int node = quads.nodes[top];
+            final int b = top << 2;
+            final double x0 = quads.bounds[b], y0 = quads.bounds[b + 1], x1 = quads.bounds[b + 2], y1 = quads.bounds[b + 3];
+            if (node > 0) {
+                internalNodes++;
+                final int c = node << 2;
+                final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+                int child;
+                if ((child = children[c]) != EMPTY) quads.push(child, x0, y0, xm, ym);
+                if ((child = children[c + 1]) != EMPTY) quads.push(child, xm, y0, x1, ym);
+                if ((child = children[c + 2]) != EMPTY) quads.push(child, x0, ym, xm, y1);
+                if ((child = children[c + 3]) != EMPTY) quads.push(child, xm, ym, x1, y1);
+            } else {
+                leaves++;
+                int chain = 0;
+                for (int p = point(node); p >= 0; p = next[p]) chain++;
+                points += chain;
+                longestChain = Math.max(longestChain, chain);
+                histogram = QuadTreeStats.count(histogram, QuadTreeStats.depth(width, x1 - x0));
+            }
+        }
+        final long memory = 4L * (children.length + free.length + next.length + data.length + path.length
+                + moved.length) + 8L * (xs.length + ys.length + movedX.length + movedY.length)
+                + 8L * order.keys.length;
+        return new QuadTreeStats(internalNodes, leaves, points, histogram, longestChain, memory, timer);
+    }
+
+    /**
+     * Removes all points and resets the extent. Internal arrays are kept for reuse.
+     *
+     * @return this tree
+     */
+    public PackedQuadTree<E> clear() {
+        checkWritable();
+        Arrays.fill(data, 0, size, null);
+        size = 0;
+        nodeCount = 0;
+        freeCount = 0;
+        _root = EMPTY;
+        _x0 = _y0 = _x1 = _y1 = Double.NaN;
+        return this;
+    }
+
+    public PackedQuadTree<E> visitAfter(PackedVisitor callback) {
+        final QuadTreeStats.Timer timer = this.timer;
+        final long start = QuadTreeStats.Timer.start(timer);
+        final TraversalStack quads = TraversalStack.quads();
+        final TraversalStack after = TraversalStack.after();
+        final int base = quads.size;
+        final int afterBase = after.size;
+        if (_root != EMPTY) quads.push(_root, _x0, _y0, _x1, _y1);
+        while (quads.size > base) {
+            final int top = --quads.size;
+            final int node = quads.nodes[top];
+            final int b = top << 2;
+            final double x0 = quads.bounds[b], y0 = quads.bounds[b + 1], x1 = quads.bounds[b + 2], y1 = quads.bounds[b + 3];
+            if (node > 0) {
+                final int c = node << 2;
+                final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+                int child;
+                if ((child = children[c]) != EMPTY) quads.push(child, x0, y0, xm, ym);
+                if ((child = children[c + 1]) != EMPTY) quads.push(child, xm, y0, x1, ym);
+                if ((child = children[c + 2]) != EMPTY) quads.push(child, x0, ym, xm, y1);
+                if ((child = children[c + 3]) != EMPTY) quads.push(child, xm, ym, x1, y1);
+            }
+            after.push(node, x0, y0, x1, y1);
+        }
+        while (after.size > afterBase) {
+            final int top = --after.size;
+            final int b = top << 2;
+            callback.visit(after.nodes[top], after.bounds[b], after.bounds[b + 1], after.bounds[b + 2], after.bounds[b + 3]);
+        }
+        if (timer != null) timer.visit(start);
+        return this;
+    }
+
+    public PackedQuadTree<E> visit(PackedVisitor callback) {
+        final QuadTreeStats.Timer timer = this.timer;
+        final long start = QuadTreeStats.Timer.start(timer);
+        final TraversalStack quads = TraversalStack.quads();
+        final int base = quads.size;
+        if (_root != EMPTY) quads.push(_root, _x0, _y0, _x1, _y1);
+        while (quads.size > base) {
+            final int top = --quads.size;
+            final int node = quads.nodes[top];
+            final int b = top << 2;
+            final double x0 = quads.bounds[b], y0 = quads.bounds[b + 1], x1 = quads.bounds[b + 2], y1 = quads.bounds[b + 3];
+            if (!callback.visit(node, x0, y0, x1, y1) && node > 0) {
+                final int c = node << 2;
+                final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+                int child;
+                if ((child = children[c + 3]) != EMPTY) quads.push(child, xm, ym, x1, y1);
+                if ((child = children[c + 2]) != EMPTY) quads.push(child, x0, ym, xm, y1);
+                if ((child = children[c + 1]) != EMPTY) quads.push(child, xm, y0, x1, ym);
+                if ((child = children[c]) != EMPTY) quads.push(child, x0, y0, xm, ym);
+            }
+        }
+        if (timer != null) timer.visit(start);
+        return this;
+    }
+
+    /**
+     * Finds the point closest to the given position.
+     *
+     * @return index of the closest point, or {@code -1} if the tree is empty
+     */
+    public int find(double x, double y) {
+        return find(x, y, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Finds the point closest to the given position within the search radius.
+     *
+     * @param radius search radius, {@code NaN} or infinity to search the whole tree
+     * @return index of the closest point, or {@code -1} if there is no point within the radius
+     */
+    public int find(double x, double y, double radius) {
+        final NearestQueue queue = NearestQueue.get();
+        search(queue, x, y, 1, radius);
+        return queue.count() == 0 ? -1 : queue.pollPoint();
+    }
+
+    /**
+     * Finds up to {@code k} points closest to the given position within the search radius. Quadrants are expanded
+     * best-first, by their distance to the position, and skipped once they are farther than the k-th closest point
+     * found so far.
+     *
+     * @param radius search radius, {@code NaN} or infinity to search the whole tree
+     * @param result buffer for the indices of the found points, ordered from the closest one
+     * @return number of points written to the buffer
+     */
+    public int findK(double x, double y, int k, double radius, int[] result) {
+        if (k > result.length) throw new IllegalArgumentException("result buffer is shorter than " + k);
+        if (k <= 0) return 0;
+        final NearestQueue queue = NearestQueue.get();
+        search(queue, x, y, k, radius);
+        final int count = queue.count();
+        for (int i = count - 1; i >= 0; --i) {
+            result[i] = queue.pollPoint();
+        }
+        return count;
+    }
+
+    private void search(NearestQueue queue, double x, double y, int k, double radius) {
+        queue.reset(k, radius);
+        if (_root == EMPTY) return;
+        if (_root < 0) {
+            neighbours(queue, x, y, _root);
+            return;
+        }
+        queue.offer(_root, null, x, y, _x0, _y0, _x1, _y1);
+        while (queue.poll()) {
+            final int c = queue.node << 2;
+            final double x0 = queue.x0, y0 = queue.y0, x1 = queue.x1, y1 = queue.y1;
+            final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+            for (int i = 0; i < 4; ++i) {
+                final int child = children[c + i];
+                if (child == EMPTY) continue;
+                if (child < 0) {
+                    neighbours(queue, x, y, child);
+                } else {
+                    queue.offer(child, null, x, y,
+                            (i & 1) == 0 ? x0 : xm, (i & 2) == 0 ? y0 : ym,
+                            (i & 1) == 0 ? xm : x1, (i & 2) == 0 ? ym : y1);
+                }
+            }
+        }
+    }
+
+    private void neighbours(NearestQueue queue, double x, double y, int leaf) {
+        for (int p = point(leaf); p >= 0; p = next[p]) {
+            final double dx = xs[p] - x, dy = ys[p] - y;
+            queue.neighbour(dx * dx + dy * dy, p, null);
+        }
+    }
+
+    /**
+     * Passes the index of every point inside the rectangle, boundaries included, to the consumer. Quadrants outside
+     * the rectangle are skipped and the points of quadrants inside it are reported without further tests.
+     *
+     * @return number of points passed to the consumer
+     */
+    public int findInRectangle(double x0, double y0, double x1, double y1, IntConsumer consumer) {
+        return find(Region.rectangle(x0, y0, x1, y1), consumer);
+    }
+
+    /**
+     * Passes the index of every point inside the circle, boundary included, to the consumer.
+     *
+     * @return number of points passed to the consumer
+     * @see #findInRectangle(double, double, double, double, IntConsumer)
+     */
+    public int findInCircle(double x, double y, double radius, IntConsumer consumer) {
+        return find(Region.circle(x, y, radius), consumer);
+    }
+
+    private int find(Region region, IntConsumer consumer) {
+        try {
+            return search(region, consumer);
+        } finally {
+            region.release();
+        }
+    }
+
+    private int search(Region region, IntConsumer consumer) {
+        final TraversalStack quads = TraversalStack.quads();
+        final int base = quads.size;
+        int count = 0;
+        if (_root != EMPTY) quads.push(_root, _x0, _y0, _x1, _y1);
+        while (quads.size > base) {
+            final int top = --quads.size;
+            final int node = quads.nodes[top];
+            final int b = top << 2;
+            final double x0 = quads.bounds[b], y0 = quads.bounds[b + 1], x1 = quads.bounds[b + 2], y1 = quads.bounds[b + 3];
+            if (node < 0) {
+                count += accept(node, region, consumer);
+            } else if (region.contains(x0, y0, x1, y1)) {
+                count += acceptAll(node, consumer);
+            } else {
+                final int c = node << 2;
+                final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+                int child;
+                if ((child = children[c + 3]) != EMPTY && region.intersects(xm, ym, x1, y1)) quads.push(child, xm, ym, x1, y1);
+                if ((child = children[c + 2]) != EMPTY && region.intersects(x0, ym, xm, y1)) quads.push(child, x0, ym, xm, y1);
+                if ((child = children[c + 1]) != EMPTY && region.intersects(xm, y0, x1, ym)) quads.push(child, xm, y0, x1, ym);
+                if ((child = children[c]) != EMPTY && region.intersects(x0, y0, xm, ym)) quads.push(child, x0, y0, xm, ym);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Passes the points of a leaf that are inside the region, or all of them if the region is {@code null}.
+     * Points are tested one by one because the chains of snapshots of bucketed trees are not coincident.
+     */
+    private int accept(int leaf, Region region, IntConsumer consumer) {
+        int count = 0;
+        for (int p = point(leaf); p >= 0; p = next[p]) {
+            if (region == null || region.contains(xs[p], ys[p])) {
+                consumer.accept(p);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int acceptAll(int node, IntConsumer consumer) {
+        final TraversalStack quads = TraversalStack.quads();
+        final int base = quads.size;
+        int count = 0;
+        quads.push(node, 0, 0, 0, 0);
+        while (quads.size > base) {
+            node = quads.nodes[--quads.size];
+            if (node < 0) {
+                count += accept(node, null, consumer);
+            } else {
+                final int c = node << 2;
+                for (int i = 3; i >= 0; --i) {
+                    final int child = children[c + i];
+                    if (child != EMPTY) quads.push(child, 0, 0, 0, 0);
+                }
+            }
+        }
+        return count;
+    }
+
+    public PackedQuadTree<E> cover(double x, double y) {
+        checkWritable();
+        if (Double.isNaN(x) || Double.isNaN(y)) return this; // ignore invalid points
+
+        double x0 = this._x0;
+        double y0 = this._y0;
+        double x1 = this._x1;
+        double y1 = this._y1;
+
+        // If the quadtree has no extent, initialize them.
+        // Integer extent are necessary so that if we later double the extent,
+        // the existing quadrant boundaries don’t change due to floating point error!
+        if (Double.isNaN(x0)) {
+            x0 = Math.floor(x);
+            y0 = Math.floor(y);
+            x1 = (x0) + 1;
+            y1 = (y0) + 1;
+        }
+        // Otherwise, double repeatedly to cover.
+        // Only an internal root is wrapped into new parents; an empty or leaf root just gets a larger extent.
+        else {
+            final boolean wrap = _root > 0;
+            double z = x1 - x0;
+            int node = this._root;
+            int parent;
+            int i;
+
+            while (x0 > x || x >= x1 || y0 > y || y >= y1) {
+                i = bool(y < y0) << 1 | bool(x < x0);
+                if (wrap) {
+                    parent = newNode();
+                    children[(parent << 2) + i] = node;
+                    if (aggregator != null) aggregator.combine(parent);
+                    node = parent;
+                }
+                z *= 2;
+                switch (i) {
+                    case 0 -> {
+                        x1 = x0 + z;
+                        y1 = y0 + z;
+                    }
+                    case 1 -> {
+                        x0 = x1 - z;
+                        y1 = y0 + z;
+                    }
+                    case 2 -> {
+                        x1 = x0 + z;
+                        y0 = y1 - z;
+                    }
+                    case 3 -> {
+                        x0 = x1 - z;
+                        y0 = y1 - z;
+                    }
+                }
+            }
+
+            if (wrap) {
+                this._root = node;
+            }
+        }
+
+        this._x0 = x0;
+        this._y0 = y0;
+        this._x1 = x1;
+        this._y1 = y1;
+        return this;
+    }
+
+    /**
+     * Adds all elements of the list. Element {@code i} of the list gets the point index {@code size() + i}.
+     * An empty tree is bulk loaded: the points are sorted in Z-order and the tree is built top-down in one pass.
+     *
+     * @param data elements to add
+     * @return this tree
+     */
+    public PackedQuadTree<E> addAll(List<E> data) {
+        checkWritable();
+        final QuadTreeStats.Timer timer = this.timer;
+        final long start = QuadTreeStats.Timer.start(timer);
+        insertAll(data);
+        if (timer != null) timer.build(start);
+        return this;
+    }
+
+    private void insertAll(List<E> data) {
+        final int n = data.size();
+        final int first = size;
+        ensurePoints(first + n);
+        double x0 = Double.POSITIVE_INFINITY,
+                y0 = Double.POSITIVE_INFINITY,
+                x1 = Double.NEGATIVE_INFINITY,
+                y1 = Double.NEGATIVE_INFINITY;
+
+        // Compute the points and their extent.
+        for (int i = 0; i < n; ++i) {
+            E d = data.get(i);
+            double x = this._x.applyAsDouble(d);
+            double y = this._y.applyAsDouble(d);
+            store(d, x, y);
+            if (Double.isNaN(x) || Double.isNaN(y)) continue;
+
+            if (x < x0) x0 = x;
+            if (x > x1) x1 = x;
+            if (y < y0) y0 = y;
+            if (y > y1) y1 = y;
+        }
+
+        // If there were no (valid) points, abort.
+        if (x0 > x1 || y0 > y1) return;
+
+        // Expand the tree to cover the new points.
+        this.cover(x0, y0).cover(x1, y1);
+
+        // Load an empty tree in Z-order, this gives the same structure as adding the points one by one.
+        if (_root == EMPTY) {
+            order.sort(xs, ys, first, size, _x0, _y0, _x1, _y1);
+            _root = build(0, order.count, 0, _x0, _y0, _x1, _y1);
+            aggregate();
+            return;
+        }
+
+        // Add the new points.
+        for (int p = first; p < size; ++p) {
+            insert(p);
+            refresh(xs[p], ys[p]);
+        }
+    }
+
+    /**
+     * Builds the subtree of a quadrant from a range of Z-ordered points.
+     */
+    private int build(int lo, int hi, int level, double x0, double y0, double x1, double y1) {
+        if (lo == hi) return EMPTY;
+        final boolean sameCell = order.sameCell(lo, hi - 1);
+        if (sameCell && order.coincident(xs, ys, lo, hi) || bucketed() && fits(hi - lo, level)) {
+            if (hi - lo > bucket.length) bucket = new int[Math.max(hi - lo, bucket.length << 1)];
+            for (int k = lo; k < hi; ++k) {
+                bucket[k - lo] = order.point(k);
+            }
+            return chain(bucket, 0, hi - lo);
+        }
+        if (sameCell) {
+            // The points are too close to be separated by their keys.
+            final int[] points = order.points(lo, hi);
+            return build(points, new int[points.length], 0, points.length, level, x0, y0, x1, y1);
+        }
+
+        final int node = newNode();
+        final int c = node << 2;
+        final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+        final int b1 = order.lowerBound(lo, hi, level, 1);
+        final int b2 = order.lowerBound(b1, hi, level, 2);
+        final int b3 = order.lowerBound(b2, hi, level, 3);
+        int child;
+        child = build(lo, b1, level + 1, x0, y0, xm, ym);
+        children[c] = child;
+        child = build(b1, b2, level + 1, xm, y0, x1, ym);
+        children[c + 1] = child;
+        child = build(b2, b3, level + 1, x0, ym, xm, y1);
+        children[c + 2] = child;
+        child = build(b3, hi, level + 1, xm, ym, x1, y1);
+        children[c + 3] = child;
+        return node;
+    }
+
+    /**
+     * Builds the subtree of a quadrant from a range of point indices by comparing coordinates with the midpoints.
+     */
+    private int build(int[] points, int[] scratch, int lo, int hi, int level,
+                      double x0, double y0, double x1, double y1) {
+        if (lo == hi) return EMPTY;
+        if (MortonOrder.coincident(xs, ys, points, lo, hi) || bucketed() && fits(hi - lo, level)) {
+            return chain(points, lo, hi);
+        }
+
+        final int node = newNode();
+        final int c = node << 2;
+        final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+        final int[] b = MortonOrder.partition(xs, ys, points, scratch, lo, hi, xm, ym);
+        int child;
+        child = build(points, scratch, b[0], b[1], level + 1, x0, y0, xm, ym);
+        children[c] = child;
+        child = build(points, scratch, b[1], b[2], level + 1, xm, y0, x1, ym);
+        children[c + 1] = child;
+        child = build(points, scratch, b[2], b[3], level + 1, x0, ym, xm, y1);
+        children[c + 2] = child;
+        child = build(points, scratch, b[3], b[4], level + 1, xm, ym, x1, y1);
+        children[c + 3] = child;
+        return node;
+    }
+
+    /**
+     * Chains a range of points into a leaf. Like insertion, which puts every point in front of its leaf, the chain
+     * starts with the point that was added last.
+     *
+     * @param points point indices, sorted in place
+     */
+    private int chain(int[] points, int lo, int hi) {
+        Arrays.sort(points, lo, hi);
+        int head = -1;
+        for (int k = lo; k < hi; ++k) {
+            next[points[k]] = head;
+            head = points[k];
+        }
+        return leaf(head);
+    }
+
+    /**
+     * Adds an element. The element gets the point index {@code size()}.
+     *
+     * @param data element to add
+     * @return this tree
+     */
+    public PackedQuadTree<E> add(E data) {
+        checkWritable();
+        final double x = _x.applyAsDouble(data);
+        final double y = _y.applyAsDouble(data);
+        ensurePoints(size + 1);
+        final int p = store(data, x, y);
+        cover(x, y).insert(p);
+        refresh(x, y);
+        return this;
+    }
+
+    /**
+     * Removes a point from the tree. Internal nodes that are no longer needed are pruned and their handles are
+     * reused. The point keeps its index, so the indices of other points do not change, and it can be inserted
+     * again with {@link #move(int, double, double)}.
+     *
+     * @param point point index
+     * @return this tree
+     */
+    public PackedQuadTree<E> remove(int point) {
+        checkWritable();
+        if (detach(point)) refresh(xs[point], ys[point]);
+        return this;
+    }
+
+    /**
+     * Moves a point to a new position. Only the stored coordinates change when the point is the only point of its
+     * leaf and stays inside the quadrant of that leaf; otherwise the point is removed and inserted again.
+     * A point that is not in the tree is inserted.
+     *
+     * @param point point index
+     * @param x     new x coordinate
+     * @param y     new y coordinate
+     * @return this tree
+     */
+    public PackedQuadTree<E> move(int point, double x, double y) {
+        checkWritable();
+        if (staysInLeaf(point, x, y)) {
+            xs[point] = x;
+            ys[point] = y;
+        } else {
+            if (detach(point)) refresh(xs[point], ys[point]);
+            xs[point] = x;
+            ys[point] = y;
+            cover(x, y).insert(point);
+        }
+        refresh(x, y);
+        return this;
+    }
+
+    /**
+     * Reads the positions of all points in the tree through the accessors and re-inserts the points that have left
+     * the quadrant of their leaf. Points that stay inside their quadrant only get their stored coordinates updated,
+     * so the cost is one pass over the leaves plus work proportional to the number of relocated points.
+     * Coincident points that are no longer coincident are relocated as well. Points that stay may have moved
+     * too, so the aggregates of all nodes are recomputed once at the end.
+     *
+     * @return number of relocated points
+     */
+    public int relocate() {
+        checkWritable();
+        final PackedAggregator aggregator = this.aggregator;
+        this.aggregator = null;
+        final boolean bucketed = bucketed();
+        int count = 0;
+        final TraversalStack quads = TraversalStack.quads();
+        final int base = quads.size;
+        if (_root != EMPTY) quads.push(_root, _x0, _y0, _x1, _y1);
+        while (quads.size > base) {
+            final int top = --quads.size;
+            final int node = quads.nodes[top];
+            final int b = top << 2;
+            final double x0 = quads.bounds[b], y0 = quads.bounds[b + 1], x1 = quads.bounds[b + 2], y1 = quads.bounds[b + 3];
+            if (node > 0) {
+                final int c = node << 2;
+                final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+                int child;
+                if ((child = children[c + 3]) != EMPTY) quads.push(child, xm, ym, x1, y1);
+                if ((child = children[c + 2]) != EMPTY) quads.push(child, x0, ym, xm, y1);
+                if ((child = children[c + 1]) != EMPTY) quads.push(child, xm, y0, x1, ym);
+                if ((child = children[c]) != EMPTY) quads.push(child, x0, y0, xm, ym);
+                continue;
+            }
+            // The first point that is still inside the quadrant stays, so do the points coincident with it.
+            // A bucket that cannot overflow keeps all points that are still inside.
+            boolean keepInside = false;
+            if (bucketed) {
+                int chain = 0;
+                for (int p = point(node); p >= 0; p = next[p]) chain++;
+                keepInside = fits(chain, QuadTreeStats.depth(_x1 - _x0, x1 - x0));
+            }
+            double xr = Double.NaN;
+            double yr = Double.NaN;
+            for (int p = point(node); p >= 0; p = next[p]) {
+                @SuppressWarnings("unchecked") final E d = (E) data[p];
+                final double x = _x.applyAsDouble(d);
+                final double y = _y.applyAsDouble(d);
+                final boolean inside = x0 <= x && x < x1 && y0 <= y && y < y1;
+                if (inside && Double.isNaN(xr)) {
+                    xr = xs[p] = x;
+                    yr = ys[p] = y;
+                } else if (inside && (keepInside || Double.compare(x, xr) == 0 && Double.compare(y, yr) == 0)) {
+                    xs[p] = x;
+                    ys[p] = y;
+                } else {
+                    if (count == moved.length) {
+                        moved = Arrays.copyOf(moved, count << 1);
+                        movedX = Arrays.copyOf(movedX, count << 1);
+                        movedY = Arrays.copyOf(movedY, count << 1);
+                    }
+                    moved[count] = p;
+                    movedX[count] = x;
+                    movedY[count] = y;
+                    count++;
+                }
+            }
+        }
+
+        // Relocated points are found by their stored coordinates. All of them are removed before any is inserted,
+        // so that the remaining leaves only hold points at their current positions when they are split.
+        for (int i = 0; i < count; ++i) {
+            detach(moved[i]);
+        }
+        for (int i = 0; i < count; ++i) {
+            final int p = moved[i];
+            xs[p] = movedX[i];
+            ys[p] = movedY[i];
+            cover(xs[p], ys[p]).insert(p);
+        }
+        this.aggregator = aggregator;
+        aggregate();
+        return count;
+    }
+
+    private boolean staysInLeaf(int p, double x, double y) {
+        final double xp = xs[p];
+        final double yp = ys[p];
+        if (Double.isNaN(xp) || Double.isNaN(yp) || _root == EMPTY) return false;
+
+        int node = _root;
+        double x0 = _x0;
+        double y0 = _y0;
+        double x1 = _x1;
+        double y1 = _y1;
+        double xm;
+        double ym;
+        int depth = 0;
+        while (node > 0) {
+            depth++;
+            xm = (x0 + x1) / 2;
+            if (xp >= xm) {
+                x0 = xm;
+            } else {
+                x1 = xm;
+            }
+            ym = (y0 + y1) / 2;
+            if (yp >= ym) {
+                y0 = ym;
+            } else {
+                y1 = ym;
+            }
+            node = children[(node << 2) + (bool(yp >= ym) << 1 | bool(xp >= xm))];
+        }
+        if (!(x0 <= x && x < x1 && y0 <= y && y < y1)) return false;
+        if (node == leaf(p) && next[p] < 0) return true;
+        if (!bucketed()) return false;
+        // A bucket that cannot overflow keeps points at any position of its quadrant.
+        int count = 0;
+        boolean found = false;
+        for (int q = point(node); q >= 0; q = next[q]) {
+            count++;
+            found |= q == p;
+        }
+        return found && fits(count, depth);
+    }
+
+    private boolean detach(int p) {
+        final double x = xs[p];
+        final double y = ys[p];
+        if (Double.isNaN(x) || Double.isNaN(y)) return false; // ignore invalid points
+
+        int parent = EMPTY;
+        int node = _root;
+        int retainer = EMPTY;
+        int retained = -1;
+        int depth = 0;
+        int previous = -1;
+        int after;
+        double x0 = _x0;
+        double y0 = _y0;
+        double x1 = _x1;
+        double y1 = _y1;
+        double xm;
+        double ym;
+        boolean right;
+        boolean bottom;
+        int i = -1;
+        int j = -1;
+
+        if (node == EMPTY) return false;
+
+        // Find the leaf node for the point.
+        // While descending, also retain the deepest parent with a non-removed sibling.
+        if (node > 0) {
+            while (true) {
+                xm = (x0 + x1) / 2;
+                right = x >= xm;
+                if (right) {
+                    x0 = xm;
+                } else {
+                    x1 = xm;
+                }
+                ym = (y0 + y1) / 2;
+                bottom = y >= ym;
+                if (bottom) {
+                    y0 = ym;
+                } else {
+                    y1 = ym;
+                }
+                parent = node;
+                if (depth == path.length) path = Arrays.copyOf(path, depth << 1);
+                path[depth++] = parent;
+                i = bool(bottom) << 1 | bool(right);
+                node = children[(parent << 2) + i];
+                if (node == EMPTY) return false;
+                if (node < 0) break;
+                final int c = parent << 2;
+                if (children[c + ((i + 1) & 3)] != EMPTY || children[c + ((i + 2) & 3)] != EMPTY || children[c + ((i + 3) & 3)] != EMPTY) {
+                    retainer = parent;
+                    retained = depth - 1;
+                    j = i;
+                }
+            }
+        }
+
+        // Find the point to remove.
+        int q = point(node);
+        while (q != p) {
+            previous = q;
+            q = next[q];
+            if (q < 0) return false;
+        }
+        after = next[p];
+        next[p] = -1;
+
+        // If there are other points in the leaf, remove just the point. A bucket that shrinks may now fit higher up.
+        if (previous >= 0) {
+            next[previous] = after;
+            if (parent != EMPTY) collapse(parent, retainer, retained, j, depth);
+            return true;
+        }
+
+        // If this is the root point, remove it.
+        if (parent == EMPTY) {
+            _root = after >= 0 ? leaf(after) : EMPTY;
+            return true;
+        }
+
+        // Remove this leaf.
+        children[(parent << 2) + i] = after >= 0 ? leaf(after) : EMPTY;
+        collapse(parent, retainer, retained, j, depth);
+        return true;
+    }
+
+    /**
+     * If the parent of a changed leaf now contains exactly one leaf, collapses superfluous parents.
+     *
+     * @param depth number of internal nodes on the {@link #path} to the leaf
+     */
+    private void collapse(int parent, int retainer, int retained, int j, int depth) {
+        final int c = parent << 2;
+        int node;
+        int first = EMPTY;
+        int last = EMPTY;
+        for (int k = 0; k < 4; ++k) {
+            if ((node = children[c + k]) != EMPTY) {
+                if (first == EMPTY) first = node;
+                last = node;
+            }
+        }
+        // A parent of a bucket at the depth cap can be left without children, then it is pruned.
+        // A bucket is only moved up if it does not overflow at the shallower depth.
+        if (first == EMPTY || first < 0 && first == last && !overfull(first, retained + 1)) {
+            if (retainer != EMPTY) {
+                children[(retainer << 2) + j] = first;
+            } else {
+                _root = first;
+            }
+            // Nodes below the retainer are no longer reachable.
+            for (int k = retained + 1; k < depth; ++k) {
+                if (freeCount == free.length) free = Arrays.copyOf(free, freeCount << 1);
+                free[freeCount++] = path[k];
+            }
+        }
+    }
+
+    private int store(E d, double x, double y) {
+        final int p = size++;
+        data[p] = d;
+        xs[p] = x;
+        ys[p] = y;
+        next[p] = -1;
+        return p;
+    }
+
+    private void ensurePoints(int capacity) {
+        if (capacity > xs.length) {
+            capacity = Math.max(capacity, xs.length << 1);
+            data = Arrays.copyOf(data, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            next = Arrays.copyOf(next, capacity);
+        }
+    }
+
+    private int newNode() {
+        final int node = freeCount > 0 ? free[--freeCount] : ++nodeCount;
+        final int c = node << 2;
+        if (c + 4 > children.length) {
+            children = Arrays.copyOf(children, Math.max(c + 4, children.length << 1));
+        }
+        children[c] = children[c + 1] = children[c + 2] = children[c + 3] = EMPTY;
+        return node;
+    }
+
+    private void insert(int p) {
+        final double x = xs[p];
+        final double y = ys[p];
+        if (Double.isNaN(x) || Double.isNaN(y)) return; // ignore invalid points
+        if (bucketed()) {
+            insertIntoBucket(p, x, y);
+            return;
+        }
+
+        final int leaf = leaf(p);
+        int parent = EMPTY;
+        int node = _root;
+        double x0 = _x0;
+        double y0 = _y0;
+        double x1 = _x1;
+        double y1 = _y1;
+        double xm;
+        double ym;
+        double xp;
+        double yp;
+        boolean right;
+        boolean bottom;
+        int i = -1;
+        int j;
+
+        // If the tree is empty, initialize the root as a leaf.
+        if (node == EMPTY) {
+            _root = leaf;
+            return;
+        }
+
+        // Find the existing leaf for the new point, or add it.
+        while (node > 0) {
+            xm = (x0 + x1) / 2;
+            right = x >= xm;
+            if (right) {
+                x0 = xm;
+            } else {
+                x1 = xm;
+            }
+            ym = (y0 + y1) / 2;
+            bottom = y >= ym;
+            if (bottom) {
+                y0 = ym;
+            } else {
+                y1 = ym;
+            }
+            parent = node;
+            i = bool(bottom) << 1 | bool(right);
+            node = children[(parent << 2) + i];
+            if (node == EMPTY) {
+                children[(parent << 2) + i] = leaf;
+                return;
+            }
+        }
+
+        // Is the new point is exactly coincident with the existing point?
+        final int q = point(node);
+        xp = xs[q];
+        yp = ys[q];
+
+        if (Double.compare(x, xp) == 0 && Double.compare(y, yp) == 0) {
+            next[p] = q;
+            if (parent != EMPTY) {
+                children[(parent << 2) + i] = leaf;
+            } else {
+                _root = leaf;
+            }
+            return;
+        }
+
+        // Otherwise, split the leaf node until the old and new point are separated.
+        do {
+            final int created = newNode();
+            if (parent != EMPTY) {
+                children[(parent << 2) + i] = created;
+            } else {
+                _root = created;
+            }
+            parent = created;
+
+            xm = (x0 + x1) / 2;
+            right = (x >= xm);
+            if (right) {
+                x0 = xm;
+            } else {
+                x1 = xm;
+            }
+
+            ym = (y0 + y1) / 2;
+            bottom = (y >= ym);
+            if (bottom) {
+                y0 = ym;
+            } else {
+                y1 = ym;
+            }
+        } while ((i = bool(bottom) << 1 | bool(right)) == (j = bool(yp >= ym) << 1 | bool(xp >= xm)));
+        children[(parent << 2) + j] = node;
+        children[(parent << 2) + i] = leaf;
+    }
+
+    /**
+     * Puts a point in front of the leaf of its quadrant and splits the leaf if it overflows.
+     */
+    private void insertIntoBucket(int p, double x, double y) {
+        final int leaf = leaf(p);
+        int parent = EMPTY;
+        int node = _root;
+        double x0 = _x0;
+        double y0 = _y0;
+        double x1 = _x1;
+        double y1 = _y1;
+        double xm;
+        double ym;
+        boolean right;
+        boolean bottom;
+        int i = -1;
+        int depth = 0;
+
+        // If the tree is empty, initialize the root as a leaf.
+        if (node == EMPTY) {
+            _root = leaf;
+            return;
+        }
+
+        // Find the existing leaf for the new point, or add it.
+        while (node > 0) {
+            xm = (x0 + x1) / 2;
+            right = x >= xm;
+            if (right) {
+                x0 = xm;
+            } else {
+                x1 = xm;
+            }
+            ym = (y0 + y1) / 2;
+            bottom = y >= ym;
+            if (bottom) {
+                y0 = ym;
+            } else {
+                y1 = ym;
+            }
+            parent = node;
+            i = bool(bottom) << 1 | bool(right);
+            node = children[(parent << 2) + i];
+            depth++;
+            if (node == EMPTY) {
+                children[(parent << 2) + i] = leaf;
+                return;
+            }
+        }
+
+        next[p] = point(node);
+        if (parent != EMPTY) {
+            children[(parent << 2) + i] = leaf;
+        } else {
+            _root = leaf;
+        }
+        split(parent, i, leaf, depth, x0, y0, x1, y1);
+    }
+
+    /**
+     * Replaces an overflowing leaf by an internal node and distributes its points to the child quadrants, keeping
+     * their order, until no leaf overflows.
+     */
+    private void split(int parent, int i, int leaf, int depth, double x0, double y0, double x1, double y1) {
+        if (!overfull(leaf, depth)) return;
+
+        final int node = newNode();
+        if (parent != EMPTY) {
+            children[(parent << 2) + i] = node;
+        } else {
+            _root = node;
+        }
+        final int c = node << 2;
+        final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+        // Prepending reverses the order of the points, so the chains are reversed once more afterwards.
+        for (int q = point(leaf), after; q >= 0; q = after) {
+            after = next[q];
+            final int j = bool(ys[q] >= ym) << 1 | bool(xs[q] >= xm);
+            final int child = children[c + j];
+            next[q] = child == EMPTY ? -1 : point(child);
+            children[c + j] = leaf(q);
+        }
+        for (int j = 0; j < 4; ++j) {
+            int head = -1;
+            for (int q = point(children[c + j]), after; q >= 0; q = after) {
+                after = next[q];
+                next[q] = head;
+                head = q;
+            }
+            if (head < 0) continue;
+            children[c + j] = leaf(head);
+            split(node, j, leaf(head), depth + 1,
+                    (j & 1) == 0 ? x0 : xm, (j & 2) == 0 ? y0 : ym,
+                    (j & 1) == 0 ? xm : x1, (j & 2) == 0 ? ym : y1);
+        }
+    }
+}
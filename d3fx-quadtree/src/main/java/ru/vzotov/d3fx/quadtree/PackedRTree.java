@@ -0,0 +1,395 @@
+package ru.vzotov.d3fx.quadtree;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Static R-tree of bounding boxes, packed into primitive arrays.
+ * <p>
+ * Unlike the quadtrees, which index points, the tree indexes elements with an extent: rectangles, circles or
+ * anything else that has a bounding box. The boxes are sorted in Z-order of their centers and grouped bottom-up
+ * into nodes of {@link #nodeSize()} entries, so that every node holds the bounding box of its children. A query
+ * only descends into nodes whose box overlaps the query region and reports only elements whose own box overlaps
+ * it; nodes that lie entirely inside the region are reported without further tests.
+ * <p>
+ * Node {@code k} of the tree has its box at {@code boxes[4 * k] .. boxes[4 * k + 3]}. Nodes below
+ * {@link #size()} are the element boxes in Z-order, followed by the levels of internal nodes, the root being the
+ * last one. Elements are identified by their index in the list passed to {@link #load(List)}. The tree is rebuilt
+ * from scratch by every load and keeps its arrays, so a tree that is reloaded on every simulation tick does not
+ * allocate. Queries use per-thread stacks and may run concurrently as long as the tree is not reloaded.
+ *
+ * @param <E> type of tree elements
+ */
+public class PackedRTree<E> {
+
+    /**
+     * Default maximum number of children of a node
+     */
+    public static final int DEFAULT_NODE_SIZE = 16;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * Number of bits per axis of the Z-order keys
+     */
+    private static final int KEY_BITS = 16;
+
+    public static <E> PackedRTree<E> rTree(List<E> data,
+                                           ToDoubleFunction<E> x0, ToDoubleFunction<E> y0,
+                                           ToDoubleFunction<E> x1, ToDoubleFunction<E> y1) {
+        PackedRTree<E> tree = new PackedRTree<>(x0, y0, x1, y1);
+        tree.load(data);
+        return tree;
+    }
+
+    /**
+     * Creates a tree of circles, indexed by their bounding squares.
+     */
+    public static <E> PackedRTree<E> circles(List<E> data,
+                                             ToDoubleFunction<E> x, ToDoubleFunction<E> y, ToDoubleFunction<E> r) {
+        return rTree(data,
+                d -> x.applyAsDouble(d) - r.applyAsDouble(d),
+                d -> y.applyAsDouble(d) - r.applyAsDouble(d),
+                d -> x.applyAsDouble(d) + r.applyAsDouble(d),
+                d -> y.applyAsDouble(d) + r.applyAsDouble(d));
+    }
+
+    private final ToDoubleFunction<E> _x0;
+    private final ToDoubleFunction<E> _y0;
+    private final ToDoubleFunction<E> _x1;
+    private final ToDoubleFunction<E> _y1;
+    private int _nodeSize = DEFAULT_NODE_SIZE;
+
+    /**
+     * Node size the current contents were grouped with, which the queries have to use until the next load
+     */
+    private int loadedNodeSize = DEFAULT_NODE_SIZE;
+
+    /**
+     * Elements and their boxes, by element index
+     */
+    private Object[] data = new Object[DEFAULT_CAPACITY];
+    private double[] items = new double[DEFAULT_CAPACITY << 2];
+    private int size;
+
+    /**
+     * Boxes of the nodes, leaves first
+     */
+    private double[] boxes = new double[DEFAULT_CAPACITY << 2];
+
+    /**
+     * Element index of a leaf, or position of the first child of an internal node
+     */
+    private int[] indices = new int[DEFAULT_CAPACITY];
+
+    /**
+     * End positions of the levels, from the leaves up to the root
+     */
+    private int[] levels = new int[8];
+    private int levelCount;
+    private int leafCount;
+    private int nodeCount;
+
+    private long[] keys = new long[0];
+
+    public PackedRTree(ToDoubleFunction<E> x0, ToDoubleFunction<E> y0,
+                       ToDoubleFunction<E> x1, ToDoubleFunction<E> y1) {
+        this._x0 = x0;
+        this._y0 = y0;
+        this._x1 = x1;
+        this._y1 = y1;
+    }
+
+    public int nodeSize() {
+        return _nodeSize;
+    }
+
+    /**
+     * Sets the maximum number of children of a node, which takes effect with the next {@link #load(List)}; queries
+     * keep using the size the current contents were loaded with. Small nodes make the queries more selective, large
+     * nodes make the tree shallower and faster to build.
+     *
+     * @param nodeSize maximum number of children, at least 2
+     * @return this tree
+     */
+    public PackedRTree<E> nodeSize(int nodeSize) {
+        if (nodeSize < 2) throw new IllegalArgumentException("node size must be at least 2");
+        this._nodeSize = nodeSize;
+        return this;
+    }
+
+    /**
+     * @return number of elements passed to the last load, including the ones with invalid boxes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of nodes of the tree, leaves included
+     */
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @param item element index
+     * @return element
+     */
+    @SuppressWarnings("unchecked")
+    public E data(int item) {
+        return (E) data[item];
+    }
+
+    public double x0(int item) {
+        return items[item << 2];
+    }
+
+    public double y0(int item) {
+        return items[(item << 2) + 1];
+    }
+
+    public double x1(int item) {
+        return items[(item << 2) + 2];
+    }
+
+    public double y1(int item) {
+        return items[(item << 2) + 3];
+    }
+
+    /**
+     * @return left edge of the boxes of all elements, or {@code NaN} if the tree is empty
+     */
+    public double x0() {
+        return nodeCount == 0 ? Double.NaN : boxes[(nodeCount - 1) << 2];
+    }
+
+    public double y0() {
+        return nodeCount == 0 ? Double.NaN : boxes[((nodeCount - 1) << 2) + 1];
+    }
+
+    public double x1() {
+        return nodeCount == 0 ? Double.NaN : boxes[((nodeCount - 1) << 2) + 2];
+    }
+
+    public double y1() {
+        return nodeCount == 0 ? Double.NaN : boxes[((nodeCount - 1) << 2) + 3];
+    }
+
+    /**
+     * Replaces the contents of the tree with the elements of the list. Element {@code i} of the list gets the
+     * index {@code i}. Elements with a {@code NaN} coordinate or an inverted box are not indexed.
+     *
+     * @param data elements to index
+     * @return this tree
+     */
+    public PackedRTree<E> load(List<E> data) {
+        final int n = data.size();
+        Arrays.fill(this.data, 0, size, null);
+        if (this.data.length < n) {
+            this.data = new Object[n];
+            this.items = new double[n << 2];
+        }
+        if (keys.length < n) {
+            keys = new long[n];
+        }
+        size = n;
+
+        // Compute the boxes and the extent of their centers.
+        double cx0 = Double.POSITIVE_INFINITY,
+                cy0 = Double.POSITIVE_INFINITY,
+                cx1 = Double.NEGATIVE_INFINITY,
+                cy1 = Double.NEGATIVE_INFINITY;
+        int count = 0;
+        for (int i = 0; i < n; ++i) {
+            final E d = data.get(i);
+            final double x0 = _x0.applyAsDouble(d), y0 = _y0.applyAsDouble(d);
+            final double x1 = _x1.applyAsDouble(d), y1 = _y1.applyAsDouble(d);
+            this.data[i] = d;
+            final int b = i << 2;
+            items[b] = x0;
+            items[b + 1] = y0;
+            items[b + 2] = x1;
+            items[b + 3] = y1;
+            if (!(x0 <= x1 && y0 <= y1)) continue; // ignore invalid boxes
+            final double cx = (x0 + x1) / 2, cy = (y0 + y1) / 2;
+            if (cx < cx0) cx0 = cx;
+            if (cx > cx1) cx1 = cx;
+            if (cy < cy0) cy0 = cy;
+            if (cy > cy1) cy1 = cy;
+            keys[count++] = i;
+        }
+
+        // Sort the elements in Z-order of their centers.
+        final double max = (1 << KEY_BITS) - 1;
+        final double sx = cx1 > cx0 ? max / (cx1 - cx0) : 0;
+        final double sy = cy1 > cy0 ? max / (cy1 - cy0) : 0;
+        for (int k = 0; k < count; ++k) {
+            final int b = (int) keys[k] << 2;
+            final long u = (long) (((items[b] + items[b + 2]) / 2 - cx0) * sx);
+            final long v = (long) (((items[b + 1] + items[b + 3]) / 2 - cy0) * sy);
+            keys[k] |= (MortonOrder.spread(u) | MortonOrder.spread(v) << 1) << 32;
+        }
+        if (count >= 1 << 14) {
+            Arrays.parallelSort(keys, 0, count);
+        } else {
+            Arrays.sort(keys, 0, count);
+        }
+
+        // Lay out the levels.
+        final int nodeSize = _nodeSize;
+        loadedNodeSize = nodeSize;
+        leafCount = count;
+        levelCount = 0;
+        nodeCount = 0;
+        if (count == 0) return this;
+        int total = count;
+        addLevel(total);
+        int m = count;
+        do {
+            m = (m + nodeSize - 1) / nodeSize;
+            total += m;
+            addLevel(total);
+        } while (m > 1);
+        nodeCount = total;
+        if (indices.length < total) {
+            indices = new int[total];
+            boxes = new double[total << 2];
+        }
+
+        // Fill the leaves and group them bottom-up.
+        for (int k = 0; k < count; ++k) {
+            final int item = (int) keys[k];
+            indices[k] = item;
+            System.arraycopy(items, item << 2, boxes, k << 2, 4);
+        }
+        int parent = count;
+        for (int l = 0, pos = 0; l < levelCount - 1; ++l) {
+            final int end = levels[l];
+            while (pos < end) {
+                final int last = Math.min(pos + nodeSize, end);
+                double x0 = Double.POSITIVE_INFINITY,
+                        y0 = Double.POSITIVE_INFINITY,
+                        x1 = Double.NEGATIVE_INFINITY,
+                        y1 = Double.NEGATIVE_INFINITY;
+                indices[parent] = pos;
+                for (; pos < last; ++pos) {
+                    final int b = pos << 2;
+                    if (boxes[b] < x0) x0 = boxes[b];
+                    if (boxes[b + 1] < y0) y0 = boxes[b + 1];
+                    if (boxes[b + 2] > x1) x1 = boxes[b + 2];
+                    if (boxes[b + 3] > y1) y1 = boxes[b + 3];
+                }
+                final int b = parent << 2;
+                boxes[b] = x0;
+                boxes[b + 1] = y0;
+                boxes[b + 2] = x1;
+                boxes[b + 3] = y1;
+                parent++;
+            }
+        }
+        return this;
+    }
+
+    private void addLevel(int end) {
+        if (levelCount == levels.length) {
+            levels = Arrays.copyOf(levels, levelCount << 1);
+        }
+        levels[levelCount++] = end;
+    }
+
+    /**
+     * @return end position of the level that contains the node
+     */
+    private int levelEnd(int node) {
+        int l = 0;
+        while (levels[l] <= node) l++;
+        return levels[l];
+    }
+
+    /**
+     * Passes the index of every element whose box overlaps the rectangle, boundaries included, to the consumer.
+     *
+     * @return number of elements passed to the consumer
+     */
+    public int findOverlapping(double x0, double y0, double x1, double y1, IntConsumer consumer) {
+        return find(Region.rectangle(x0, y0, x1, y1), consumer);
+    }
+
+    /**
+     * Passes the index of every element whose box overlaps the circle, boundary included, to the consumer.
+     *
+     * @return number of elements passed to the consumer
+     */
+    public int findOverlapping(double x, double y, double radius, IntConsumer consumer) {
+        return find(Region.circle(x, y, radius), consumer);
+    }
+
+    /**
+     * Passes the index of every element whose box contains the position, e.g. to hit-test rectangles.
+     *
+     * @return number of elements passed to the consumer
+     */
+    public int findContaining(double x, double y, IntConsumer consumer) {
+        return find(Region.rectangle(x, y, x, y), consumer);
+    }
+
+    private int find(Region region, IntConsumer consumer) {
+        try {
+            return search(region, consumer);
+        } finally {
+            region.release();
+        }
+    }
+
+    private int search(Region region, IntConsumer consumer) {
+        if (nodeCount == 0) return 0;
+        final int root = nodeCount - 1;
+        final int rb = root << 2;
+        if (!region.intersects(boxes[rb], boxes[rb + 1], boxes[rb + 2], boxes[rb + 3])) return 0;
+
+        final int nodeSize = loadedNodeSize;
+        final TraversalStack quads = TraversalStack.quads();
+        final int base = quads.size;
+        int count = 0;
+        quads.push(root, 0, 0, 0, 0);
+        while (quads.size > base) {
+            final int node = quads.nodes[--quads.size];
+            final int first = indices[node];
+            final int last = Math.min(first + nodeSize, levelEnd(first));
+            for (int child = first; child < last; ++child) {
+                final int b = child << 2;
+                final double x0 = boxes[b], y0 = boxes[b + 1], x1 = boxes[b + 2], y1 = boxes[b + 3];
+                if (!region.intersects(x0, y0, x1, y1)) continue;
+                if (child < leafCount) {
+                    consumer.accept(indices[child]);
+                    count++;
+                } else if (region.contains(x0, y0, x1, y1)) {
+                    count += acceptAll(child, consumer);
+                } else {
+                    quads.push(child, 0, 0, 0, 0);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Passes all elements below a node to the consumer. The leaves of a subtree are contiguous, so they are found
+     * by following the first and the last child down to the leaf level.
+     */
+    private int acceptAll(int node, IntConsumer consumer) {
+        int first = node;
+        int last = node;
+        while (first >= leafCount) {
+            first = indices[first];
+            last = Math.min(indices[last] + loadedNodeSize, levelEnd(indices[last])) - 1;
+        }
+        for (int k = first; k <= last; ++k) {
+            consumer.accept(indices[k]);
+        }
+        return last - first + 1;
+    }
+}
@@ -0,0 +1,23 @@
+package ru.vzotov.d3fx.quadtree;
+
+/**
+ * Represents a functional interface for visiting nodes within a {@link PackedQuadTree}.
+ * Nodes are passed as integer handles: positive values are internal nodes, negative values are leaves
+ * (see {@link PackedQuadTree#isLeaf(int)} and {@link PackedQuadTree#point(int)}).
+ */
+@FunctionalInterface
+public interface PackedVisitor {
+
+    /**
+     * Visits a node of the quadtree together with the bounds of its quadrant.
+     *
+     * @param node handle of the current node
+     * @param x0   The lower x-bound of the node's bounding box (left edge).
+     * @param y0   The lower y-bound of the node's bounding box (top edge).
+     * @param x1   The upper x-bound of the node's bounding box (right edge).
+     * @param y1   The upper y-bound of the node's bounding box (bottom edge).
+     * @return A boolean value. If {@code true}, the traversal skips visiting the children of the current node;
+     * if {@code false}, the traversal continues to the child nodes.
+     */
+    boolean visit(int node, double x0, double y0, double x1, double y1);
+}
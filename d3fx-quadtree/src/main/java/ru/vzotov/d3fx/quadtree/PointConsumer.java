@@ -0,0 +1,17 @@
+package ru.vzotov.d3fx.quadtree;
+
+/**
+ * Receives the elements found by the range queries of a {@link QuadTree} together with their coordinates.
+ *
+ * @param <E> the type of elements stored in the quadtree
+ */
+@FunctionalInterface
+public interface PointConsumer<E> {
+
+    /**
+     * @param data element of the tree
+     * @param x    x-coordinate of the element
+     * @param y    y-coordinate of the element
+     */
+    void accept(E data, double x, double y);
+}
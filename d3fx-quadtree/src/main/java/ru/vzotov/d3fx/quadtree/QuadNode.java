@@ -15,6 +15,12 @@ public class QuadNode<E, Q extends QuadNode<E, Q>> {
 
     final boolean leaf;
 
+    /**
+     * Elements of a leaf bucket, starting with {@link #data}, or {@code null} if the leaf holds only {@link #data}
+     */
+    private Object[] bucket;
+    private int size = 1;
+
     public QuadNode() {
         leaf = false;
         children = new Object[4];
@@ -43,6 +49,67 @@ public class QuadNode<E, Q extends QuadNode<E, Q>> {
         return (Q) children[index];
     }
 
+    /**
+     * Returns the number of elements held by a leaf node itself. It is one, unless the tree has
+     * {@link QuadTree#bucketSize(int) leaf buckets}; then a leaf holds all points of its quadrant in an array and
+     * has no {@link #next} chain.
+     *
+     * @return number of elements of the leaf
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index element index, from zero to {@link #size()} - 1
+     * @return element of the leaf, the first one is {@link #data}
+     */
+    @SuppressWarnings("unchecked")
+    public E data(int index) {
+        return index == 0 ? data : (E) bucket[index];
+    }
+
+    /**
+     * Appends an element to the bucket of a leaf.
+     */
+    void append(E d) {
+        if (bucket == null) {
+            bucket = new Object[4];
+            bucket[0] = data;
+        } else if (size == bucket.length) {
+            bucket = Arrays.copyOf(bucket, size << 1);
+        }
+        bucket[size++] = d;
+    }
+
+    /**
+     * Removes an element from the bucket of a leaf with more than one element, keeping the order of the others.
+     *
+     * @return {@code false} if the element is not in the bucket
+     */
+    @SuppressWarnings("unchecked")
+    boolean removeFromBucket(E d) {
+        int k = 0;
+        while (k < size && data(k) != d) k++;
+        if (k == size) return false;
+        System.arraycopy(bucket, k + 1, bucket, k, size - k - 1);
+        bucket[--size] = null;
+        data = (E) bucket[0];
+        return true;
+    }
+
+    /**
+     * Empties the bucket of a leaf, so that it holds only {@link #data}.
+     *
+     * @return elements of the bucket, or {@code null} if the leaf has no bucket
+     */
+    Object[] takeBucket() {
+        final Object[] elements = bucket;
+        bucket = null;
+        size = 1;
+        return elements;
+    }
+
     @Override
     public String toString() {
         return "QuadNode{" +
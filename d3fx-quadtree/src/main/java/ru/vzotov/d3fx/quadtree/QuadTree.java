@@ -1,13 +1,23 @@
 package ru.vzotov.d3fx.quadtree;
 
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
 
 /**
  * Inspired by D3.js
+ * <p>
+ * Like in d3, a leaf is a chain of nodes linked by {@link QuadNode#next} that holds exactly coincident points,
+ * and quadrants are split until all points are separated. For heavily clustered data the tree can be kept shallow
+ * with {@link #bucketSize(int) leaf buckets} and a {@link #maxDepth(int) depth cap}. A leaf is then a single node
+ * that holds the points of its quadrant, coincident or not, in an array (see {@link QuadNode#size()} and
+ * {@link QuadNode#data(int)}).
  *
  * @param <E> type of tree elements
  */
@@ -22,8 +32,22 @@ public class QuadTree<E, Q extends QuadNode<E, Q>> {
         return tree;
     }
 
-    private final Function<E, Double> _x;
-    private final Function<E, Double> _y;
+    /**
+     * Adapts a boxed coordinate accessor to the primitive one taken by the tree. A {@code null} coordinate is
+     * treated as invalid, like {@code NaN}.
+     *
+     * @param accessor boxed accessor
+     * @return primitive accessor
+     */
+    public static <E> ToDoubleFunction<E> unboxed(Function<E, Double> accessor) {
+        return d -> {
+            final Double value = accessor.apply(d);
+            return value == null ? Double.NaN : value;
+        };
+    }
+
+    private final ToDoubleFunction<E> _x;
+    private final ToDoubleFunction<E> _y;
     private double _x0;
     private double _y0;
     private double _x1;
@@ -32,14 +56,39 @@ public class QuadTree<E, Q extends QuadNode<E, Q>> {
     private Function<E, Q> leafSupplier;
     private Q _root;
 
+    private int bucketSize = 1;
+    private int maxDepth = Integer.MAX_VALUE;
+
+    private QuadTreeStats.Timer timer;
+
     private static int bool(boolean b) {
         return b ? 1 : 0;
     }
 
+    /**
+     * Creates an empty tree with primitive coordinate accessors, which do not box when the tree is built.
+     * The extent is computed from the points that are added.
+     */
+    public QuadTree(ToDoubleFunction<E> x, ToDoubleFunction<E> y,
+                    Supplier<Q> internalSupplier,
+                    Function<E, Q> leafSupplier) {
+        this(x, y, Double.NaN, Double.NaN, Double.NaN, Double.NaN, internalSupplier, leafSupplier);
+    }
+
+    /**
+     * Creates a tree with boxed coordinate accessors, which are adapted with {@link #unboxed(Function)}.
+     */
     public QuadTree(Function<E, Double> x, Function<E, Double> y,
                     double x0, double y0, double x1, double y1,
                     Supplier<Q> internalSupplier,
                     Function<E, Q> leafSupplier) {
+        this(unboxed(x), unboxed(y), x0, y0, x1, y1, internalSupplier, leafSupplier);
+    }
+
+    private QuadTree(ToDoubleFunction<E> x, ToDoubleFunction<E> y,
+                     double x0, double y0, double x1, double y1,
+                     Supplier<Q> internalSupplier,
+                     Function<E, Q> leafSupplier) {
         this._x = x;
         this._y = y;
         this._x0 = x0;
@@ -50,50 +99,430 @@ public class QuadTree<E, Q extends QuadNode<E, Q>> {
         this.leafSupplier = leafSupplier;
     }
 
+    /**
+     * @return maximum number of points at different positions in a leaf
+     */
+    public int bucketSize() {
+        return bucketSize;
+    }
+
+    /**
+     * Sets the capacity of leaves. A leaf is split only when it holds more than {@code bucketSize} points that are
+     * not all coincident. The default capacity of one point gives the d3 structure. The leaves of a tree with
+     * buckets have a different layout, so the setting can only be changed while the tree is empty.
+     *
+     * @param bucketSize maximum number of points at different positions in a leaf, at least one
+     * @return this tree
+     * @throws IllegalStateException if the tree is not empty
+     */
+    public QuadTree<E, Q> bucketSize(int bucketSize) {
+        if (bucketSize < 1) throw new IllegalArgumentException("bucket size must be positive: " + bucketSize);
+        checkEmpty();
+        this.bucketSize = bucketSize;
+        return this;
+    }
+
+    /**
+     * @return maximum depth of leaves below the root
+     */
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Sets the depth below the root at which leaves are no longer split and collect any number of points, so that
+     * points that are extremely close together do not produce long chains of single-child nodes. The depth is
+     * counted from the root at the time of insertion: growing the extent with {@link #cover(double, double)} adds
+     * levels above existing leaves. A depth cap puts the tree in the bucket layout of {@link #bucketSize(int)}, so
+     * it can only be changed while the tree is empty.
+     *
+     * @param maxDepth maximum depth of leaves, {@link Integer#MAX_VALUE} for no limit
+     * @return this tree
+     * @throws IllegalStateException if the tree is not empty
+     */
+    public QuadTree<E, Q> maxDepth(int maxDepth) {
+        if (maxDepth < 0) throw new IllegalArgumentException("depth must not be negative: " + maxDepth);
+        checkEmpty();
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    private void checkEmpty() {
+        if (_root != null) throw new IllegalStateException("leaf layout of a non-empty tree cannot be changed");
+    }
+
+    private boolean bucketed() {
+        return bucketSize > 1 || maxDepth != Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return {@code true} if a leaf chain at the given depth has to be split
+     */
+    private boolean overfull(Q leaf, int depth) {
+        final int n = leaf.size();
+        if (depth >= maxDepth || n <= bucketSize) return false;
+        final double x = _x.applyAsDouble(leaf.data);
+        final double y = _y.applyAsDouble(leaf.data);
+        for (int k = 1; k < n; ++k) {
+            final E d = leaf.data(k);
+            if (Double.compare(_x.applyAsDouble(d), x) != 0 || Double.compare(_y.applyAsDouble(d), y) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if a leaf holding the given number of points at the given depth is never split
+     */
+    private boolean fits(int count, int depth) {
+        return count <= bucketSize || depth >= maxDepth;
+    }
+
+    /**
+     * @return {@code true} if build and traversal times are collected
+     */
+    public boolean timing() {
+        return timer != null;
+    }
+
+    /**
+     * Enables or disables the collection of the cumulative times of bulk loads ({@link #addAll(List)}) and
+     * traversals ({@link #visit} and {@link #visitAfter}) reported by {@link #stats()}. Disabling resets them.
+     *
+     * @param timing {@code true} to collect times
+     * @return this tree
+     */
+    public QuadTree<E, Q> timing(boolean timing) {
+        if (!timing) {
+            timer = null;
+        } else if (timer == null) {
+            timer = new QuadTreeStats.Timer();
+        }
+        return this;
+    }
+
+    /**
+     * Collects the shape of the tree by walking all of its nodes, together with the times collected so far.
+     * The memory estimate assumes compressed references and ignores the fields of {@link QuadNode} subclasses.
+     *
+     * @return statistics of the tree
+     */
+    public QuadTreeStats stats() {
+        int internalNodes = 0;
+        int leaves = 0;
+        int points = 0;
+        int longestChain = 0;
+        int leafNodes = 0;
+        long buckets = 0;
+        int[] histogram = new int[0];
+        final double width = this._x1 - this._x0;
+        final TraversalStack quads = TraversalStack.quads();
+        final int base = quads.size;
+        if (this._root != null) quads.push(this._root, this._x0, this._y0, this._x1, this._y1);
+        while (quads.size > base) {
+            Q node = quads.pop();
+            final int b = quads.size << 2;
+            final double x0 = quads.bounds[b], y0 = quads.bounds[b + 1], x1 = quads.bounds[b + 2], y1 = quads.bounds[b + 3];
+            if (node.hasChildren()) {
+                internalNodes++;
+                Q child;
+                double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+                if ((child = node.get(0)) != null) quads.push(child, x0, y0, xm, ym);
+                if ((child = node.get(1)) != null) quads.push(child, xm, y0, x1, ym);
+                if ((child = node.get(2)) != null) quads.push(child, x0, ym, xm, y1);
+                if ((child = node.get(3)) != null) quads.push(child, xm, ym, x1, y1);
+            } else {
+                leaves++;
+                int chain = 0;
+                for (; node != null; node = node.next) {
+                    final int n = node.size();
+                    if (n > 1) buckets += QuadTreeStats.ARRAY_BYTES + 4L * n;
+                    leafNodes++;
+                    chain += n;
+                }
+                points += chain;
+                longestChain = Math.max(longestChain, chain);
+                histogram = QuadTreeStats.count(histogram, QuadTreeStats.depth(width, x1 - x0));
+            }
+        }
+        final long memory = internalNodes * (QuadTreeStats.NODE_BYTES + QuadTreeStats.CHILDREN_BYTES)
+                + (long) leafNodes * QuadTreeStats.NODE_BYTES + buckets;
+        return new QuadTreeStats(internalNodes, leaves, points, histogram, longestChain, memory, timer);
+    }
+
+    /**
+     * Removes all elements and resets the extent.
+     *
+     * @return this tree
+     */
+    public QuadTree<E, Q> clear() {
+        this._root = null;
+        this._x0 = this._y0 = this._x1 = this._y1 = Double.NaN;
+        return this;
+    }
+
+    private Q internal() {
+        return internalSupplier.get();
+    }
+
+    private Q leaf(E data) {
+        return leafSupplier.apply(data);
+    }
+
+    /**
+     * Visits every node in post-order: children are visited before their parent.
+     * The traversal uses per-thread stacks of primitive bounds and does not allocate in a steady state.
+     *
+     * @param callback visitor, its return value is ignored
+     * @return this tree
+     */
     public QuadTree<E, Q> visitAfter(Visitor<E, Q> callback) {
-        final Deque<Quad<E, Q>> quads = new LinkedList<>();
-        final Deque<Quad<E, Q>> next = new LinkedList<>();
-        Quad<E, Q> q;
+        final QuadTreeStats.Timer timer = this.timer;
+        final long start = QuadTreeStats.Timer.start(timer);
+        final TraversalStack quads = TraversalStack.quads();
+        final TraversalStack after = TraversalStack.after();
+        final int base = quads.size;
+        final int afterBase = after.size;
         if (this._root != null) {
-            quads.push(new Quad<>(this._root, this._x0, this._y0, this._x1, this._y1));
+            quads.push(this._root, this._x0, this._y0, this._x1, this._y1);
         }
-        while ((q = quads.poll()) != null) {
-            Q node = q.node;
+        while (quads.size > base) {
+            Q node = quads.pop();
+            final int b = quads.size << 2;
+            final double x0 = quads.bounds[b], y0 = quads.bounds[b + 1], x1 = quads.bounds[b + 2], y1 = quads.bounds[b + 3];
             if (node.hasChildren()) {
                 Q child;
-                double x0 = q.x0, y0 = q.y0, x1 = q.x1, y1 = q.y1, xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
-                if ((child = node.get(0)) != null) quads.push(new Quad<>(child, x0, y0, xm, ym));
-                if ((child = node.get(1)) != null) quads.push(new Quad<>(child, xm, y0, x1, ym));
-                if ((child = node.get(2)) != null) quads.push(new Quad<>(child, x0, ym, xm, y1));
-                if ((child = node.get(3)) != null) quads.push(new Quad<>(child, xm, ym, x1, y1));
+                double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+                if ((child = node.get(0)) != null) quads.push(child, x0, y0, xm, ym);
+                if ((child = node.get(1)) != null) quads.push(child, xm, y0, x1, ym);
+                if ((child = node.get(2)) != null) quads.push(child, x0, ym, xm, y1);
+                if ((child = node.get(3)) != null) quads.push(child, xm, ym, x1, y1);
             }
-            next.push(q);
+            after.push(node, x0, y0, x1, y1);
         }
-        while ((q = next.poll()) != null) {
-            callback.visit(q.node, q.x0, q.y0, q.x1, q.y1);
+        while (after.size > afterBase) {
+            Q node = after.pop();
+            final int b = after.size << 2;
+            callback.visit(node, after.bounds[b], after.bounds[b + 1], after.bounds[b + 2], after.bounds[b + 3]);
         }
+        if (timer != null) timer.visit(start);
         return this;
     }
 
+    /**
+     * Visits nodes in pre-order, skipping the children of nodes for which the callback returns {@code true}.
+     * The traversal uses per-thread stacks of primitive bounds and does not allocate in a steady state.
+     *
+     * @param callback visitor
+     * @return this tree
+     */
     public QuadTree<E, Q> visit(Visitor<E, Q> callback) {
-        final Deque<Quad<E, Q>> quads = new LinkedList<>();
-        Quad<E, Q> q;
+        final QuadTreeStats.Timer timer = this.timer;
+        final long start = QuadTreeStats.Timer.start(timer);
+        final TraversalStack quads = TraversalStack.quads();
+        final int base = quads.size;
         Q node = this._root;
         Q child;
-        double x0, y0, x1, y1;
-        if (node != null) quads.push(new Quad<>(node, this._x0, this._y0, this._x1, this._y1));
-        while ((q = quads.poll()) != null) {
-            if (!callback.visit(node = q.node, x0 = q.x0, y0 = q.y0, x1 = q.x1, y1 = q.y1) && node.hasChildren()) {
+        if (node != null) quads.push(node, this._x0, this._y0, this._x1, this._y1);
+        while (quads.size > base) {
+            node = quads.pop();
+            final int b = quads.size << 2;
+            final double x0 = quads.bounds[b], y0 = quads.bounds[b + 1], x1 = quads.bounds[b + 2], y1 = quads.bounds[b + 3];
+            if (!callback.visit(node, x0, y0, x1, y1) && node.hasChildren()) {
                 double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
-                if ((child = node.get(3)) != null) quads.push(new Quad<>(child, xm, ym, x1, y1));
-                if ((child = node.get(2)) != null) quads.push(new Quad<>(child, x0, ym, xm, y1));
-                if ((child = node.get(1)) != null) quads.push(new Quad<>(child, xm, y0, x1, ym));
-                if ((child = node.get(0)) != null) quads.push(new Quad<>(child, x0, y0, xm, ym));
+                if ((child = node.get(3)) != null) quads.push(child, xm, ym, x1, y1);
+                if ((child = node.get(2)) != null) quads.push(child, x0, ym, xm, y1);
+                if ((child = node.get(1)) != null) quads.push(child, xm, y0, x1, ym);
+                if ((child = node.get(0)) != null) quads.push(child, x0, y0, xm, ym);
             }
         }
+        if (timer != null) timer.visit(start);
         return this;
     }
 
+    /**
+     * Makes a read-only copy of the tree in the packed representation, with the positions of the elements at the
+     * time of the call. The copy does not share any mutable state with this tree, so other threads can query it
+     * without locks while this tree keeps changing (see {@link PackedQuadTree}).
+     *
+     * @return read-only packed copy of the tree
+     */
+    public PackedQuadTree<E> snapshot() {
+        return PackedQuadTree.snapshot(_x, _y, _x0, _y0, _x1, _y1, _root);
+    }
+
+    /**
+     * Finds the element closest to the given position.
+     *
+     * @return the closest element, or {@code null} if the tree is empty
+     */
+    public E find(double x, double y) {
+        return find(x, y, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Finds the element closest to the given position within the search radius.
+     *
+     * @param radius search radius, {@code NaN} or infinity to search the whole tree
+     * @return the closest element, or {@code null} if there is no element within the radius
+     */
+    public E find(double x, double y, double radius) {
+        final NearestQueue queue = NearestQueue.get();
+        search(queue, x, y, 1, radius);
+        return queue.count() == 0 ? null : queue.pollItem();
+    }
+
+    /**
+     * Finds up to {@code k} elements closest to the given position within the search radius. Quadrants are
+     * expanded best-first, by their distance to the position, and skipped once they are farther than the k-th
+     * closest element found so far.
+     *
+     * @param radius search radius, {@code NaN} or infinity to search the whole tree
+     * @param result list the found elements are appended to, ordered from the closest one
+     * @return number of elements appended to the list
+     */
+    public int findK(double x, double y, int k, double radius, List<? super E> result) {
+        if (k <= 0) return 0;
+        final NearestQueue queue = NearestQueue.get();
+        search(queue, x, y, k, radius);
+        final int count = queue.count();
+        final int start = result.size();
+        for (int i = 0; i < count; ++i) {
+            result.add(null);
+        }
+        for (int i = count - 1; i >= 0; --i) {
+            result.set(start + i, queue.pollItem());
+        }
+        return count;
+    }
+
+    private void search(NearestQueue queue, double x, double y, int k, double radius) {
+        queue.reset(k, radius);
+        if (this._root == null) return;
+        if (!this._root.hasChildren()) {
+            neighbours(queue, x, y, this._root);
+            return;
+        }
+        queue.offer(0, this._root, x, y, this._x0, this._y0, this._x1, this._y1);
+        while (queue.poll()) {
+            @SuppressWarnings("unchecked") final Q node = (Q) queue.ref;
+            final double x0 = queue.x0, y0 = queue.y0, x1 = queue.x1, y1 = queue.y1;
+            final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+            for (int i = 0; i < 4; ++i) {
+                final Q child = node.get(i);
+                if (child == null) continue;
+                if (!child.hasChildren()) {
+                    neighbours(queue, x, y, child);
+                } else {
+                    queue.offer(0, child, x, y,
+                            (i & 1) == 0 ? x0 : xm, (i & 2) == 0 ? y0 : ym,
+                            (i & 1) == 0 ? xm : x1, (i & 2) == 0 ? ym : y1);
+                }
+            }
+        }
+    }
+
+    private void neighbours(NearestQueue queue, double x, double y, Q leaf) {
+        for (; leaf != null; leaf = leaf.next) {
+            for (int k = 0, n = leaf.size(); k < n; ++k) {
+                final E d = leaf.data(k);
+                final double dx = this._x.applyAsDouble(d) - x, dy = this._y.applyAsDouble(d) - y;
+                queue.neighbour(dx * dx + dy * dy, 0, d);
+            }
+        }
+    }
+
+    /**
+     * Passes every element inside the rectangle, boundaries included, to the consumer. Quadrants outside the
+     * rectangle are skipped and the elements of quadrants inside it are reported without further tests.
+     *
+     * @return number of elements passed to the consumer
+     */
+    public int findInRectangle(double x0, double y0, double x1, double y1, PointConsumer<? super E> consumer) {
+        return find(Region.rectangle(x0, y0, x1, y1), consumer);
+    }
+
+    /**
+     * Passes every element inside the circle, boundary included, to the consumer.
+     *
+     * @return number of elements passed to the consumer
+     * @see #findInRectangle(double, double, double, double, PointConsumer)
+     */
+    public int findInCircle(double x, double y, double radius, PointConsumer<? super E> consumer) {
+        return find(Region.circle(x, y, radius), consumer);
+    }
+
+    private int find(Region region, PointConsumer<? super E> consumer) {
+        try {
+            return search(region, consumer);
+        } finally {
+            region.release();
+        }
+    }
+
+    private int search(Region region, PointConsumer<? super E> consumer) {
+        final TraversalStack quads = TraversalStack.quads();
+        final int base = quads.size;
+        int count = 0;
+        if (this._root != null) quads.push(this._root, this._x0, this._y0, this._x1, this._y1);
+        while (quads.size > base) {
+            final Q node = quads.pop();
+            final int b = quads.size << 2;
+            final double x0 = quads.bounds[b], y0 = quads.bounds[b + 1], x1 = quads.bounds[b + 2], y1 = quads.bounds[b + 3];
+            if (!node.hasChildren()) {
+                count += accept(node, region, consumer);
+            } else if (region.contains(x0, y0, x1, y1)) {
+                count += acceptAll(node, consumer);
+            } else {
+                final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+                Q child;
+                if ((child = node.get(3)) != null && region.intersects(xm, ym, x1, y1)) quads.push(child, xm, ym, x1, y1);
+                if ((child = node.get(2)) != null && region.intersects(x0, ym, xm, y1)) quads.push(child, x0, ym, xm, y1);
+                if ((child = node.get(1)) != null && region.intersects(xm, y0, x1, ym)) quads.push(child, xm, y0, x1, ym);
+                if ((child = node.get(0)) != null && region.intersects(x0, y0, xm, ym)) quads.push(child, x0, y0, xm, ym);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Passes the elements of a leaf that are inside the region, or all of them if the region is {@code null}.
+     */
+    private int accept(Q leaf, Region region, PointConsumer<? super E> consumer) {
+        int count = 0;
+        for (; leaf != null; leaf = leaf.next) {
+            for (int k = 0, n = leaf.size(); k < n; ++k) {
+                final E d = leaf.data(k);
+                final double x = this._x.applyAsDouble(d), y = this._y.applyAsDouble(d);
+                if (region == null || region.contains(x, y)) {
+                    consumer.accept(d, x, y);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int acceptAll(Q node, PointConsumer<? super E> consumer) {
+        final TraversalStack quads = TraversalStack.quads();
+        final int base = quads.size;
+        int count = 0;
+        quads.push(node, 0, 0, 0, 0);
+        while (quads.size > base) {
+            node = quads.pop();
+            if (!node.hasChildren()) {
+                count += accept(node, null, consumer);
+            } else {
+                for (int i = 3; i >= 0; --i) {
+                    final Q child = node.get(i);
+                    if (child != null) quads.push(child, 0, 0, 0, 0);
+                }
+            }
+        }
+        return count;
+    }
+
     public QuadTree<E, Q> cover(double x, double y) {
         if (Double.isNaN(x) || Double.isNaN(y)) return this; // ignore invalid points
 
@@ -117,12 +546,16 @@ public class QuadTree<E, Q extends QuadNode<E, Q>> {
             Q node = this._root;
             Q parent;
             int i;
+            // Only an internal root has to be wrapped, a leaf root stays the root.
+            final boolean wrap = node != null && node.hasChildren();
 
             while (x0 > x || x >= x1 || y0 > y || y >= y1) {
                 i = bool(y < y0) << 1 | bool(x < x0);
-                parent = internalSupplier.get(); //new QuadNode<>();
-                parent.set(i, node);
-                node = parent;
+                if (wrap) {
+                    parent = internal();
+                    parent.set(i, node);
+                    node = parent;
+                }
                 z *= 2;
                 switch (i) {
                     case 0 -> {
@@ -144,7 +577,7 @@ public class QuadTree<E, Q extends QuadNode<E, Q>> {
                 }
             }
 
-            if (this._root != null && this._root.hasChildren()) {
+            if (wrap) {
                 this._root = node;
             }
         }
@@ -156,7 +589,36 @@ public class QuadTree<E, Q extends QuadNode<E, Q>> {
         return this;
     }
 
+    /**
+     * Adds all elements of the list. An empty tree is bulk loaded: the points are sorted in Z-order and the tree
+     * is built top-down in one pass, which gives the same structure as adding the elements one by one.
+     *
+     * @param data elements to add
+     * @return this tree
+     */
     public QuadTree<E, Q> addAll(List<E> data) {
+        return addAll(data, null);
+    }
+
+    /**
+     * Adds all elements of the list. When the tree is empty and a pool is given, the Z-order sort and the subtrees
+     * of large quadrants are computed as tasks of the pool and stitched under their parents. The resulting tree has
+     * exactly the same structure as after the sequential build. The node suppliers and coordinate accessors must be
+     * safe to call from the threads of the pool.
+     *
+     * @param data elements to add
+     * @param pool pool to build the tree in, or {@code null} to build it on the calling thread
+     * @return this tree
+     */
+    public QuadTree<E, Q> addAll(List<E> data, ForkJoinPool pool) {
+        final QuadTreeStats.Timer timer = this.timer;
+        final long start = QuadTreeStats.Timer.start(timer);
+        insertAll(data, pool);
+        if (timer != null) timer.build(start);
+        return this;
+    }
+
+    private void insertAll(List<E> data, ForkJoinPool pool) {
         int n = data.size();
         double[] xz = new double[n];
         double[] yz = new double[n];
@@ -169,12 +631,12 @@ public class QuadTree<E, Q extends QuadNode<E, Q>> {
         // Compute the points and their extent.
         for (int i = 0; i < n; ++i) {
             E d = data.get(i);
-            double x = this._x.apply(d);
-            double y = this._y.apply(d);
-            if (Double.isNaN(x) || Double.isNaN(y)) continue;
-
+            double x = this._x.applyAsDouble(d);
+            double y = this._y.applyAsDouble(d);
             xz[i] = x;
             yz[i] = y;
+            if (Double.isNaN(x) || Double.isNaN(y)) continue;
+
             if (x < x0) x0 = x;
             if (x > x1) x1 = x;
             if (y < y0) y0 = y;
@@ -182,23 +644,538 @@ public class QuadTree<E, Q extends QuadNode<E, Q>> {
         }
 
         // If there were no (valid) points, abort.
-        if (x0 > x1 || y0 > y1) return this;
+        if (x0 > x1 || y0 > y1) return;
 
         // Expand the tree to cover the new points.
         this.cover(x0, y0).cover(x1, y1);
 
+        if (this._root == null) {
+            final MortonOrder order = new MortonOrder();
+            final double rx0 = this._x0, ry0 = this._y0, rx1 = this._x1, ry1 = this._y1;
+            if (pool == null || n < PARALLEL_BUILD_THRESHOLD) {
+                order.sort(xz, yz, 0, n, rx0, ry0, rx1, ry1);
+                this._root = build(order, data, xz, yz, 0, order.count, 0, rx0, ry0, rx1, ry1);
+            } else {
+                this._root = pool.invoke(ForkJoinTask.adapt(() -> {
+                    order.sort(xz, yz, 0, n, rx0, ry0, rx1, ry1);
+                    return new BuildTask(order, data, xz, yz, 0, order.count, 0, rx0, ry0, rx1, ry1).invoke();
+                }));
+            }
+            return;
+        }
+
         // Add the new points.
+        final boolean bucketed = bucketed();
         for (int i = 0; i < n; ++i) {
-            add(this, xz[i], yz[i], data.get(i));
+            if (bucketed) {
+                addToBucket(xz[i], yz[i], data.get(i));
+            } else {
+                add(this, xz[i], yz[i], data.get(i));
+            }
+        }
+    }
+
+    /**
+     * Number of points below which a quadrant is built sequentially by the parallel build
+     */
+    private static final int PARALLEL_BUILD_THRESHOLD = 1 << 12;
+
+    /**
+     * Builds the subtree of a quadrant from a range of Z-ordered points, forking a task for every child quadrant
+     * while the range is large.
+     */
+    private final class BuildTask extends RecursiveTask<Q> {
+        private static final long serialVersionUID = 1L;
+
+        private final MortonOrder order;
+        private final List<E> data;
+        private final double[] xz;
+        private final double[] yz;
+        private final int lo;
+        private final int hi;
+        private final int level;
+        private final double x0;
+        private final double y0;
+        private final double x1;
+        private final double y1;
+
+        BuildTask(MortonOrder order, List<E> data, double[] xz, double[] yz,
+                  int lo, int hi, int level, double x0, double y0, double x1, double y1) {
+            this.order = order;
+            this.data = data;
+            this.xz = xz;
+            this.yz = yz;
+            this.lo = lo;
+            this.hi = hi;
+            this.level = level;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
         }
 
-        return this;
+        @Override
+        protected Q compute() {
+            if (hi - lo < PARALLEL_BUILD_THRESHOLD || fits(hi - lo, level) || order.sameCell(lo, hi - 1)) {
+                return build(order, data, xz, yz, lo, hi, level, x0, y0, x1, y1);
+            }
+
+            final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+            final int b1 = order.lowerBound(lo, hi, level, 1);
+            final int b2 = order.lowerBound(b1, hi, level, 2);
+            final int b3 = order.lowerBound(b2, hi, level, 3);
+            final BuildTask q0 = new BuildTask(order, data, xz, yz, lo, b1, level + 1, x0, y0, xm, ym);
+            final BuildTask q1 = new BuildTask(order, data, xz, yz, b1, b2, level + 1, xm, y0, x1, ym);
+            final BuildTask q2 = new BuildTask(order, data, xz, yz, b2, b3, level + 1, x0, ym, xm, y1);
+            final BuildTask q3 = new BuildTask(order, data, xz, yz, b3, hi, level + 1, xm, ym, x1, y1);
+            invokeAll(q0, q1, q2, q3);
+
+            final Q node = internalSupplier.get();
+            node.set(0, q0.join());
+            node.set(1, q1.join());
+            node.set(2, q2.join());
+            node.set(3, q3.join());
+            return node;
+        }
+    }
+
+    /**
+     * Builds the subtree of a quadrant from a range of Z-ordered points.
+     */
+    private Q build(MortonOrder order, List<E> data, double[] xz, double[] yz,
+                    int lo, int hi, int level, double x0, double y0, double x1, double y1) {
+        if (lo == hi) return null;
+        final boolean sameCell = order.sameCell(lo, hi - 1);
+        final boolean coincident = sameCell && order.coincident(xz, yz, lo, hi);
+        if (bucketed()) {
+            if (coincident || fits(hi - lo, level)) return bucket(data, order.points(lo, hi));
+        } else if (coincident) {
+            Q head = null;
+            for (int k = lo; k < hi; ++k) {
+                final Q leaf = leaf(data.get(order.point(k)));
+                leaf.next = head;
+                head = leaf;
+            }
+            return head;
+        }
+        if (sameCell) {
+            // The points are too close to be separated by their keys.
+            final int[] points = order.points(lo, hi);
+            return build(data, xz, yz, points, new int[points.length], 0, points.length, level, x0, y0, x1, y1);
+        }
+
+        final Q node = internal();
+        final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+        final int b1 = order.lowerBound(lo, hi, level, 1);
+        final int b2 = order.lowerBound(b1, hi, level, 2);
+        final int b3 = order.lowerBound(b2, hi, level, 3);
+        node.set(0, build(order, data, xz, yz, lo, b1, level + 1, x0, y0, xm, ym));
+        node.set(1, build(order, data, xz, yz, b1, b2, level + 1, xm, y0, x1, ym));
+        node.set(2, build(order, data, xz, yz, b2, b3, level + 1, x0, ym, xm, y1));
+        node.set(3, build(order, data, xz, yz, b3, hi, level + 1, xm, ym, x1, y1));
+        return node;
+    }
+
+    /**
+     * Builds the subtree of a quadrant from a range of point indices by comparing coordinates with the midpoints.
+     */
+    private Q build(List<E> data, double[] xz, double[] yz, int[] points, int[] scratch,
+                    int lo, int hi, int level, double x0, double y0, double x1, double y1) {
+        if (lo == hi) return null;
+        final boolean coincident = MortonOrder.coincident(xz, yz, points, lo, hi);
+        if (bucketed() && (coincident || fits(hi - lo, level))) {
+            return bucket(data, Arrays.copyOfRange(points, lo, hi));
+        }
+        if (coincident) {
+            Q head = null;
+            for (int k = lo; k < hi; ++k) {
+                final Q leaf = leaf(data.get(points[k]));
+                leaf.next = head;
+                head = leaf;
+            }
+            return head;
+        }
+
+        final Q node = internal();
+        final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+        final int[] b = MortonOrder.partition(xz, yz, points, scratch, lo, hi, xm, ym);
+        node.set(0, build(data, xz, yz, points, scratch, b[0], b[1], level + 1, x0, y0, xm, ym));
+        node.set(1, build(data, xz, yz, points, scratch, b[1], b[2], level + 1, xm, y0, x1, ym));
+        node.set(2, build(data, xz, yz, points, scratch, b[2], b[3], level + 1, x0, ym, xm, y1));
+        node.set(3, build(data, xz, yz, points, scratch, b[3], b[4], level + 1, xm, ym, x1, y1));
+        return node;
+    }
+
+    /**
+     * Makes a bucket leaf of the given points. Points of a bucket are kept in the order of insertion, not in Z-order.
+     */
+    private Q bucket(List<E> data, int[] points) {
+        Arrays.sort(points);
+        final Q leaf = leaf(data.get(points[0]));
+        for (int k = 1; k < points.length; ++k) {
+            leaf.append(data.get(points[k]));
+        }
+        return leaf;
     }
 
     public QuadTree<E, Q> add(E data) {
-        final double x = _x.apply(data);
-        final double y = _y.apply(data);
-        return add(this.cover(x, y), x, y, data);
+        final double x = _x.applyAsDouble(data);
+        final double y = _y.applyAsDouble(data);
+        this.cover(x, y);
+        return bucketed() ? addToBucket(x, y, data) : add(this, x, y, data);
+    }
+
+    /**
+     * Removes the element from the tree. Internal nodes that are no longer needed are pruned.
+     *
+     * @param data element to remove
+     * @return this tree
+     */
+    public QuadTree<E, Q> remove(E data) {
+        remove(this, _x.applyAsDouble(data), _y.applyAsDouble(data), data);
+        return this;
+    }
+
+    public QuadTree<E, Q> removeAll(List<E> data) {
+        for (int i = 0, n = data.size(); i < n; ++i) {
+            remove(data.get(i));
+        }
+        return this;
+    }
+
+    /**
+     * Relocates an element whose position has changed. The element is looked up by its previous position and
+     * inserted again at the position returned by the accessors. The tree is left as is when the element is the only
+     * point of its leaf and stays inside the quadrant of that leaf.
+     *
+     * @param data element that has moved
+     * @param oldX previous x coordinate of the element
+     * @param oldY previous y coordinate of the element
+     * @return this tree
+     */
+    public QuadTree<E, Q> move(E data, double oldX, double oldY) {
+        if (Double.isNaN(oldX) || Double.isNaN(oldY)) return add(data);
+
+        final double x = _x.applyAsDouble(data);
+        final double y = _y.applyAsDouble(data);
+        Q node = this._root;
+        double x0 = this._x0;
+        double y0 = this._y0;
+        double x1 = this._x1;
+        double y1 = this._y1;
+        double xm;
+        double ym;
+
+        int depth = 0;
+
+        // Find the leaf of the previous position.
+        while (node != null && node.hasChildren()) {
+            depth++;
+            xm = (x0 + x1) / 2;
+            if (oldX >= xm) {
+                x0 = xm;
+            } else {
+                x1 = xm;
+            }
+            ym = (y0 + y1) / 2;
+            if (oldY >= ym) {
+                y0 = ym;
+            } else {
+                y1 = ym;
+            }
+            node = node.get(bool(oldY >= ym) << 1 | bool(oldX >= xm));
+        }
+        if (node == null) return this;
+
+        if (x0 <= x && x < x1 && y0 <= y && y < y1) {
+            if (node.data == data && node.next == null && node.size() == 1) return this;
+            // A bucket that cannot overflow keeps points at any position of its quadrant.
+            if (bucketed()) {
+                final int n = node.size();
+                boolean found = false;
+                for (int k = 0; k < n && !found; ++k) {
+                    found = node.data(k) == data;
+                }
+                if (found && fits(n, depth)) return this;
+            }
+        }
+
+        if (remove(this, oldX, oldY, data)) {
+            add(data);
+        }
+        return this;
+    }
+
+    /**
+     * Re-inserts the elements that have left the quadrant of their leaf since they were added, e.g. because the
+     * positions returned by the accessors have changed. Elements that stay inside their quadrant are not touched,
+     * so the cost is one pass over the leaves plus work proportional to the number of relocated elements.
+     * Coincident elements that are no longer coincident are relocated as well.
+     *
+     * @return number of relocated elements
+     */
+    public int relocate() {
+        final List<E> moved = new ArrayList<>();
+        double[] centers = new double[16];
+        final TraversalStack quads = TraversalStack.quads();
+        final int base = quads.size;
+        Q node = this._root;
+        Q child;
+        final boolean bucketed = bucketed();
+        if (node != null) quads.push(node, 0, this._x0, this._y0, this._x1, this._y1);
+        while (quads.size > base) {
+            final int depth = quads.nodes[quads.size - 1];
+            node = quads.pop();
+            final int b = quads.size << 2;
+            final double x0 = quads.bounds[b], y0 = quads.bounds[b + 1], x1 = quads.bounds[b + 2], y1 = quads.bounds[b + 3];
+            if (node.hasChildren()) {
+                double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+                if ((child = node.get(3)) != null) quads.push(child, depth + 1, xm, ym, x1, y1);
+                if ((child = node.get(2)) != null) quads.push(child, depth + 1, x0, ym, xm, y1);
+                if ((child = node.get(1)) != null) quads.push(child, depth + 1, xm, y0, x1, ym);
+                if ((child = node.get(0)) != null) quads.push(child, depth + 1, x0, y0, xm, ym);
+                continue;
+            }
+            // The first element that is still inside the quadrant stays, so do the elements coincident with it.
+            // A bucket that cannot overflow keeps all elements that are still inside.
+            final boolean keepInside = bucketed && fits(node.size(), depth);
+            double xr = Double.NaN;
+            double yr = Double.NaN;
+            for (Q q = node; q != null; q = q.next) {
+                for (int k = 0, count = q.size(); k < count; ++k) {
+                    final E d = q.data(k);
+                    final double x = _x.applyAsDouble(d);
+                    final double y = _y.applyAsDouble(d);
+                    final boolean inside = x0 <= x && x < x1 && y0 <= y && y < y1;
+                    if (inside && Double.isNaN(xr)) {
+                        xr = x;
+                        yr = y;
+                    } else if (!inside || !keepInside && (Double.compare(x, xr) != 0 || Double.compare(y, yr) != 0)) {
+                        final int m = moved.size();
+                        if ((m << 1) == centers.length) centers = Arrays.copyOf(centers, m << 2);
+                        centers[m << 1] = (x0 + x1) / 2;
+                        centers[(m << 1) + 1] = (y0 + y1) / 2;
+                        moved.add(d);
+                    }
+                }
+            }
+        }
+
+        // Any point of a leaf quadrant leads to the leaf, and pruning only widens quadrants,
+        // so all elements are found by the centers of their former quadrants, as long as nothing is added meanwhile.
+        final int n = moved.size();
+        for (int i = 0; i < n; ++i) {
+            remove(this, centers[i << 1], centers[(i << 1) + 1], moved.get(i));
+        }
+        for (int i = 0; i < n; ++i) {
+            add(moved.get(i));
+        }
+        return n;
+    }
+
+    /**
+     * Adds a point to the leaf of its quadrant and splits the leaf if it overflows.
+     */
+    private QuadTree<E, Q> addToBucket(double x, double y, E d) {
+        if (Double.isNaN(x) || Double.isNaN(y)) return this; // ignore invalid points
+
+        Q parent = null;
+        Q node = this._root;
+        double x0 = this._x0;
+        double y0 = this._y0;
+        double x1 = this._x1;
+        double y1 = this._y1;
+        double xm;
+        double ym;
+        boolean right;
+        boolean bottom;
+        int i = -1;
+        int depth = 0;
+
+        // If the tree is empty, initialize the root as a leaf.
+        if (node == null) {
+            this._root = leaf(d);
+            return this;
+        }
+
+        // Find the existing leaf for the new point, or add it.
+        while (node.hasChildren()) {
+            xm = (x0 + x1) / 2;
+            right = x >= xm;
+            if (right) {
+                x0 = xm;
+            } else {
+                x1 = xm;
+            }
+            ym = (y0 + y1) / 2;
+            bottom = y >= ym;
+            if (bottom) {
+                y0 = ym;
+            } else {
+                y1 = ym;
+            }
+            parent = node;
+            i = bool(bottom) << 1 | bool(right);
+            node = node.get(i);
+            depth++;
+            if (node == null) {
+                parent.set(i, leaf(d));
+                return this;
+            }
+        }
+
+        node.append(d);
+        split(parent, i, node, depth, x0, y0, x1, y1);
+        return this;
+    }
+
+    /**
+     * Replaces an overflowing leaf by an internal node and distributes its points to the child quadrants, keeping
+     * their order, until no leaf overflows. The leaf node moves down with its first point.
+     */
+    private void split(Q parent, int i, Q leaf, int depth, double x0, double y0, double x1, double y1) {
+        if (!overfull(leaf, depth)) return;
+
+        final Q node = internal();
+        if (parent != null) {
+            parent.set(i, node);
+        } else {
+            this._root = node;
+        }
+        final double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+        final int n = leaf.size();
+        final Object[] elements = leaf.takeBucket();
+        for (int k = 0; k < n; ++k) {
+            @SuppressWarnings("unchecked") final E d = (E) elements[k];
+            final int j = bool(_y.applyAsDouble(d) >= ym) << 1 | bool(_x.applyAsDouble(d) >= xm);
+            final Q child = node.get(j);
+            if (k == 0) {
+                node.set(j, leaf);
+            } else if (child == null) {
+                node.set(j, leaf(d));
+            } else {
+                child.append(d);
+            }
+        }
+        for (int j = 0; j < 4; ++j) {
+            final Q child = node.get(j);
+            if (child == null) continue;
+            split(node, j, child, depth + 1,
+                    (j & 1) == 0 ? x0 : xm, (j & 2) == 0 ? y0 : ym,
+                    (j & 1) == 0 ? xm : x1, (j & 2) == 0 ? ym : y1);
+        }
+    }
+
+    private static <E, Q extends QuadNode<E, Q>> boolean remove(QuadTree<E, Q> tree, double x, double y, E d) {
+        if (Double.isNaN(x) || Double.isNaN(y)) return false; // ignore invalid points
+
+        Q parent = null;
+        Q node = tree._root;
+        Q retainer = null;
+        Q previous = null;
+        Q next;
+        double x0 = tree._x0;
+        double y0 = tree._y0;
+        double x1 = tree._x1;
+        double y1 = tree._y1;
+        double xm;
+        double ym;
+        boolean right;
+        boolean bottom;
+        int i = -1;
+        int j = -1;
+        int depth = 0;
+        int retainedDepth = 0;
+
+        if (node == null) return false;
+
+        // Find the leaf node for the point.
+        // While descending, also retain the deepest parent with a non-removed sibling.
+        if (node.hasChildren()) {
+            while (true) {
+                xm = (x0 + x1) / 2;
+                right = x >= xm;
+                if (right) {
+                    x0 = xm;
+                } else {
+                    x1 = xm;
+                }
+                ym = (y0 + y1) / 2;
+                bottom = y >= ym;
+                if (bottom) {
+                    y0 = ym;
+                } else {
+                    y1 = ym;
+                }
+                parent = node;
+                i = bool(bottom) << 1 | bool(right);
+                node = node.get(i);
+                depth++;
+                if (node == null) return false;
+                if (!node.hasChildren()) break;
+                if (parent.get((i + 1) & 3) != null || parent.get((i + 2) & 3) != null || parent.get((i + 3) & 3) != null) {
+                    retainer = parent;
+                    j = i;
+                    retainedDepth = depth;
+                }
+            }
+        }
+
+        // Find the point to remove. A bucket that keeps other points stays a leaf, but may now fit higher up.
+        if (node.size() > 1) {
+            if (!node.removeFromBucket(d)) return false;
+            if (parent != null) collapse(tree, parent, retainer, j, retainedDepth);
+            return true;
+        }
+        while (node.data != d) {
+            previous = node;
+            node = node.next;
+            if (node == null) return false;
+        }
+        next = node.next;
+        node.next = null;
+
+        // If there are multiple coincident points, remove just the point.
+        if (previous != null) {
+            previous.next = next;
+            return true;
+        }
+
+        // If this is the root point, remove it.
+        if (parent == null) {
+            tree._root = next;
+            return true;
+        }
+
+        // Remove this leaf.
+        parent.set(i, next);
+        collapse(tree, parent, retainer, j, retainedDepth);
+        return true;
+    }
+
+    /**
+     * If the parent of a changed leaf now contains exactly one leaf, collapses superfluous parents.
+     */
+    private static <E, Q extends QuadNode<E, Q>> void collapse(QuadTree<E, Q> tree, Q parent, Q retainer, int j,
+                                                               int retainedDepth) {
+        Q node;
+        Q first = null;
+        Q last = null;
+        for (int k = 0; k < 4; ++k) {
+            if ((node = parent.get(k)) != null) {
+                if (first == null) first = node;
+                last = node;
+            }
+        }
+        // A parent of a bucket at the depth cap can be left without children, then it is pruned.
+        // A bucket is only moved up if it does not overflow at the shallower depth.
+        if (first == null || first == last && !first.hasChildren() && !tree.overfull(first, retainedDepth)) {
+            if (retainer != null) {
+                retainer.set(j, first);
+            } else {
+                tree._root = first;
+            }
+        }
     }
 
     private static <E, Q extends QuadNode<E, Q>> QuadTree<E, Q> add(QuadTree<E, Q> tree, double x, double y, E d) {
@@ -206,7 +1183,7 @@ public class QuadTree<E, Q extends QuadNode<E, Q>> {
 
         Q parent = null;
         Q node = tree._root;
-        Q leaf = tree.leafSupplier.apply(d);// new QuadNode<>(d);
+        Q leaf = tree.leaf(d);
         double x0 = tree._x0;
         double y0 = tree._y0;
         double x1 = tree._x1;
@@ -252,8 +1229,8 @@ public class QuadTree<E, Q extends QuadNode<E, Q>> {
         }
 
         // Is the new point is exactly coincident with the existing point?
-        xp = tree._x.apply(node.data);
-        yp = tree._y.apply(node.data);
+        xp = tree._x.applyAsDouble(node.data);
+        yp = tree._y.applyAsDouble(node.data);
 
         if (Double.compare(x, xp) == 0 && Double.compare(y, yp) == 0) {
             leaf.next = node;
@@ -267,7 +1244,7 @@ public class QuadTree<E, Q extends QuadNode<E, Q>> {
 
         // Otherwise, split the leaf node until the old and new point are separated.
         do {
-            parent = (parent != null) ? (parent.set(i, tree.internalSupplier.get())) : (tree._root = tree.internalSupplier.get());
+            parent = (parent != null) ? (parent.set(i, tree.internal())) : (tree._root = tree.internal());
 
             xm = (x0 + x1) / 2;
             right = (x >= xm);
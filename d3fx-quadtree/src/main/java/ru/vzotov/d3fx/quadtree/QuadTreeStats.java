@@ -0,0 +1,194 @@
+package ru.vzotov.d3fx.quadtree;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shape and timing statistics of a quadtree, see {@link QuadTree#stats()} and {@link PackedQuadTree#stats()}.
+ * <p>
+ * A degenerate tree shows up as a deep depth histogram or a long leaf chain, while a tree that is simply
+ * visited too often shows up in the visit counters. Timings are only collected while they are enabled with
+ * {@code timing(true)}; otherwise they are zero and cost a single null check per build or traversal.
+ */
+public final class QuadTreeStats {
+
+    /**
+     * Estimated size of a {@link QuadNode} with compressed references, without subclass fields
+     */
+    static final long NODE_BYTES = 40;
+
+    /**
+     * Estimated size of the children array of an internal {@link QuadNode}
+     */
+    static final long CHILDREN_BYTES = 32;
+
+    /**
+     * Estimated header size of the element array of a leaf bucket
+     */
+    static final long ARRAY_BYTES = 16;
+
+    /**
+     * Cumulative build and traversal times of a tree. Counters may be updated by concurrent traversals.
+     */
+    static final class Timer {
+        private final LongAdder buildNanos = new LongAdder();
+        private final LongAdder builds = new LongAdder();
+        private final LongAdder visitNanos = new LongAdder();
+        private final LongAdder visits = new LongAdder();
+
+        /**
+         * @return start time of a measured operation
+         */
+        static long start(Timer timer) {
+            return timer == null ? 0 : System.nanoTime();
+        }
+
+        void build(long start) {
+            buildNanos.add(System.nanoTime() - start);
+            builds.increment();
+        }
+
+        void visit(long start) {
+            visitNanos.add(System.nanoTime() - start);
+            visits.increment();
+        }
+    }
+
+    private final int internalNodes;
+    private final int leaves;
+    private final int points;
+    private final int[] depthHistogram;
+    private final int longestChain;
+    private final long memoryBytes;
+    private final long buildNanos;
+    private final long builds;
+    private final long visitNanos;
+    private final long visits;
+
+    QuadTreeStats(int internalNodes, int leaves, int points, int[] depthHistogram, int longestChain,
+                  long memoryBytes, Timer timer) {
+        this.internalNodes = internalNodes;
+        this.leaves = leaves;
+        this.points = points;
+        int depths = depthHistogram.length;
+        while (depths > 0 && depthHistogram[depths - 1] == 0) depths--;
+        this.depthHistogram = Arrays.copyOf(depthHistogram, depths);
+        this.longestChain = longestChain;
+        this.memoryBytes = memoryBytes;
+        this.buildNanos = timer == null ? 0 : timer.buildNanos.sum();
+        this.builds = timer == null ? 0 : timer.builds.sum();
+        this.visitNanos = timer == null ? 0 : timer.visitNanos.sum();
+        this.visits = timer == null ? 0 : timer.visits.sum();
+    }
+
+    /**
+     * Counts the leaves of a tree by depth.
+     */
+    static int[] count(int[] histogram, int depth) {
+        if (depth >= histogram.length) {
+            histogram = Arrays.copyOf(histogram, Math.max(depth + 1, histogram.length << 1));
+        }
+        histogram[depth]++;
+        return histogram;
+    }
+
+    /**
+     * @return depth of a quadrant of the given width in a tree whose root quadrant has the given width
+     */
+    static int depth(double rootWidth, double width) {
+        return Math.getExponent(rootWidth / width);
+    }
+
+    /**
+     * @return number of internal nodes
+     */
+    public int internalNodes() {
+        return internalNodes;
+    }
+
+    /**
+     * @return number of leaves, a chain of points stored in one leaf counts once
+     */
+    public int leaves() {
+        return leaves;
+    }
+
+    /**
+     * @return number of points stored in the leaves
+     */
+    public int points() {
+        return points;
+    }
+
+    /**
+     * @return number of leaves at each depth, the root being at depth zero
+     */
+    public int[] depthHistogram() {
+        return depthHistogram.clone();
+    }
+
+    /**
+     * @return depth of the deepest leaf, or {@code -1} if the tree is empty
+     */
+    public int maxDepth() {
+        return depthHistogram.length - 1;
+    }
+
+    /**
+     * @return number of points in the longest leaf chain: coincident points, or a bucket of a bucketed tree
+     */
+    public int longestChain() {
+        return longestChain;
+    }
+
+    /**
+     * @return estimated memory used by the structure of the tree in bytes, not counting the elements
+     */
+    public long memoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * @return cumulative time spent in bulk loads since timing was enabled
+     */
+    public long buildNanos() {
+        return buildNanos;
+    }
+
+    /**
+     * @return number of bulk loads since timing was enabled
+     */
+    public long builds() {
+        return builds;
+    }
+
+    /**
+     * @return cumulative time spent in traversals since timing was enabled, including the visitor callbacks
+     */
+    public long visitNanos() {
+        return visitNanos;
+    }
+
+    /**
+     * @return number of traversals since timing was enabled
+     */
+    public long visits() {
+        return visits;
+    }
+
+    @Override
+    public String toString() {
+        return "QuadTreeStats{" +
+                "internalNodes=" + internalNodes +
+                ", leaves=" + leaves +
+                ", points=" + points +
+                ", depthHistogram=" + Arrays.toString(depthHistogram) +
+                ", longestChain=" + longestChain +
+                ", memoryBytes=" + memoryBytes +
+                ", buildNanos=" + buildNanos +
+                ", builds=" + builds +
+                ", visitNanos=" + visitNanos +
+                ", visits=" + visits +
+                '}';
+    }
+}
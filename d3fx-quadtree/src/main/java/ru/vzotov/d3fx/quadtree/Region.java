@@ -0,0 +1,99 @@
+package ru.vzotov.d3fx.quadtree;
+
+/**
+ * Closed region of a range query. Quadrants are tested against the region to prune the ones that lie outside
+ * and to report all points of the ones that lie inside without testing them one by one.
+ * <p>
+ * Regions are owned by threads and reused, so a range query does not allocate. A query takes a region with
+ * {@link #rectangle} or {@link #circle} and gives it back with {@link #release()}; a query started by a consumer
+ * of another query on the same thread gets a region of its own.
+ */
+final class Region {
+
+    private static final ThreadLocal<Region> REGIONS = ThreadLocal.withInitial(Region::new);
+
+    private boolean circle;
+    private boolean busy;
+
+    /**
+     * Bounds of a rectangle, or the center and the squared radius of a circle
+     */
+    private double xmin, ymin, xmax, ymax;
+
+    /**
+     * Region used by a query nested in the query that uses this one
+     */
+    private Region nested;
+
+    private Region() {
+    }
+
+    private static Region acquire() {
+        Region region = REGIONS.get();
+        while (region.busy) {
+            if (region.nested == null) region.nested = new Region();
+            region = region.nested;
+        }
+        region.busy = true;
+        return region;
+    }
+
+    static Region rectangle(double xmin, double ymin, double xmax, double ymax) {
+        final Region region = acquire();
+        region.circle = false;
+        region.xmin = xmin;
+        region.ymin = ymin;
+        region.xmax = xmax;
+        region.ymax = ymax;
+        return region;
+    }
+
+    static Region circle(double cx, double cy, double radius) {
+        final Region region = acquire();
+        region.circle = true;
+        region.xmin = cx;
+        region.ymin = cy;
+        region.xmax = radius * radius;
+        return region;
+    }
+
+    /**
+     * Makes the region available to the next query of the thread.
+     */
+    void release() {
+        busy = false;
+    }
+
+    /**
+     * @return {@code true} if the region may contain points of the quadrant
+     */
+    boolean intersects(double x0, double y0, double x1, double y1) {
+        if (circle) {
+            return NearestQueue.distance(xmin, ymin, x0, y0, x1, y1) <= xmax;
+        }
+        return x0 <= xmax && x1 >= xmin && y0 <= ymax && y1 >= ymin;
+    }
+
+    /**
+     * @return {@code true} if the region contains the whole quadrant
+     */
+    boolean contains(double x0, double y0, double x1, double y1) {
+        if (circle) {
+            final double dx = Math.max(xmin - x0, x1 - xmin);
+            final double dy = Math.max(ymin - y0, y1 - ymin);
+            return dx * dx + dy * dy <= xmax;
+        }
+        return xmin <= x0 && x1 <= xmax && ymin <= y0 && y1 <= ymax;
+    }
+
+    /**
+     * @return {@code true} if the region contains the point
+     */
+    boolean contains(double x, double y) {
+        if (circle) {
+            final double dx = x - xmin, dy = y - ymin;
+            return dx * dx + dy * dy <= xmax;
+        }
+        return x >= xmin && x <= xmax && y >= ymin && y <= ymax;
+    }
+}
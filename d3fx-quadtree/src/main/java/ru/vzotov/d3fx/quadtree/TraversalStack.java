@@ -0,0 +1,94 @@
+package ru.vzotov.d3fx.quadtree;
+
+import java.util.Arrays;
+
+/**
+ * Growable stack of quadrants used by the iterative tree traversals.
+ * <p>
+ * Each entry is a node, either as an integer handle or as an object reference, together with the bounds of its
+ * quadrant. The bounds are kept in a flat array, four values per entry, so pushing and popping quadrants does not
+ * allocate once the stack has grown to the depth of the tree. Traversals remember the size of the stack at their
+ * start and only pop entries above it, which makes them safe to nest.
+ * <p>
+ * Stacks are owned by threads (see {@link #quads()} and {@link #after()}), so any number of threads may traverse
+ * the same tree at the same time as long as nobody modifies it.
+ */
+final class TraversalStack {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final ThreadLocal<TraversalStack> QUADS = ThreadLocal.withInitial(TraversalStack::new);
+    private static final ThreadLocal<TraversalStack> AFTER = ThreadLocal.withInitial(TraversalStack::new);
+
+    /**
+     * @return stack of pending quadrants for the current thread
+     */
+    static TraversalStack quads() {
+        return QUADS.get();
+    }
+
+    /**
+     * @return stack of quadrants collected by a post-order traversal for the current thread
+     */
+    static TraversalStack after() {
+        return AFTER.get();
+    }
+
+    int[] nodes = new int[INITIAL_CAPACITY];
+    Object[] refs = new Object[INITIAL_CAPACITY];
+    double[] bounds = new double[INITIAL_CAPACITY << 2];
+    int size;
+
+    void push(int node, double x0, double y0, double x1, double y1) {
+        if (size == nodes.length) {
+            grow();
+        }
+        nodes[size] = node;
+        final int b = size << 2;
+        bounds[b] = x0;
+        bounds[b + 1] = y0;
+        bounds[b + 2] = x1;
+        bounds[b + 3] = y1;
+        size++;
+    }
+
+    void push(Object node, double x0, double y0, double x1, double y1) {
+        if (size == nodes.length) {
+            grow();
+        }
+        refs[size] = node;
+        final int b = size << 2;
+        bounds[b] = x0;
+        bounds[b + 1] = y0;
+        bounds[b + 2] = x1;
+        bounds[b + 3] = y1;
+        size++;
+    }
+
+    /**
+     * Pushes a node reference together with an integer tag, e.g. the depth of the node, kept in {@link #nodes}.
+     */
+    void push(Object node, int tag, double x0, double y0, double x1, double y1) {
+        push(node, x0, y0, x1, y1);
+        nodes[size - 1] = tag;
+    }
+
+    /**
+     * Pops the top entry and returns its node reference. Bounds of the entry stay readable at
+     * {@code bounds[size << 2]} until the next push.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T pop() {
+        final int top = --size;
+        final Object ref = refs[top];
+        refs[top] = null;
+        return (T) ref;
+    }
+
+    private void grow() {
+        final int capacity = nodes.length << 1;
+        nodes = Arrays.copyOf(nodes, capacity);
+        refs = Arrays.copyOf(refs, capacity);
+        bounds = Arrays.copyOf(bounds, capacity << 2);
+    }
+}
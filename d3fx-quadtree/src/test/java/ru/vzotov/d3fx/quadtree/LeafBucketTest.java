@@ -0,0 +1,314 @@
+package ru.vzotov.d3fx.quadtree;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the structure and the queries of trees with leaf buckets and a depth cap.
+ */
+class LeafBucketTest {
+
+    private static final int N = 2_000;
+    private static final int BUCKET = 8;
+    private static final int DEPTH = 6;
+
+    /**
+     * Random points with a dense cluster of near-coincident points around (500, 500).
+     */
+    private static List<double[]> points(long seed) {
+        final List<double[]> points = TestNode.points(N, seed);
+        final Random random = new Random(seed);
+        for (int i = 0; i < N; i += 4) {
+            points.get(i)[0] = 500 + random.nextDouble() * 1e-9;
+            points.get(i)[1] = 500 + random.nextDouble() * 1e-9;
+        }
+        return points;
+    }
+
+    private static QuadTree<double[], TestNode> objectTree(int bucketSize, int maxDepth) {
+        return new QuadTree<>(TestNode::x, TestNode::y, TestNode::new, TestNode::new)
+                .bucketSize(bucketSize).maxDepth(maxDepth);
+    }
+
+    private static PackedQuadTree<double[]> packedTree(int bucketSize, int maxDepth) {
+        return new PackedQuadTree<>(TestNode::x, TestNode::y).bucketSize(bucketSize).maxDepth(maxDepth);
+    }
+
+    /**
+     * @return leaves in pre-order, each as its bounds followed by the indices of its points
+     */
+    private static List<List<Double>> leaves(QuadTree<double[], TestNode> tree, List<double[]> points) {
+        final IdentityHashMap<double[], Integer> index = index(points);
+        final List<List<Double>> leaves = new ArrayList<>();
+        tree.visit((node, x0, y0, x1, y1) -> {
+            if (node.isLeaf()) {
+                final List<Double> leaf = new ArrayList<>(List.of(x0, y0, x1, y1));
+                final List<Double> content = new ArrayList<>();
+                for (TestNode q = node; q != null; q = q.next) {
+                    for (int k = 0; k < q.size(); ++k) {
+                        content.add((double) index.get(q.data(k)));
+                    }
+                }
+                Collections.sort(content);
+                leaf.addAll(content);
+                leaves.add(leaf);
+            }
+            return false;
+        });
+        return leaves;
+    }
+
+    private static List<List<Double>> leaves(PackedQuadTree<double[]> tree, List<double[]> points) {
+        final IdentityHashMap<double[], Integer> index = index(points);
+        final List<List<Double>> leaves = new ArrayList<>();
+        tree.visit((node, x0, y0, x1, y1) -> {
+            if (PackedQuadTree.isLeaf(node)) {
+                final List<Double> leaf = new ArrayList<>(List.of(x0, y0, x1, y1));
+                final List<Double> content = new ArrayList<>();
+                for (int p = PackedQuadTree.point(node); p >= 0; p = tree.next(p)) {
+                    content.add((double) index.get(tree.data(p)));
+                }
+                Collections.sort(content);
+                leaf.addAll(content);
+                leaves.add(leaf);
+            }
+            return false;
+        });
+        return leaves;
+    }
+
+    private static IdentityHashMap<double[], Integer> index(List<double[]> points) {
+        final IdentityHashMap<double[], Integer> index = new IdentityHashMap<>();
+        for (int i = 0; i < points.size(); ++i) {
+            index.put(points.get(i), i);
+        }
+        return index;
+    }
+
+    private static void assertLeafLimits(QuadTree<double[], TestNode> tree, int bucketSize, int maxDepth) {
+        final double[] width = {Double.NaN};
+        tree.visit((node, x0, y0, x1, y1) -> {
+            if (Double.isNaN(width[0])) width[0] = x1 - x0; // the root comes first
+            final int depth = QuadTreeStats.depth(width[0], x1 - x0);
+            assertTrue(depth <= maxDepth);
+            if (node.isLeaf() && depth < maxDepth && node.size() > bucketSize) {
+                for (int k = 1; k < node.size(); ++k) {
+                    assertArrayEquals(node.data, node.data(k));
+                }
+            }
+            return false;
+        });
+    }
+
+    private static void assertSameTrees(List<double[]> points, QuadTree<double[], TestNode> tree,
+                                        PackedQuadTree<double[]> packed) {
+        assertEquals(leaves(tree, points), leaves(packed, points));
+        assertEquals(tree.stats().internalNodes(), packed.stats().internalNodes());
+    }
+
+    private void checkLayout(int bucketSize, int maxDepth) {
+        final List<double[]> points = points(bucketSize * 31L + maxDepth);
+        final QuadTree<double[], TestNode> bulk = objectTree(bucketSize, maxDepth).addAll(points);
+        final PackedQuadTree<double[]> packedBulk = packedTree(bucketSize, maxDepth).addAll(points);
+        assertLeafLimits(bulk, bucketSize, maxDepth);
+        assertSameTrees(points, bulk, packedBulk);
+        final QuadTreeStats stats = bulk.stats();
+        final QuadTreeStats unbucketed = TestNode.quadTree(points).stats();
+        assertTrue(stats.internalNodes() < unbucketed.internalNodes());
+        assertTrue(stats.maxDepth() < unbucketed.maxDepth());
+
+        // Like a bulk load, cover the extent of all points before the first one is placed.
+        final double x0 = points.stream().mapToDouble(TestNode::x).min().orElseThrow();
+        final double y0 = points.stream().mapToDouble(TestNode::y).min().orElseThrow();
+        final double x1 = points.stream().mapToDouble(TestNode::x).max().orElseThrow();
+        final double y1 = points.stream().mapToDouble(TestNode::y).max().orElseThrow();
+        final QuadTree<double[], TestNode> incremental = objectTree(bucketSize, maxDepth).cover(x0, y0).cover(x1, y1);
+        final PackedQuadTree<double[]> packedIncremental = packedTree(bucketSize, maxDepth).cover(x0, y0).cover(x1, y1);
+        for (double[] point : points) {
+            incremental.add(point);
+            packedIncremental.add(point);
+        }
+        assertEquals(leaves(bulk, points), leaves(incremental, points));
+        assertSameTrees(points, incremental, packedIncremental);
+    }
+
+    @Test
+    void bucketsHoldUpToTheirSize() {
+        checkLayout(BUCKET, Integer.MAX_VALUE);
+    }
+
+    @Test
+    void depthCapStopsSplitting() {
+        checkLayout(1, DEPTH);
+        checkLayout(BUCKET, DEPTH);
+    }
+
+    @Test
+    void bucketsKeepTheOrderOfInsertion() {
+        final List<double[]> points = points(3);
+        final QuadTree<double[], TestNode> tree = objectTree(BUCKET, DEPTH).addAll(points);
+        final IdentityHashMap<double[], Integer> index = index(points);
+        tree.visit((node, x0, y0, x1, y1) -> {
+            if (node.isLeaf()) {
+                for (int k = 1; k < node.size(); ++k) {
+                    assertTrue(index.get(node.data(k - 1)) < index.get(node.data(k)));
+                }
+                assertSame(node.data, node.data(0));
+            }
+            return false;
+        });
+    }
+
+    @Test
+    void queriesFollowRemovalsAndMoves() {
+        final List<double[]> points = points(4);
+        final QuadTree<double[], TestNode> tree = objectTree(BUCKET, DEPTH).addAll(points);
+        final PackedQuadTree<double[]> packed = packedTree(BUCKET, DEPTH).addAll(points);
+        final Random random = new Random(4);
+        for (int i = 0; i < N; i += 3) {
+            final double[] point = points.get(i);
+            final double oldX = point[0], oldY = point[1];
+            point[0] = random.nextDouble() * 1000;
+            point[1] = random.nextDouble() * 1000;
+            tree.move(point, oldX, oldY);
+            packed.move(i, point[0], point[1]);
+        }
+        for (int i = 1; i < N; i += 7) {
+            tree.remove(points.get(i));
+            packed.remove(i);
+        }
+        final List<double[]> remaining = new ArrayList<>();
+        for (int i = 0; i < N; ++i) {
+            if (i % 7 != 1) remaining.add(points.get(i));
+        }
+        assertLeafLimits(tree, BUCKET, DEPTH);
+        assertSameTrees(points, tree, packed);
+
+        for (int i = 0; i < 100; ++i) {
+            final double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000;
+            final double[] nearest = Collections.min(remaining,
+                    Comparator.comparingDouble(p -> (p[0] - x) * (p[0] - x) + (p[1] - y) * (p[1] - y)));
+            final double expected = (nearest[0] - x) * (nearest[0] - x) + (nearest[1] - y) * (nearest[1] - y);
+            final double[] found = tree.find(x, y);
+            final double[] packedFound = points.get(packed.find(x, y));
+            assertEquals(expected, (found[0] - x) * (found[0] - x) + (found[1] - y) * (found[1] - y));
+            assertEquals(expected, (packedFound[0] - x) * (packedFound[0] - x) + (packedFound[1] - y) * (packedFound[1] - y));
+        }
+        final Set<double[]> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        assertEquals(remaining.size(), tree.findInRectangle(0, 0, 1000, 1000, (d, x, y) -> found.add(d)));
+        assertEquals(remaining.size(), found.size());
+        found.clear();
+        assertEquals(remaining.size(), packed.findInRectangle(0, 0, 1000, 1000, p -> found.add(points.get(p))));
+        assertEquals(remaining.size(), found.size());
+
+        for (double[] point : remaining) {
+            tree.remove(point);
+        }
+        for (int i = 0; i < N; ++i) {
+            if (i % 7 != 1) packed.remove(i);
+        }
+        assertEquals(null, tree.find(500, 500));
+        assertEquals(PackedQuadTree.EMPTY, packed.root());
+    }
+
+    @Test
+    void shrinkingBucketMovesUp() {
+        // A cluster that overflows the leaves down to the depth cap, and enough points in the other quadrants of the
+        // root to keep it split
+        final List<double[]> points = new ArrayList<>();
+        for (int k = 0; k < 12; ++k) {
+            points.add(new double[]{100 + k * 0.5, 100 + k * 0.25});
+        }
+        for (int k = 0; k < 3; ++k) {
+            points.add(new double[]{700 + 30 * k, 200});
+            points.add(new double[]{200, 700 + 30 * k});
+            points.add(new double[]{700 + 30 * k, 700});
+        }
+        final QuadTree<double[], TestNode> tree = objectTree(BUCKET, DEPTH).cover(0, 0).cover(1023, 1023);
+        final PackedQuadTree<double[]> packed = packedTree(BUCKET, DEPTH).cover(0, 0).cover(1023, 1023);
+        for (double[] point : points) {
+            tree.add(point);
+            packed.add(point);
+        }
+        assertEquals(DEPTH, tree.stats().maxDepth());
+
+        for (int i = 11; i > 0; --i) {
+            tree.remove(points.get(i));
+            packed.remove(i);
+            final QuadTree<double[], TestNode> rebuilt = objectTree(BUCKET, DEPTH).cover(0, 0).cover(1023, 1023);
+            for (int k = 0; k < points.size(); ++k) {
+                if (k < i || k >= 12) rebuilt.add(points.get(k));
+            }
+            assertEquals(rebuilt.stats().maxDepth(), tree.stats().maxDepth(), i + " points in the cluster");
+            assertEquals(leaves(rebuilt, points), leaves(tree, points));
+            assertSameTrees(points, tree, packed);
+        }
+        assertEquals(1, tree.stats().maxDepth());
+    }
+
+    @Test
+    void relocateKeepsBucketsConsistent() {
+        final List<double[]> points = points(5);
+        final QuadTree<double[], TestNode> tree = objectTree(BUCKET, DEPTH).addAll(points);
+        final PackedQuadTree<double[]> packed = packedTree(BUCKET, DEPTH).addAll(points);
+        final Random random = new Random(5);
+        for (double[] point : points) {
+            point[0] = Math.min(999, Math.max(0, point[0] + random.nextDouble() * 40 - 20));
+            point[1] = Math.min(999, Math.max(0, point[1] + random.nextDouble() * 40 - 20));
+        }
+        tree.relocate();
+        packed.relocate();
+        assertLeafLimits(tree, BUCKET, DEPTH);
+        final int[] count = new int[2];
+        tree.visit((node, x0, y0, x1, y1) -> {
+            if (node.isLeaf()) {
+                for (int k = 0; k < node.size(); ++k) {
+                    final double[] p = node.data(k);
+                    assertTrue(x0 <= p[0] && p[0] < x1 && y0 <= p[1] && p[1] < y1);
+                    count[0]++;
+                }
+            }
+            return false;
+        });
+        packed.visit((node, x0, y0, x1, y1) -> {
+            if (PackedQuadTree.isLeaf(node)) {
+                for (int p = PackedQuadTree.point(node); p >= 0; p = packed.next(p)) {
+                    assertTrue(x0 <= packed.x(p) && packed.x(p) < x1 && y0 <= packed.y(p) && packed.y(p) < y1);
+                    count[1]++;
+                }
+            }
+            return false;
+        });
+        assertEquals(N, count[0]);
+        assertEquals(N, count[1]);
+    }
+
+    @Test
+    void layoutOfANonEmptyTreeCannotChange() {
+        final List<double[]> points = points(6);
+        final QuadTree<double[], TestNode> tree = objectTree(BUCKET, DEPTH).addAll(points);
+        final PackedQuadTree<double[]> packed = packedTree(BUCKET, DEPTH).addAll(points);
+        assertThrows(IllegalStateException.class, () -> tree.bucketSize(1));
+        assertThrows(IllegalStateException.class, () -> tree.maxDepth(Integer.MAX_VALUE));
+        assertThrows(IllegalStateException.class, () -> packed.bucketSize(1));
+        assertThrows(IllegalStateException.class, () -> packed.maxDepth(Integer.MAX_VALUE));
+
+        tree.clear().bucketSize(1).maxDepth(Integer.MAX_VALUE).addAll(points);
+        packed.clear().bucketSize(1).maxDepth(Integer.MAX_VALUE).addAll(points);
+        assertEquals(leaves(TestNode.quadTree(points), points), leaves(tree, points));
+        assertEquals(leaves(tree, points), leaves(packed, points));
+    }
+}
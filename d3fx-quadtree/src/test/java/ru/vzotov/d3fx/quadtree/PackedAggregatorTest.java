@@ -0,0 +1,129 @@
+package ru.vzotov.d3fx.quadtree;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the aggregates maintained along the paths of mutations match a full recomputation.
+ */
+class PackedAggregatorTest {
+
+    private static final int N = 2_000;
+
+    /**
+     * Number of points and sum of their x coordinates per node
+     */
+    private static final class Sums implements PackedAggregator {
+        private final PackedQuadTree<?> tree;
+        double[] nodeCount = new double[0];
+        double[] nodeSum = new double[0];
+        double[] leafCount = new double[0];
+        double[] leafSum = new double[0];
+
+        Sums(PackedQuadTree<?> tree) {
+            this.tree = tree;
+        }
+
+        private void ensure() {
+            if (nodeCount.length <= tree.nodeCount()) {
+                nodeCount = Arrays.copyOf(nodeCount, tree.nodeCount() * 2 + 1);
+                nodeSum = Arrays.copyOf(nodeSum, nodeCount.length);
+            }
+            if (leafCount.length < tree.size()) {
+                leafCount = Arrays.copyOf(leafCount, tree.size() * 2);
+                leafSum = Arrays.copyOf(leafSum, leafCount.length);
+            }
+        }
+
+        @Override
+        public void leaf(int leaf) {
+            ensure();
+            final int first = PackedQuadTree.point(leaf);
+            double count = 0, sum = 0;
+            for (int p = first; p >= 0; p = tree.next(p)) {
+                count++;
+                sum += tree.x(p);
+            }
+            leafCount[first] = count;
+            leafSum[first] = sum;
+        }
+
+        @Override
+        public void combine(int node) {
+            ensure();
+            double count = 0, sum = 0;
+            for (int i = 0; i < 4; ++i) {
+                final int child = tree.child(node, i);
+                if (child > 0) {
+                    count += nodeCount[child];
+                    sum += nodeSum[child];
+                } else if (child < 0) {
+                    count += leafCount[PackedQuadTree.point(child)];
+                    sum += leafSum[PackedQuadTree.point(child)];
+                }
+            }
+            nodeCount[node] = count;
+            nodeSum[node] = sum;
+        }
+
+        double count(int node) {
+            return node > 0 ? nodeCount[node] : leafCount[PackedQuadTree.point(node)];
+        }
+
+        double sum(int node) {
+            return node > 0 ? nodeSum[node] : leafSum[PackedQuadTree.point(node)];
+        }
+    }
+
+    private static void assertUpToDate(PackedQuadTree<double[]> tree, Sums sums) {
+        final Sums expected = new Sums(tree);
+        final PackedAggregator maintained = tree.aggregator();
+        tree.aggregator(expected);
+        tree.visit((node, x0, y0, x1, y1) -> {
+            assertEquals(expected.count(node), sums.count(node));
+            assertEquals(expected.sum(node), sums.sum(node), 1e-6);
+            return false;
+        });
+        tree.aggregator(maintained);
+    }
+
+    @Test
+    void aggregatesFollowMutations() {
+        final List<double[]> points = TestNode.points(N, 11);
+        final PackedQuadTree<double[]> tree = PackedQuadTree.quadTree(points.subList(0, N / 2), TestNode::x, TestNode::y);
+        final Sums sums = new Sums(tree);
+        tree.aggregator(sums);
+        assertUpToDate(tree, sums);
+
+        for (double[] point : points.subList(N / 2, N)) {
+            tree.add(point);
+        }
+        assertEquals(N, sums.count(tree.root()));
+        assertUpToDate(tree, sums);
+
+        final Random random = new Random(5);
+        for (int i = 0; i < N; i += 3) {
+            tree.move(i, random.nextDouble() * 1000, random.nextDouble() * 1000);
+        }
+        tree.move(4, tree.x(4) + 1e-9, tree.y(4));
+        tree.move(7, 5000, -3000);
+        assertUpToDate(tree, sums);
+
+        for (int i = 1; i < N; i += 5) {
+            tree.remove(i);
+        }
+        assertEquals(N - N / 5, sums.count(tree.root()));
+        assertUpToDate(tree, sums);
+
+        for (double[] point : points) {
+            point[0] += random.nextDouble() * 20 - 10;
+        }
+        tree.relocate();
+        assertUpToDate(tree, sums);
+    }
+}
@@ -0,0 +1,127 @@
+package ru.vzotov.d3fx.quadtree;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trips of {@link PackedQuadTree#write(Path)} and {@link PackedQuadTree#read}.
+ */
+class PackedQuadTreeFileTest {
+
+    private static final int N = 3_000;
+
+    @TempDir
+    Path dir;
+
+    private static void assertSameTree(PackedQuadTree<double[]> expected, PackedQuadTree<double[]> actual) {
+        assertEquals(expected.root(), actual.root());
+        assertEquals(expected.nodeCount(), actual.nodeCount());
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.readOnly(), actual.readOnly());
+        assertEquals(expected.bucketSize(), actual.bucketSize());
+        assertEquals(expected.maxDepth(), actual.maxDepth());
+        assertEquals(expected.x0(), actual.x0());
+        assertEquals(expected.y0(), actual.y0());
+        assertEquals(expected.x1(), actual.x1());
+        assertEquals(expected.y1(), actual.y1());
+        for (int p = 0; p < expected.size(); ++p) {
+            assertEquals(expected.x(p), actual.x(p));
+            assertEquals(expected.y(p), actual.y(p));
+            assertEquals(expected.next(p), actual.next(p));
+        }
+        expected.visit((node, x0, y0, x1, y1) -> {
+            if (node > 0) {
+                for (int i = 0; i < 4; ++i) {
+                    assertEquals(expected.child(node, i), actual.child(node, i));
+                }
+            }
+            return false;
+        });
+        final Random random = new Random(3);
+        for (int i = 0; i < 200; ++i) {
+            final double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000;
+            assertEquals(expected.find(x, y), actual.find(x, y));
+        }
+    }
+
+    private PackedQuadTree<double[]> roundTrip(PackedQuadTree<double[]> tree, List<double[]> points)
+            throws IOException {
+        final Path file = dir.resolve("tree.bin");
+        tree.write(file);
+        return PackedQuadTree.read(file, points, TestNode::x, TestNode::y);
+    }
+
+    @Test
+    void treeWithFreeNodesRoundTrips() throws IOException {
+        final List<double[]> points = TestNode.points(N, 21);
+        final PackedQuadTree<double[]> tree = PackedQuadTree.quadTree(points, TestNode::x, TestNode::y);
+        final Random random = new Random(4);
+        for (int i = 0; i < N; i += 7) {
+            tree.move(i, random.nextDouble() * 1000, random.nextDouble() * 1000);
+        }
+        for (int i = 1; i < N; i += 11) {
+            tree.remove(i);
+        }
+
+        final PackedQuadTree<double[]> read = roundTrip(tree, points);
+        assertSameTree(tree, read);
+
+        tree.move(5, 1, 1);
+        read.move(5, 1, 1);
+        assertSameTree(tree, read);
+    }
+
+    @Test
+    void bucketedTreeRoundTrips() throws IOException {
+        final List<double[]> points = TestNode.points(N, 22);
+        final PackedQuadTree<double[]> tree = new PackedQuadTree<double[]>(TestNode::x, TestNode::y)
+                .bucketSize(8).maxDepth(12).addAll(points);
+
+        final PackedQuadTree<double[]> read = roundTrip(tree, points);
+        assertEquals(8, read.bucketSize());
+        assertEquals(12, read.maxDepth());
+        assertSameTree(tree, read);
+    }
+
+    @Test
+    void snapshotIsReadBackReadOnly() throws IOException {
+        final List<double[]> points = TestNode.points(N, 23);
+        final PackedQuadTree<double[]> tree = PackedQuadTree.quadTree(points, TestNode::x, TestNode::y);
+        final PackedQuadTree<double[]> snapshot = tree.snapshot();
+
+        final PackedQuadTree<double[]> read = roundTrip(snapshot, points);
+        assertTrue(read.readOnly());
+        assertSameTree(snapshot, read);
+        assertThrows(UnsupportedOperationException.class, () -> read.remove(0));
+
+        assertFalse(roundTrip(tree, points).readOnly());
+    }
+
+    @Test
+    void shorterTreeOverwritesTheFile() throws IOException {
+        final List<double[]> points = TestNode.points(N, 24);
+        roundTrip(PackedQuadTree.quadTree(points, TestNode::x, TestNode::y), points);
+
+        final List<double[]> few = points.subList(0, 10);
+        final PackedQuadTree<double[]> small = PackedQuadTree.quadTree(few, TestNode::x, TestNode::y);
+        assertSameTree(small, roundTrip(small, few));
+    }
+
+    @Test
+    void foreignFileIsRejected() throws IOException {
+        final Path file = dir.resolve("foreign.bin");
+        Files.write(file, new byte[128]);
+        assertThrows(IOException.class, () -> PackedQuadTree.read(file, List.of(), TestNode::x, TestNode::y));
+    }
+}
@@ -0,0 +1,132 @@
+package ru.vzotov.d3fx.quadtree;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the queries of {@link PackedRTree} with brute force results.
+ */
+class PackedRTreeTest {
+
+    private static final int N = 2_000;
+
+    /**
+     * Random boxes {@code {x0, y0, x1, y1}} in a 1000 x 1000 square, some of them invalid.
+     */
+    private static List<double[]> boxes(long seed) {
+        final Random random = new Random(seed);
+        final List<double[]> boxes = new ArrayList<>(N);
+        for (int i = 0; i < N; ++i) {
+            final double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000;
+            final double w = random.nextDouble() * 30, h = random.nextDouble() * 30;
+            if (i % 50 == 49) {
+                boxes.add(new double[]{x, y, x - 1, y + h});
+            } else if (i % 50 == 48) {
+                boxes.add(new double[]{Double.NaN, y, x + w, y + h});
+            } else {
+                boxes.add(new double[]{x, y, x + w, y + h});
+            }
+        }
+        return boxes;
+    }
+
+    private static PackedRTree<double[]> tree(List<double[]> boxes, int nodeSize) {
+        return new PackedRTree<double[]>(b -> b[0], b -> b[1], b -> b[2], b -> b[3]).nodeSize(nodeSize).load(boxes);
+    }
+
+    private static boolean valid(double[] b) {
+        return b[0] <= b[2] && b[1] <= b[3];
+    }
+
+    private static boolean overlaps(double[] b, double x0, double y0, double x1, double y1) {
+        return valid(b) && b[0] <= x1 && b[2] >= x0 && b[1] <= y1 && b[3] >= y0;
+    }
+
+    private static boolean overlaps(double[] b, double x, double y, double r) {
+        if (!valid(b)) return false;
+        final double dx = Math.max(Math.max(b[0] - x, x - b[2]), 0);
+        final double dy = Math.max(Math.max(b[1] - y, y - b[3]), 0);
+        return dx * dx + dy * dy <= r * r;
+    }
+
+    private static void assertQueries(List<double[]> boxes, PackedRTree<double[]> tree, long seed) {
+        final Random random = new Random(seed);
+        final Set<Integer> found = new HashSet<>();
+        for (int i = 0; i < 100; ++i) {
+            final double x0 = random.nextDouble() * 1000, y0 = random.nextDouble() * 1000;
+            final double x1 = x0 + random.nextDouble() * 200, y1 = y0 + random.nextDouble() * 200;
+            final double r = random.nextDouble() * 100;
+
+            final Set<Integer> rectangle = new HashSet<>();
+            final Set<Integer> circle = new HashSet<>();
+            final Set<Integer> containing = new HashSet<>();
+            for (int k = 0; k < boxes.size(); ++k) {
+                final double[] b = boxes.get(k);
+                if (overlaps(b, x0, y0, x1, y1)) rectangle.add(k);
+                if (overlaps(b, x0, y0, r)) circle.add(k);
+                if (overlaps(b, x0, y0, x0, y0)) containing.add(k);
+            }
+
+            found.clear();
+            assertEquals(rectangle.size(), tree.findOverlapping(x0, y0, x1, y1, found::add));
+            assertEquals(rectangle, found);
+            found.clear();
+            assertEquals(circle.size(), tree.findOverlapping(x0, y0, r, found::add));
+            assertEquals(circle, found);
+            found.clear();
+            assertEquals(containing.size(), tree.findContaining(x0, y0, found::add));
+            assertEquals(containing, found);
+        }
+    }
+
+    @Test
+    void queriesReturnTheOverlappingBoxes() {
+        final List<double[]> boxes = boxes(1);
+        for (int nodeSize : new int[]{2, 3, 16, 100}) {
+            assertQueries(boxes, tree(boxes, nodeSize), nodeSize);
+        }
+    }
+
+    @Test
+    void wholeTreeIsReportedOnce() {
+        final List<double[]> boxes = boxes(2);
+        final PackedRTree<double[]> tree = tree(boxes, 4);
+        final int valid = (int) boxes.stream().filter(PackedRTreeTest::valid).count();
+        final Set<Integer> found = new HashSet<>();
+        assertEquals(valid, tree.findOverlapping(-1, -1, 2000, 2000, found::add));
+        assertEquals(valid, found.size());
+    }
+
+    @Test
+    void nodeSizeTakesEffectWithTheNextLoad() {
+        final List<double[]> boxes = boxes(3);
+        final PackedRTree<double[]> tree = tree(boxes, 16);
+        final int nodes = tree.nodeCount();
+        tree.nodeSize(3);
+        assertEquals(nodes, tree.nodeCount());
+        assertQueries(boxes, tree, 3);
+
+        tree.load(boxes);
+        assertEquals(tree(boxes, 3).nodeCount(), tree.nodeCount());
+        assertQueries(boxes, tree, 4);
+    }
+
+    @Test
+    void emptyAndSingleElementTrees() {
+        final PackedRTree<double[]> tree = tree(List.of(), 16);
+        assertEquals(0, tree.findOverlapping(0, 0, 1000, 1000, i -> {
+        }));
+        final List<double[]> one = List.<double[]>of(new double[]{10, 10, 20, 20});
+        tree.load(one);
+        assertEquals(1, tree.findContaining(15, 15, i -> assertEquals(0, i)));
+        assertEquals(0, tree.findContaining(25, 15, i -> {
+        }));
+    }
+}
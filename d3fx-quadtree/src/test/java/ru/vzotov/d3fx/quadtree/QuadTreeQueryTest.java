@@ -0,0 +1,277 @@
+package ru.vzotov.d3fx.quadtree;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the queries of {@link QuadTree} and {@link PackedQuadTree} with brute force results.
+ */
+class QuadTreeQueryTest {
+
+    private static final int N = 2_000;
+
+    private final List<double[]> points = TestNode.points(N, 7);
+    private final QuadTree<double[], TestNode> tree = TestNode.quadTree(points);
+    private final PackedQuadTree<double[]> packed = PackedQuadTree.quadTree(points, TestNode::x, TestNode::y);
+
+    private static double distance2(double[] point, double x, double y) {
+        final double dx = point[0] - x, dy = point[1] - y;
+        return dx * dx + dy * dy;
+    }
+
+    private List<double[]> nearest(double x, double y, int k) {
+        final List<double[]> sorted = new ArrayList<>(points);
+        sorted.sort(Comparator.comparingDouble(p -> distance2(p, x, y)));
+        return sorted.subList(0, Math.min(k, sorted.size()));
+    }
+
+    @Test
+    void visitReachesEveryPointInsideItsQuadrant() {
+        final Set<double[]> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        tree.visit((node, x0, y0, x1, y1) -> {
+            if (node.isLeaf()) {
+                for (TestNode q = node; q != null; q = q.next) {
+                    assertTrue(x0 <= q.data[0] && q.data[0] < x1 && y0 <= q.data[1] && q.data[1] < y1);
+                    assertTrue(seen.add(q.data));
+                }
+            }
+            return false;
+        });
+        assertEquals(N, seen.size());
+
+        final Set<Integer> packedSeen = new HashSet<>();
+        packed.visit((node, x0, y0, x1, y1) -> {
+            if (PackedQuadTree.isLeaf(node)) {
+                for (int p = PackedQuadTree.point(node); p >= 0; p = packed.next(p)) {
+                    assertTrue(x0 <= packed.x(p) && packed.x(p) < x1 && y0 <= packed.y(p) && packed.y(p) < y1);
+                    assertTrue(packedSeen.add(p));
+                }
+            }
+            return false;
+        });
+        assertEquals(N, packedSeen.size());
+    }
+
+    @Test
+    void visitAfterVisitsChildrenFirst() {
+        final Set<TestNode> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        tree.visitAfter((node, x0, y0, x1, y1) -> {
+            if (node.hasChildren()) {
+                for (int i = 0; i < 4; ++i) {
+                    final TestNode child = node.get(i);
+                    assertTrue(child == null || visited.contains(child));
+                }
+            }
+            visited.add(node);
+            return false;
+        });
+
+        final Set<Integer> packedVisited = new HashSet<>();
+        packed.visitAfter((node, x0, y0, x1, y1) -> {
+            if (!PackedQuadTree.isLeaf(node)) {
+                for (int i = 0; i < 4; ++i) {
+                    final int child = packed.child(node, i);
+                    assertTrue(child == PackedQuadTree.EMPTY || packedVisited.contains(child));
+                }
+            }
+            packedVisited.add(node);
+            return false;
+        });
+        assertEquals(visited.size(), packedVisited.size());
+    }
+
+    /**
+     * @return type and bounds of every node in pre-order
+     */
+    private static List<double[]> quadrants(QuadTree<double[], TestNode> tree) {
+        final List<double[]> quadrants = new ArrayList<>();
+        tree.visit((node, x0, y0, x1, y1) -> {
+            quadrants.add(new double[]{node.isLeaf() ? 1 : 0, x0, y0, x1, y1});
+            return false;
+        });
+        return quadrants;
+    }
+
+    private static List<double[]> quadrants(PackedQuadTree<double[]> tree) {
+        final List<double[]> quadrants = new ArrayList<>();
+        tree.visit((node, x0, y0, x1, y1) -> {
+            quadrants.add(new double[]{PackedQuadTree.isLeaf(node) ? 1 : 0, x0, y0, x1, y1});
+            return false;
+        });
+        return quadrants;
+    }
+
+    private static void assertSameQuadrants(List<double[]> expected, List<double[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    void packedTreeHasTheStructureOfTheObjectTree() {
+        assertSameQuadrants(quadrants(tree), quadrants(packed));
+        assertSameQuadrants(quadrants(tree), quadrants(tree.snapshot()));
+    }
+
+    @Test
+    void bulkLoadMatchesIncrementalInsertion() {
+        final QuadTree<double[], TestNode> incremental = new QuadTree<>(TestNode::x, TestNode::y,
+                TestNode::new, TestNode::new);
+        final PackedQuadTree<double[]> packedIncremental = new PackedQuadTree<>(TestNode::x, TestNode::y);
+        // Like d3's addAll, a bulk load covers the extent of all points before the first one is placed.
+        final double x0 = points.stream().mapToDouble(TestNode::x).min().orElseThrow();
+        final double y0 = points.stream().mapToDouble(TestNode::y).min().orElseThrow();
+        final double x1 = points.stream().mapToDouble(TestNode::x).max().orElseThrow();
+        final double y1 = points.stream().mapToDouble(TestNode::y).max().orElseThrow();
+        incremental.cover(x0, y0).cover(x1, y1);
+        packedIncremental.cover(x0, y0).cover(x1, y1);
+        for (double[] point : points) {
+            incremental.add(point);
+            packedIncremental.add(point);
+        }
+        assertSameQuadrants(quadrants(tree), quadrants(incremental));
+        assertSameQuadrants(quadrants(packed), quadrants(packedIncremental));
+    }
+
+    @Test
+    void boxedAccessorsBuildTheSameTree() {
+        final QuadTree<double[], TestNode> boxed = QuadTree.quadTree(points, p -> p[0], p -> p[1],
+                TestNode::new, TestNode::new);
+        assertSameQuadrants(quadrants(tree), quadrants(boxed));
+    }
+
+    @Test
+    void findReturnsTheNearestPoint() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 200; ++i) {
+            final double x = random.nextDouble() * 1200 - 100, y = random.nextDouble() * 1200 - 100;
+            final double expected = distance2(nearest(x, y, 1).get(0), x, y);
+            assertEquals(expected, distance2(tree.find(x, y), x, y));
+            assertEquals(expected, distance2(points.get(packed.find(x, y)), x, y));
+        }
+    }
+
+    @Test
+    void findRespectsTheRadius() {
+        final double[] point = points.get(0);
+        final double x = point[0] + 0.5, y = point[1];
+        final double nearest = Math.sqrt(distance2(nearest(x, y, 1).get(0), x, y));
+        assertNull(tree.find(x, y, nearest * 0.99));
+        assertEquals(-1, packed.find(x, y, nearest * 0.99));
+        assertEquals(nearest * nearest, distance2(tree.find(x, y, nearest * 1.01), x, y));
+        assertTrue(packed.find(x, y, nearest * 1.01) >= 0);
+    }
+
+    @Test
+    void findKReturnsTheNearestPointsInOrder() {
+        final Random random = new Random(2);
+        final int k = 25;
+        final int[] buffer = new int[k];
+        for (int i = 0; i < 50; ++i) {
+            final double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000;
+            final List<double[]> expected = nearest(x, y, k);
+            final List<double[]> found = new ArrayList<>();
+            assertEquals(k, tree.findK(x, y, k, Double.POSITIVE_INFINITY, found));
+            assertEquals(k, packed.findK(x, y, k, Double.POSITIVE_INFINITY, buffer));
+            for (int j = 0; j < k; ++j) {
+                final double d = distance2(expected.get(j), x, y);
+                assertEquals(d, distance2(found.get(j), x, y));
+                assertEquals(d, distance2(points.get(buffer[j]), x, y));
+            }
+        }
+    }
+
+    @Test
+    void rangeQueriesReturnThePointsInside() {
+        final Random random = new Random(3);
+        for (int i = 0; i < 50; ++i) {
+            final double x0 = random.nextDouble() * 1000, y0 = random.nextDouble() * 1000;
+            final double x1 = x0 + random.nextDouble() * 300, y1 = y0 + random.nextDouble() * 300;
+            final double r = random.nextDouble() * 200;
+
+            final Set<double[]> rectangle = Collections.newSetFromMap(new IdentityHashMap<>());
+            final Set<double[]> circle = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (double[] p : points) {
+                if (x0 <= p[0] && p[0] <= x1 && y0 <= p[1] && p[1] <= y1) rectangle.add(p);
+                if (distance2(p, x0, y0) <= r * r) circle.add(p);
+            }
+
+            final Set<double[]> found = Collections.newSetFromMap(new IdentityHashMap<>());
+            assertEquals(rectangle.size(), tree.findInRectangle(x0, y0, x1, y1, (d, x, y) -> found.add(d)));
+            assertEquals(rectangle, found);
+            found.clear();
+            assertEquals(circle.size(), tree.findInCircle(x0, y0, r, (d, x, y) -> found.add(d)));
+            assertEquals(circle, found);
+
+            found.clear();
+            assertEquals(rectangle.size(), packed.findInRectangle(x0, y0, x1, y1, p -> found.add(points.get(p))));
+            assertEquals(rectangle, found);
+            found.clear();
+            assertEquals(circle.size(), packed.findInCircle(x0, y0, r, p -> found.add(points.get(p))));
+            assertEquals(circle, found);
+        }
+    }
+
+    @Test
+    void rangeQueriesCanBeNested() {
+        final int[] pairs = new int[2];
+        tree.findInCircle(500, 500, 50, (d, x, y) -> pairs[0] += tree.findInCircle(x, y, 10, (e, u, v) -> {
+        }));
+        packed.findInCircle(500, 500, 50, p -> pairs[1] += packed.findInCircle(packed.x(p), packed.y(p), 10, q -> {
+        }));
+        int expected = 0;
+        for (double[] p : points) {
+            if (distance2(p, 500, 500) > 50 * 50) continue;
+            for (double[] q : points) {
+                if (distance2(q, p[0], p[1]) <= 10 * 10) expected++;
+            }
+        }
+        assertEquals(expected, pairs[0]);
+        assertEquals(expected, pairs[1]);
+    }
+
+    @Test
+    void queriesFollowRemovalsAndMoves() {
+        final Random random = new Random(4);
+        for (int i = 0; i < N; i += 3) {
+            final double[] point = points.get(i);
+            final double oldX = point[0], oldY = point[1];
+            point[0] = random.nextDouble() * 1000;
+            point[1] = random.nextDouble() * 1000;
+            tree.move(point, oldX, oldY);
+            packed.move(i, point[0], point[1]);
+        }
+        for (int i = 1; i < N; i += 7) {
+            tree.remove(points.get(i));
+            packed.remove(i);
+        }
+        final List<double[]> remaining = new ArrayList<>();
+        for (int i = 0; i < N; ++i) {
+            if (i % 7 != 1) remaining.add(points.get(i));
+        }
+        final QuadTree<double[], TestNode> rebuilt = TestNode.quadTree(remaining);
+        for (int i = 0; i < 100; ++i) {
+            final double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000;
+            final double expected = distance2(rebuilt.find(x, y), x, y);
+            assertEquals(expected, distance2(tree.find(x, y), x, y));
+            assertEquals(expected, distance2(points.get(packed.find(x, y)), x, y));
+        }
+        final int[] count = new int[1];
+        assertEquals(remaining.size(), tree.findInRectangle(0, 0, 1000, 1000, (d, x, y) -> count[0]++));
+        assertEquals(remaining.size(), packed.findInRectangle(0, 0, 1000, 1000, p -> count[0]++));
+    }
+}
@@ -0,0 +1,47 @@
+package ru.vzotov.d3fx.quadtree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Node of the object trees used by the tests, whose elements are {@code {x, y}} pairs.
+ */
+class TestNode extends QuadNode<double[], TestNode> {
+
+    TestNode() {
+        super();
+    }
+
+    TestNode(double[] data) {
+        super(data);
+    }
+
+    static double x(double[] point) {
+        return point[0];
+    }
+
+    static double y(double[] point) {
+        return point[1];
+    }
+
+    static QuadTree<double[], TestNode> quadTree(List<double[]> points) {
+        return new QuadTree<>(TestNode::x, TestNode::y, TestNode::new, TestNode::new).addAll(points);
+    }
+
+    /**
+     * Random points in a 1000 x 1000 square, every tenth point coincident with the previous one.
+     */
+    static List<double[]> points(int n, long seed) {
+        final Random random = new Random(seed);
+        final List<double[]> points = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            if (i % 10 == 9) {
+                points.add(points.get(i - 1).clone());
+            } else {
+                points.add(new double[]{random.nextDouble() * 1000, random.nextDouble() * 1000});
+            }
+        }
+        return points;
+    }
+}
@@ -0,0 +1,97 @@
+package ru.vzotov.d3fx.quadtree;
+
+import com.sun.management.ThreadMXBean;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks that queries do not allocate once the per-thread stacks and queues have grown to the size of the tree.
+ */
+class TraversalAllocationTest {
+
+    private static final int WARMUP = 2_000;
+    private static final int RUNS = 1_000;
+
+    private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static List<double[]> points;
+    private static QuadTree<double[], TestNode> tree;
+    private static PackedQuadTree<double[]> packed;
+
+    @BeforeAll
+    static void setUp() {
+        assumeTrue(THREADS.isThreadAllocatedMemorySupported());
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+        points = TestNode.points(10_000, 42);
+        tree = TestNode.quadTree(points);
+        packed = PackedQuadTree.quadTree(points, TestNode::x, TestNode::y);
+    }
+
+    private static long allocated(Runnable query) {
+        for (int i = 0; i < WARMUP; ++i) {
+            query.run();
+        }
+        final long before = THREADS.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < RUNS; ++i) {
+            query.run();
+        }
+        return THREADS.getCurrentThreadAllocatedBytes() - before;
+    }
+
+    @Test
+    void visitDoesNotAllocate() {
+        final int[] count = new int[1];
+        final Visitor<double[], TestNode> visitor = (node, x0, y0, x1, y1) -> {
+            count[0]++;
+            return false;
+        };
+        final PackedVisitor packedVisitor = (node, x0, y0, x1, y1) -> {
+            count[0]++;
+            return false;
+        };
+        assertEquals(0, allocated(() -> tree.visit(visitor)));
+        assertEquals(0, allocated(() -> tree.visitAfter(visitor)));
+        assertEquals(0, allocated(() -> packed.visit(packedVisitor)));
+        assertEquals(0, allocated(() -> packed.visitAfter(packedVisitor)));
+    }
+
+    @Test
+    void findDoesNotAllocate() {
+        final double[] sink = new double[1];
+        assertEquals(0, allocated(() -> sink[0] += tree.find(500, 500)[0]));
+        assertEquals(0, allocated(() -> sink[0] += packed.find(500, 500)));
+
+        final List<double[]> result = new ArrayList<>(16);
+        assertEquals(0, allocated(() -> {
+            result.clear();
+            tree.findK(250, 750, 16, Double.POSITIVE_INFINITY, result);
+        }));
+        final int[] buffer = new int[16];
+        assertEquals(0, allocated(() -> packed.findK(250, 750, 16, Double.POSITIVE_INFINITY, buffer)));
+    }
+
+    @Test
+    void rangeQueriesDoNotAllocate() {
+        final int[] count = new int[1];
+        final PointConsumer<double[]> consumer = (data, x, y) -> count[0]++;
+        final IntConsumer packedConsumer = p -> count[0]++;
+        assertEquals(0, allocated(() -> tree.findInRectangle(100, 100, 300, 400, consumer)));
+        assertEquals(0, allocated(() -> tree.findInCircle(600, 600, 150, consumer)));
+        assertEquals(0, allocated(() -> packed.findInRectangle(100, 100, 300, 400, packedConsumer)));
+        assertEquals(0, allocated(() -> packed.findInCircle(600, 600, 150, packedConsumer)));
+    }
+
+    @Test
+    void packedRebuildDoesNotAllocate() {
+        final PackedQuadTree<double[]> rebuilt = new PackedQuadTree<>(TestNode::x, TestNode::y);
+        assertEquals(0, allocated(() -> rebuilt.clear().addAll(points)));
+    }
+}